@@ -0,0 +1,383 @@
+package com.deakishin.idtmessagingtestapp;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.util.Log;
+
+/**
+ * Pipeline that processes a batch of image urls by stages: downloading,
+ * sampled decoding, rotation and storing of the display-optimized
+ * derivative. Every stage has its own threads and a bounded input queue, so
+ * downloads of the next images overlap with decoding and rotation of the
+ * previous ones. A full queue blocks the stage before it, which keeps the
+ * number of decoded bitmaps in memory within the queue capacities.
+ * <p>
+ * Images are downloaded by {@link DownloadEngine} like single downloads, so
+ * they share its limits of connections per host and requests for a url that
+ * is already being downloaded are merged.
+ */
+public class BatchPipeline {
+	private static final String TAG = "BatchPipeline";
+
+	/*
+	 * Threads of the stages. Fetch threads only wait for jobs of the engine, so
+	 * there are as many of them as the engine runs at once. Decoding is
+	 * limited by memory, rotation uses all cores by itself.
+	 */
+	private static final int FETCH_THREADS = DownloadEngine.DEFAULT_MAX_WORKERS;
+	private static final int DECODE_THREADS = 1;
+	private static final int TRANSFORM_THREADS = 1;
+	private static final int STORE_THREADS = 1;
+
+	/* Capacities of the input queues. Queues after decoding hold bitmaps, so they are short. */
+	private static final int FETCH_QUEUE_CAPACITY = 8;
+	private static final int DECODE_QUEUE_CAPACITY = 4;
+	private static final int TRANSFORM_QUEUE_CAPACITY = 2;
+	private static final int STORE_QUEUE_CAPACITY = 2;
+
+	/* Item that tells a worker that there are no more items. */
+	private static final Item END = new Item(null);
+
+	/**
+	 * Listener of the batch. Methods are called in the threads of stages.
+	 */
+	public interface Listener {
+		/**
+		 * Called when an image is processed or failed.
+		 *
+		 * @param url
+		 *            - url of the image.
+		 * @param filename
+		 *            - name of the stored image or null if an error occurred.
+		 */
+		void onItemFinished(String url, String filename);
+
+		/**
+		 * Called when the whole batch is processed.
+		 *
+		 * @param pipeline
+		 *            - finished pipeline.
+		 */
+		void onFinished(BatchPipeline pipeline);
+	}
+
+	private final FileIOHelper mFileIO;
+	private final DownloadEngine mEngine;
+	private final int mDisplayWidth;
+	private final boolean mRotate;
+	private final List<Stage> mStages = new ArrayList<Stage>();
+
+	private Listener mListener;
+	private volatile boolean mCancelled;
+
+	/* Statistics. */
+	private final AtomicInteger mSucceededCount = new AtomicInteger();
+	private final AtomicInteger mFailedCount = new AtomicInteger();
+	private long mStartTime;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param context
+	 *            - app context.
+	 * @param engine
+	 *            - engine that downloads the images.
+	 * @param displayWidth
+	 *            - width of the region where images will be displayed.
+	 * @param rotate
+	 *            - should be images rotated 180 degrees.
+	 */
+	public BatchPipeline(Context context, DownloadEngine engine, int displayWidth, boolean rotate) {
+		mFileIO = new FileIOHelper(context.getApplicationContext());
+		mEngine = engine;
+		mDisplayWidth = displayWidth;
+		mRotate = rotate;
+
+		mStages.add(new Stage("fetch", FETCH_THREADS, FETCH_QUEUE_CAPACITY) {
+			@Override
+			boolean process(Item item) {
+				/* The derivative is made by the next stages, so the engine doesn't need the display width. */
+				DownloadJob job = mEngine.enqueue(item.url, 0);
+				while (true) {
+					try {
+						item.filename = job.awaitFinished();
+						break;
+					} catch (InterruptedException e) {
+						/* Threads of the pipeline are not interrupted, keep waiting. */
+					}
+				}
+				if (item.filename != null && mFileIO.existsExtFile(FileIOHelper.getDerivativeFilename(item.filename,
+						mDisplayWidth, mRotate))) {
+					/* Processed before, nothing else to do. */
+					item.done = true;
+				}
+				return item.filename != null;
+			}
+		});
+		mStages.add(new Stage("decode", DECODE_THREADS, DECODE_QUEUE_CAPACITY) {
+			@Override
+			boolean process(Item item) {
+				item.bitmap = mFileIO.readExtBitmap(item.filename, false, mDisplayWidth);
+				return item.bitmap != null;
+			}
+		});
+		mStages.add(new Stage("transform", TRANSFORM_THREADS, TRANSFORM_QUEUE_CAPACITY) {
+			@Override
+			boolean process(Item item) {
+				if (mRotate) {
+					Bitmap rotated = BitmapRotator.rotate180(item.bitmap);
+					if (rotated != item.bitmap) {
+						BitmapPool.getInstance().put(item.bitmap);
+						item.bitmap = rotated;
+					}
+				}
+				return true;
+			}
+		});
+		mStages.add(new Stage("store", STORE_THREADS, STORE_QUEUE_CAPACITY) {
+			@Override
+			boolean process(Item item) {
+				Bitmap stored = mFileIO.writeExtDerivative(item.filename, mDisplayWidth, mRotate, item.bitmap);
+				item.bitmap = null;
+				if (stored == null) {
+					return false;
+				}
+				BitmapPool.getInstance().put(stored);
+				return true;
+			}
+		});
+	}
+
+	/**
+	 * Starts processing of the batch. Urls are fed to the first stage in a
+	 * separate thread, so the method returns at once.
+	 *
+	 * @param urls
+	 *            - urls of the images.
+	 * @param listener
+	 *            - listener of the batch.
+	 */
+	public void start(final List<String> urls, Listener listener) {
+		mListener = listener;
+		mStartTime = System.currentTimeMillis();
+		for (int i = 0; i < mStages.size(); i++) {
+			mStages.get(i).start(i + 1 < mStages.size() ? mStages.get(i + 1) : null);
+		}
+		Thread feeder = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				Stage first = mStages.get(0);
+				for (String url : urls) {
+					if (mCancelled) {
+						break;
+					}
+					first.put(new Item(url));
+				}
+				first.end();
+			}
+		}, TAG + " feeder");
+		feeder.setDaemon(true);
+		feeder.start();
+	}
+
+	/**
+	 * Cancels the batch. Items being processed are finished, the rest are
+	 * dropped.
+	 */
+	public void cancel() {
+		mCancelled = true;
+	}
+
+	/**
+	 * @return number of stored images.
+	 */
+	public int getSucceededCount() {
+		return mSucceededCount.get();
+	}
+
+	/**
+	 * @return number of images that failed.
+	 */
+	public int getFailedCount() {
+		return mFailedCount.get();
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("BatchPipeline[succeeded=" + mSucceededCount + ", failed="
+				+ mFailedCount + ", " + (System.currentTimeMillis() - mStartTime) + " ms");
+		for (Stage stage : mStages) {
+			sb.append(", ").append(stage);
+		}
+		return sb.append("]").toString();
+	}
+
+	/*
+	 * Finishes an item that has passed the last stage or failed.
+	 */
+	private void finish(Item item, boolean success) {
+		if (item.bitmap != null) {
+			BitmapPool.getInstance().put(item.bitmap);
+			item.bitmap = null;
+		}
+		(success ? mSucceededCount : mFailedCount).incrementAndGet();
+		if (mListener != null) {
+			mListener.onItemFinished(item.url, success ? item.filename : null);
+		}
+	}
+
+	/*
+	 * Image passing through the stages.
+	 */
+	private static class Item {
+		final String url;
+		String filename;
+		Bitmap bitmap;
+
+		/* True if the item doesn't need the next stages. */
+		boolean done;
+
+		Item(String url) {
+			this.url = url;
+		}
+	}
+
+	/*
+	 * Stage with its own threads and input queue. When the last thread of a
+	 * stage ends, the next stage is ended too.
+	 */
+	private abstract class Stage {
+		private final String mName;
+		private final int mThreadCount;
+		private final BlockingQueue<Item> mQueue;
+		private final AtomicInteger mRunningThreads = new AtomicInteger();
+		private Stage mNext;
+
+		/* Statistics. */
+		private final AtomicInteger mProcessedCount = new AtomicInteger();
+		private long mBusyNanos;
+		private volatile int mMaxQueueSize;
+
+		Stage(String name, int threadCount, int queueCapacity) {
+			mName = name;
+			mThreadCount = threadCount;
+			mQueue = new ArrayBlockingQueue<Item>(queueCapacity);
+		}
+
+		/*
+		 * Processes the item. Returns false if it failed.
+		 */
+		abstract boolean process(Item item);
+
+		void start(Stage next) {
+			mNext = next;
+			mRunningThreads.set(mThreadCount);
+			for (int i = 0; i < mThreadCount; i++) {
+				Thread thread = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						work();
+					}
+				}, TAG + " " + mName + " #" + (i + 1));
+				thread.setDaemon(true);
+				thread.start();
+			}
+		}
+
+		/*
+		 * Puts an item into the queue, waiting while it's full.
+		 */
+		void put(Item item) {
+			while (true) {
+				try {
+					mQueue.put(item);
+					break;
+				} catch (InterruptedException e) {
+					/* Threads of the pipeline are not interrupted, keep waiting. */
+				}
+			}
+			int size = mQueue.size();
+			if (size > mMaxQueueSize) {
+				mMaxQueueSize = size;
+			}
+		}
+
+		/*
+		 * Tells the threads that there are no more items.
+		 */
+		void end() {
+			for (int i = 0; i < mThreadCount; i++) {
+				put(END);
+			}
+		}
+
+		private void work() {
+			while (true) {
+				Item item;
+				try {
+					item = mQueue.take();
+				} catch (InterruptedException e) {
+					continue;
+				}
+				if (item == END) {
+					break;
+				}
+				if (mCancelled) {
+					finish(item, false);
+					continue;
+				}
+
+				long startTime = System.nanoTime();
+				boolean success;
+				try {
+					success = process(item);
+				} catch (RuntimeException e) {
+					Log.e(TAG, "Stage " + mName + " failed for " + item.url + ": " + e);
+					success = false;
+				}
+				synchronized (this) {
+					mBusyNanos += System.nanoTime() - startTime;
+				}
+				mProcessedCount.incrementAndGet();
+
+				if (!success || item.done || mNext == null) {
+					finish(item, success);
+				} else {
+					mNext.put(item);
+				}
+			}
+
+			if (mRunningThreads.decrementAndGet() == 0) {
+				if (mNext != null) {
+					mNext.end();
+				} else {
+					Log.d(TAG, BatchPipeline.this.toString());
+					if (mListener != null) {
+						mListener.onFinished(BatchPipeline.this);
+					}
+				}
+			}
+		}
+
+		/*
+		 * Throughput is measured by the time since the start of the batch.
+		 * Busy is the part of that time the threads of the stage were
+		 * processing, a stage close to 100% is the bottleneck.
+		 */
+		@Override
+		public synchronized String toString() {
+			int processed = mProcessedCount.get();
+			long elapsedMillis = Math.max(1, System.currentTimeMillis() - mStartTime);
+			double itemsPerSecond = processed * 1000.0 / elapsedMillis;
+			long busyPercent = mBusyNanos / 10000 / elapsedMillis / mThreadCount;
+			return mName + ": " + processed + " items, " + String.format("%.2f", itemsPerSecond) + " items/s, busy "
+					+ busyPercent + "%, queue " + mQueue.size() + " (max " + mMaxQueueSize + ")";
+		}
+	}
+}
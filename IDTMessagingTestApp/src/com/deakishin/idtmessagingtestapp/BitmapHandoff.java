@@ -0,0 +1,148 @@
+package com.deakishin.idtmessagingtestapp;
+
+import android.graphics.Bitmap;
+import android.support.v4.util.LruCache;
+import android.util.Log;
+
+/**
+ * In-process handoff of decoded images from downloads to their display. A
+ * download that has decoded its image for the display anyway publishes the
+ * bitmap here by the id of its job, and the activity takes it instead of
+ * reading the stored file again. The handoff is limited by the size of the
+ * bitmaps in bytes. Evicted bitmaps go to the pool, the activity falls back
+ * to the storage then.
+ */
+public class BitmapHandoff {
+	private static final String TAG = "BitmapHandoff";
+
+	/* Part of the available heap that the handoff may occupy. */
+	private static final int HEAP_FRACTION = 16;
+
+	private static BitmapHandoff sInstance;
+
+	/* Published bitmaps by job ids. Sizes are measured in bytes. */
+	private final LruCache<Integer, Entry> mEntries;
+
+	/* Statistics. */
+	private int mPublishedCount;
+	private int mTakenCount;
+
+	/**
+	 * Returns the handoff of the process.
+	 *
+	 * @return handoff instance.
+	 */
+	public static synchronized BitmapHandoff getInstance() {
+		if (sInstance == null) {
+			int maxBytes = (int) Math.min(Integer.MAX_VALUE, Runtime.getRuntime().maxMemory() / HEAP_FRACTION);
+			sInstance = new BitmapHandoff(maxBytes);
+		}
+		return sInstance;
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param maxBytes
+	 *            - budget of the handoff in bytes.
+	 */
+	public BitmapHandoff(int maxBytes) {
+		mEntries = new LruCache<Integer, Entry>(maxBytes) {
+			@Override
+			protected int sizeOf(Integer key, Entry value) {
+				return value.bitmap.getRowBytes() * value.bitmap.getHeight();
+			}
+
+			@Override
+			protected void entryRemoved(boolean evicted, Integer key, Entry oldValue, Entry newValue) {
+				/* Taken bitmaps belong to the taker, others are not needed anymore. */
+				if (evicted || newValue != null) {
+					Log.d(TAG, "Bitmap of job " + key + " is dropped");
+					BitmapPool.getInstance().put(oldValue.bitmap);
+				}
+			}
+		};
+	}
+
+	/**
+	 * Publishes a decoded image of a finished job. The handoff owns the bitmap
+	 * from now on, it must not be used or recycled by the caller.
+	 *
+	 * @param jobId
+	 *            - id of the download job.
+	 * @param filename
+	 *            - name of the stored image.
+	 * @param width
+	 *            - width the image was decoded for.
+	 * @param rotate
+	 *            - whether the image was rotated 180 degrees.
+	 * @param bitmap
+	 *            - decoded image.
+	 */
+	public void publish(int jobId, String filename, int width, boolean rotate, Bitmap bitmap) {
+		if (bitmap == null) {
+			return;
+		}
+		if (bitmap.getRowBytes() * bitmap.getHeight() > mEntries.maxSize()) {
+			BitmapPool.getInstance().put(bitmap);
+			return;
+		}
+		mEntries.put(jobId, new Entry(filename, width, rotate, bitmap));
+		synchronized (this) {
+			mPublishedCount++;
+		}
+	}
+
+	/**
+	 * Takes a published image if it's still there and was decoded with the
+	 * same parameters. The caller owns the bitmap from now on.
+	 *
+	 * @param jobId
+	 *            - id of the download job.
+	 * @param filename
+	 *            - name of the stored image.
+	 * @param width
+	 *            - width the image is displayed with.
+	 * @param rotate
+	 *            - whether the image is displayed rotated 180 degrees.
+	 * @return decoded image or null if it should be read from the storage.
+	 */
+	public Bitmap take(int jobId, String filename, int width, boolean rotate) {
+		Entry entry = mEntries.get(jobId);
+		if (entry == null || !entry.filename.equals(filename) || entry.width != width || entry.rotate != rotate) {
+			return null;
+		}
+		if (mEntries.remove(jobId) != entry) {
+			/* Taken or replaced by another thread. */
+			return null;
+		}
+		synchronized (this) {
+			mTakenCount++;
+		}
+		return entry.bitmap;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "BitmapHandoff[size=" + mEntries.size() / 1024 + " KB of " + mEntries.maxSize() / 1024
+				+ " KB, published=" + mPublishedCount + ", taken=" + mTakenCount + ", evictions="
+				+ mEntries.evictionCount() + "]";
+	}
+
+	/*
+	 * Published image with the parameters it was decoded with.
+	 */
+	private static class Entry {
+		final String filename;
+		final int width;
+		final boolean rotate;
+		final Bitmap bitmap;
+
+		Entry(String filename, int width, boolean rotate, Bitmap bitmap) {
+			this.filename = filename;
+			this.width = width;
+			this.rotate = rotate;
+			this.bitmap = bitmap;
+		}
+	}
+}
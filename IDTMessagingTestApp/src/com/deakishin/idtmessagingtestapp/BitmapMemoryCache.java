@@ -0,0 +1,158 @@
+package com.deakishin.idtmessagingtestapp;
+
+import android.graphics.Bitmap;
+import android.support.v4.util.LruCache;
+import android.util.Log;
+
+/**
+ * In-process cache of decoded bitmaps. Bitmaps are identified by the file they
+ * were read from, the width they were scaled to and whether they were rotated.
+ * The cache is limited by the size of the bitmaps in bytes and evicts least
+ * recently used ones. It is shared by the whole process, so it survives
+ * configuration changes of activities.
+ */
+public class BitmapMemoryCache {
+	private static final String TAG = "BitmapMemoryCache";
+
+	/* Part of the available heap that the cache may occupy. */
+	private static final int HEAP_FRACTION = 8;
+
+	private static BitmapMemoryCache sInstance;
+
+	/* Cache itself. Sizes are measured in bytes. */
+	private final LruCache<String, Bitmap> mCache;
+
+	/**
+	 * Returns the cache of the process.
+	 *
+	 * @return cache instance.
+	 */
+	public static synchronized BitmapMemoryCache getInstance() {
+		if (sInstance == null) {
+			int maxBytes = (int) Math.min(Integer.MAX_VALUE, Runtime.getRuntime().maxMemory() / HEAP_FRACTION);
+			sInstance = new BitmapMemoryCache(maxBytes);
+		}
+		return sInstance;
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param maxBytes
+	 *            - budget of the cache in bytes.
+	 */
+	public BitmapMemoryCache(int maxBytes) {
+		Log.d(TAG, "Creating cache of " + maxBytes / 1024 + " KB");
+		mCache = new LruCache<String, Bitmap>(maxBytes) {
+			@Override
+			protected int sizeOf(String key, Bitmap value) {
+				return getByteSize(value);
+			}
+		};
+	}
+
+	/**
+	 * Builds a key of a bitmap.
+	 *
+	 * @param filename
+	 *            - name of the image file.
+	 * @param width
+	 *            - width the image was scaled to.
+	 * @param rotate
+	 *            - whether the image was rotated 180 degrees.
+	 * @return key to store the bitmap with.
+	 */
+	public static String getKey(String filename, int width, boolean rotate) {
+		return filename + ":" + width + ":" + (rotate ? "r" : "n");
+	}
+
+	/**
+	 * Returns a cached bitmap.
+	 *
+	 * @param key
+	 *            - key of the bitmap, see {@link #getKey(String, int, boolean)}.
+	 * @return cached bitmap or null if there's no such bitmap.
+	 */
+	public Bitmap get(String key) {
+		Bitmap bitmap = mCache.get(key);
+		if (bitmap != null && bitmap.isRecycled()) {
+			mCache.remove(key);
+			return null;
+		}
+		return bitmap;
+	}
+
+	/**
+	 * Puts a bitmap into the cache. Bitmaps larger than the whole cache are not
+	 * stored.
+	 *
+	 * @param key
+	 *            - key of the bitmap, see {@link #getKey(String, int, boolean)}.
+	 * @param bitmap
+	 *            - bitmap to store.
+	 */
+	public void put(String key, Bitmap bitmap) {
+		if (key == null || bitmap == null || getByteSize(bitmap) > mCache.maxSize()) {
+			return;
+		}
+		mCache.put(key, bitmap);
+	}
+
+	/**
+	 * Checks if the bitmap is held by the cache. Such bitmaps must not be
+	 * recycled by their users.
+	 *
+	 * @param bitmap
+	 *            - bitmap to check.
+	 * @return true if the bitmap is stored in the cache.
+	 */
+	public boolean contains(Bitmap bitmap) {
+		return bitmap != null && mCache.snapshot().containsValue(bitmap);
+	}
+
+	/**
+	 * @return current size of the cached bitmaps in bytes.
+	 */
+	public int size() {
+		return mCache.size();
+	}
+
+	/**
+	 * @return budget of the cache in bytes.
+	 */
+	public int maxSize() {
+		return mCache.maxSize();
+	}
+
+	/**
+	 * @return number of requests that returned a cached bitmap.
+	 */
+	public int getHitCount() {
+		return mCache.hitCount();
+	}
+
+	/**
+	 * @return number of requests that found no bitmap.
+	 */
+	public int getMissCount() {
+		return mCache.missCount();
+	}
+
+	/**
+	 * @return number of bitmaps evicted to keep the cache within its budget.
+	 */
+	public int getEvictionCount() {
+		return mCache.evictionCount();
+	}
+
+	@Override
+	public String toString() {
+		return "BitmapMemoryCache[size=" + size() / 1024 + " KB of " + maxSize() / 1024 + " KB, hits="
+				+ getHitCount() + ", misses=" + getMissCount() + ", evictions=" + getEvictionCount() + "]";
+	}
+
+	/* Calculates the number of bytes used for storing pixels of the bitmap. */
+	private static int getByteSize(Bitmap bitmap) {
+		return bitmap.getRowBytes() * bitmap.getHeight();
+	}
+}
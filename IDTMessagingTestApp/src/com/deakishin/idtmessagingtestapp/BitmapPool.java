@@ -0,0 +1,284 @@
+package com.deakishin.idtmessagingtestapp;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.TreeMap;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
+import android.os.Build;
+import android.util.Log;
+
+/**
+ * Pool of mutable bitmaps that are not used anymore. Instead of being recycled
+ * such bitmaps are put into the pool and then reused for decoding (see
+ * BitmapFactory.Options.inBitmap) or as a destination of transformations.
+ * Bitmaps are grouped into buckets by their size in bytes. The pool is limited
+ * by the total size of the bitmaps, the oldest ones are evicted first.
+ */
+public class BitmapPool {
+	private static final String TAG = "BitmapPool";
+
+	/* Part of the available heap that the pool may occupy. */
+	private static final int HEAP_FRACTION = 16;
+
+	/*
+	 * A bitmap is not reused for a request that needs less than
+	 * 1/MAX_SIZE_RATIO of its bytes, it would waste too much memory.
+	 */
+	private static final int MAX_SIZE_RATIO = 2;
+
+	private static BitmapPool sInstance;
+
+	/* Buckets of bitmaps by their size in bytes. */
+	private final TreeMap<Integer, LinkedList<Bitmap>> mBuckets = new TreeMap<Integer, LinkedList<Bitmap>>();
+
+	/* All pooled bitmaps in order of putting them, used for eviction. */
+	private final LinkedList<Bitmap> mOrder = new LinkedList<Bitmap>();
+
+	/* Limit and current size of the pool in bytes. */
+	private final long mMaxBytes;
+	private long mBytes;
+
+	/* Statistics. */
+	private int mHitCount;
+	private int mMissCount;
+	private int mPutCount;
+	private int mEvictionCount;
+
+	/**
+	 * Returns the pool of the process.
+	 *
+	 * @return pool instance.
+	 */
+	public static synchronized BitmapPool getInstance() {
+		if (sInstance == null) {
+			sInstance = new BitmapPool(Runtime.getRuntime().maxMemory() / HEAP_FRACTION);
+		}
+		return sInstance;
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param maxBytes
+	 *            - limit of the pool size in bytes.
+	 */
+	public BitmapPool(long maxBytes) {
+		mMaxBytes = maxBytes;
+	}
+
+	/**
+	 * Checks if bitmaps can be reused on the device. Reusing bitmaps for
+	 * decoding appeared in Honeycomb.
+	 *
+	 * @return true if the pool is usable.
+	 */
+	public static boolean isSupported() {
+		return Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB;
+	}
+
+	/**
+	 * Checks if a pooled bitmap can be of different dimensions than the
+	 * requested one. Since KitKat bitmaps can be reconfigured if they are large
+	 * enough, before that dimensions must match exactly.
+	 *
+	 * @return true if bitmaps can be reconfigured.
+	 */
+	public static boolean canReconfigure() {
+		return Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT;
+	}
+
+	/**
+	 * Puts a bitmap into the pool. Immutable and recycled bitmaps are ignored.
+	 * If the pool gets too big, the oldest bitmaps are recycled.
+	 *
+	 * @param bitmap
+	 *            - bitmap that's not used anymore. It must not be used by the
+	 *            caller after that.
+	 */
+	public synchronized void put(Bitmap bitmap) {
+		if (bitmap == null || bitmap.isRecycled()) {
+			return;
+		}
+		int size = getByteSize(bitmap);
+		if (!isSupported() || !bitmap.isMutable() || size > mMaxBytes) {
+			bitmap.recycle();
+			return;
+		}
+		if (mOrder.contains(bitmap)) {
+			return;
+		}
+
+		LinkedList<Bitmap> bucket = mBuckets.get(size);
+		if (bucket == null) {
+			bucket = new LinkedList<Bitmap>();
+			mBuckets.put(size, bucket);
+		}
+		bucket.add(bitmap);
+		mOrder.add(bitmap);
+		mBytes += size;
+		mPutCount++;
+
+		while (mBytes > mMaxBytes && !mOrder.isEmpty()) {
+			Bitmap evicted = mOrder.getFirst();
+			remove(evicted);
+			evicted.recycle();
+			mEvictionCount++;
+		}
+	}
+
+	/**
+	 * Takes a bitmap with given dimensions and config from the pool.
+	 *
+	 * @param width
+	 *            - width of the bitmap.
+	 * @param height
+	 *            - height of the bitmap.
+	 * @param config
+	 *            - config of the bitmap.
+	 * @return mutable bitmap of the given dimensions or null if there's no
+	 *         suitable bitmap in the pool. Its content is undefined.
+	 */
+	public synchronized Bitmap get(int width, int height, Config config) {
+		if (config == null) {
+			config = Config.ARGB_8888;
+		}
+		long requiredSize = (long) width * height * getBytesPerPixel(config);
+		if (requiredSize <= 0 || requiredSize > mMaxBytes) {
+			mMissCount++;
+			return null;
+		}
+
+		for (Map.Entry<Integer, LinkedList<Bitmap>> entry : mBuckets.tailMap((int) requiredSize).entrySet()) {
+			if (entry.getKey() > requiredSize * MAX_SIZE_RATIO) {
+				break;
+			}
+			for (Bitmap candidate : entry.getValue()) {
+				boolean matches = candidate.getWidth() == width && candidate.getHeight() == height
+						&& candidate.getConfig() == config;
+				if (matches || canReconfigure()) {
+					remove(candidate);
+					if (!matches) {
+						reconfigure(candidate, width, height, config);
+					}
+					mHitCount++;
+					return candidate;
+				}
+			}
+		}
+
+		mMissCount++;
+		return null;
+	}
+
+	/**
+	 * Recycles all pooled bitmaps.
+	 */
+	public synchronized void clear() {
+		for (Bitmap bitmap : mOrder) {
+			bitmap.recycle();
+		}
+		mOrder.clear();
+		mBuckets.clear();
+		mBytes = 0;
+	}
+
+	/**
+	 * @return current size of the pooled bitmaps in bytes.
+	 */
+	public synchronized long size() {
+		return mBytes;
+	}
+
+	/**
+	 * @return limit of the pool size in bytes.
+	 */
+	public long maxSize() {
+		return mMaxBytes;
+	}
+
+	/**
+	 * @return number of requests that returned a pooled bitmap.
+	 */
+	public synchronized int getHitCount() {
+		return mHitCount;
+	}
+
+	/**
+	 * @return number of requests that found no suitable bitmap.
+	 */
+	public synchronized int getMissCount() {
+		return mMissCount;
+	}
+
+	/**
+	 * @return number of bitmaps put into the pool.
+	 */
+	public synchronized int getPutCount() {
+		return mPutCount;
+	}
+
+	/**
+	 * @return number of bitmaps recycled to keep the pool within its limit.
+	 */
+	public synchronized int getEvictionCount() {
+		return mEvictionCount;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "BitmapPool[size=" + mBytes / 1024 + " KB of " + mMaxBytes / 1024 + " KB, bitmaps=" + mOrder.size()
+				+ ", hits=" + mHitCount + ", misses=" + mMissCount + ", puts=" + mPutCount + ", evictions="
+				+ mEvictionCount + "]";
+	}
+
+	/* Removes the bitmap from its bucket and from the eviction order. */
+	private void remove(Bitmap bitmap) {
+		int size = getByteSize(bitmap);
+		LinkedList<Bitmap> bucket = mBuckets.get(size);
+		if (bucket != null) {
+			for (Iterator<Bitmap> it = bucket.iterator(); it.hasNext();) {
+				if (it.next() == bitmap) {
+					it.remove();
+					break;
+				}
+			}
+			if (bucket.isEmpty()) {
+				mBuckets.remove(size);
+			}
+		}
+		mOrder.remove(bitmap);
+		mBytes -= size;
+	}
+
+	@TargetApi(19)
+	private static void reconfigure(Bitmap bitmap, int width, int height, Config config) {
+		Log.d(TAG, "Reconfiguring " + bitmap.getWidth() + "x" + bitmap.getHeight() + " to " + width + "x" + height);
+		bitmap.reconfigure(width, height, config);
+	}
+
+	/*
+	 * Returns the number of bytes the bitmap can hold. Since KitKat it can be
+	 * more than needed for its current dimensions.
+	 */
+	@TargetApi(19)
+	private static int getByteSize(Bitmap bitmap) {
+		if (canReconfigure()) {
+			return bitmap.getAllocationByteCount();
+		}
+		return bitmap.getRowBytes() * bitmap.getHeight();
+	}
+
+	/* Returns the number of bytes per pixel for the config. */
+	static int getBytesPerPixel(Config config) {
+		if (config == Config.ALPHA_8) {
+			return 1;
+		} else if (config == Config.RGB_565 || config == Config.ARGB_4444) {
+			return 2;
+		}
+		return 4;
+	}
+}
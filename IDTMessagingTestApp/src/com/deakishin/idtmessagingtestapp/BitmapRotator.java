@@ -0,0 +1,305 @@
+package com.deakishin.idtmessagingtestapp;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+/**
+ * Engine for rotating bitmaps 180 degrees. Pixels are read and written in
+ * bulk by horizontal bands of rows, every band is reversed in place, and big
+ * images are split between several cores.
+ */
+public class BitmapRotator {
+	private static final String TAG = "BitmapRotator";
+
+	/* Number of pixels processed by one band (approximately 256 KB of ints). */
+	private static final int BAND_PIXELS = 64 * 1024;
+
+	/* Images with fewer pixels are rotated in the calling thread. */
+	private static final int PARALLEL_THRESHOLD_PIXELS = 512 * 512;
+
+	/* Number of threads used for rotating big images. */
+	private static final int THREAD_COUNT = Math.max(1, Runtime.getRuntime().availableProcessors());
+
+	/* Executor shared by all rotations. */
+	private static ExecutorService sExecutor;
+
+	/* Band buffers of the worker threads, they are reused between bands. */
+	private static final ThreadLocal<int[][]> sBuffers = new ThreadLocal<int[][]>() {
+		@Override
+		protected int[][] initialValue() {
+			return new int[2][];
+		}
+	};
+
+	/**
+	 * Rotates given bitmap 180 degrees. If the bitmap is mutable it is rotated
+	 * in place and returned, otherwise the result is written to a bitmap from
+	 * the pool or to a new mutable bitmap.
+	 *
+	 * @param srcBitmap
+	 *            - bitmap to rotate.
+	 * @return rotated bitmap or null if srcBitmap is null.
+	 */
+	public static Bitmap rotate180(Bitmap srcBitmap) {
+		return rotate180(srcBitmap, (CancellationToken) null);
+	}
+
+	/**
+	 * Rotates given bitmap 180 degrees like {@link #rotate180(Bitmap)}. The
+	 * token is checked before every band, so a stale rotation stops early.
+	 *
+	 * @param srcBitmap
+	 *            - bitmap to rotate.
+	 * @param token
+	 *            - token to check or null.
+	 * @return rotated bitmap or null if srcBitmap is null.
+	 * @throws CancellationException
+	 *             if the rotation is cancelled. A mutable source bitmap is
+	 *             left partially rotated then.
+	 */
+	public static Bitmap rotate180(Bitmap srcBitmap, CancellationToken token) {
+		if (srcBitmap == null)
+			return null;
+
+		if (srcBitmap.isMutable()) {
+			return rotate180(srcBitmap, srcBitmap, token);
+		}
+		Bitmap dstBitmap = BitmapPool.getInstance().get(srcBitmap.getWidth(), srcBitmap.getHeight(),
+				srcBitmap.getConfig());
+		if (dstBitmap == null) {
+			dstBitmap = Bitmap.createBitmap(srcBitmap.getWidth(), srcBitmap.getHeight(), srcBitmap.getConfig());
+		}
+		try {
+			return rotate180(srcBitmap, dstBitmap, token);
+		} catch (CancellationException e) {
+			BitmapPool.getInstance().put(dstBitmap);
+			throw e;
+		}
+	}
+
+	/**
+	 * Rotates given bitmap 180 degrees into a reused mutable bitmap.
+	 *
+	 * @param srcBitmap
+	 *            - bitmap to rotate.
+	 * @param dstBitmap
+	 *            - mutable bitmap of the same size to write the result to. It
+	 *            can be the same object as srcBitmap, then the rotation is
+	 *            done in place.
+	 * @return dstBitmap or null if srcBitmap is null.
+	 * @throws IllegalArgumentException
+	 *             if dstBitmap is immutable or has a different size.
+	 */
+	public static Bitmap rotate180(Bitmap srcBitmap, Bitmap dstBitmap) {
+		return rotate180(srcBitmap, dstBitmap, null);
+	}
+
+	private static Bitmap rotate180(Bitmap srcBitmap, Bitmap dstBitmap, CancellationToken token) {
+		if (srcBitmap == null)
+			return null;
+
+		final int w = srcBitmap.getWidth();
+		final int h = srcBitmap.getHeight();
+		if (dstBitmap == null || !dstBitmap.isMutable() || dstBitmap.getWidth() != w || dstBitmap.getHeight() != h) {
+			throw new IllegalArgumentException("Destination bitmap must be mutable and have size " + w + "x" + h);
+		}
+
+		long startTime = System.nanoTime();
+
+		/*
+		 * In place rotation swaps top bands with the mirrored bottom ones, so
+		 * only the upper half of the rows is split into bands.
+		 */
+		boolean inPlace = srcBitmap == dstBitmap;
+		int rowsToSplit = inPlace ? (h + 1) / 2 : h;
+		int bandRows = Math.max(1, BAND_PIXELS / Math.max(1, w));
+		int bandCount = (rowsToSplit + bandRows - 1) / bandRows;
+
+		List<Callable<Void>> bands = new ArrayList<Callable<Void>>(bandCount);
+		for (int top = 0; top < rowsToSplit; top += bandRows) {
+			int bottom = Math.min(top + bandRows, rowsToSplit);
+			bands.add(inPlace ? new SwapBandTask(srcBitmap, top, bottom, token) : new CopyBandTask(srcBitmap,
+					dstBitmap, top, bottom, token));
+		}
+
+		if (bands.size() > 1 && THREAD_COUNT > 1 && (long) w * h >= PARALLEL_THRESHOLD_PIXELS) {
+			runInParallel(bands);
+		} else {
+			runInCurrentThread(bands);
+		}
+
+		long elapsedNanos = System.nanoTime() - startTime;
+		Metrics.getInstance().record(Metrics.ROTATE, elapsedNanos / 1000);
+		Log.d(TAG, "Rotated " + w + "x" + h + (inPlace ? " in place" : "") + " in " + elapsedNanos / 1000000
+				+ " ms, " + String.format("%.1f", megapixelsPerSecond(w * (long) h, elapsedNanos)) + " MP/s");
+		return dstBitmap;
+	}
+
+	/**
+	 * Calculates throughput of a rotation.
+	 *
+	 * @param pixels
+	 *            - number of rotated pixels.
+	 * @param elapsedNanos
+	 *            - time spent.
+	 * @return throughput in megapixels per second.
+	 */
+	public static double megapixelsPerSecond(long pixels, long elapsedNanos) {
+		if (elapsedNanos <= 0)
+			return 0;
+		return pixels * 1000.0 / elapsedNanos;
+	}
+
+	/*
+	 * Returns the buffer of the current thread with given index which can hold
+	 * at least size pixels.
+	 */
+	private static int[] obtainBuffer(int index, int size) {
+		int[][] buffers = sBuffers.get();
+		if (buffers[index] == null || buffers[index].length < size) {
+			buffers[index] = new int[size];
+		}
+		return buffers[index];
+	}
+
+	private static void runInCurrentThread(List<Callable<Void>> bands) {
+		try {
+			for (Callable<Void> band : bands) {
+				band.call();
+			}
+		} catch (CancellationException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static void runInParallel(List<Callable<Void>> bands) {
+		try {
+			List<Future<Void>> futures = getExecutor().invokeAll(bands);
+			for (Future<Void> future : futures) {
+				future.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof CancellationException) {
+				throw (CancellationException) e.getCause();
+			}
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+	private static synchronized ExecutorService getExecutor() {
+		if (sExecutor == null) {
+			sExecutor = Executors.newFixedThreadPool(THREAD_COUNT, new ThreadFactory() {
+				private int mCount = 0;
+
+				@Override
+				public synchronized Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, TAG + " #" + (++mCount));
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return sExecutor;
+	}
+
+	/*
+	 * Rotates the band of rows [top, bottom) of the destination bitmap. Its
+	 * pixels are the mirrored band of the source, so the band is read at once
+	 * and reversed as a whole.
+	 */
+	private static class CopyBandTask implements Callable<Void> {
+		private final Bitmap mSrc;
+		private final Bitmap mDst;
+		private final int mTop;
+		private final int mBottom;
+		private final CancellationToken mToken;
+
+		CopyBandTask(Bitmap src, Bitmap dst, int top, int bottom, CancellationToken token) {
+			mSrc = src;
+			mDst = dst;
+			mTop = top;
+			mBottom = bottom;
+			mToken = token;
+		}
+
+		@Override
+		public Void call() {
+			if (mToken != null) {
+				mToken.throwIfCancelled();
+			}
+			int w = mSrc.getWidth();
+			int h = mSrc.getHeight();
+			int rows = mBottom - mTop;
+			int size = rows * w;
+			int[] pixels = obtainBuffer(0, size);
+			mSrc.getPixels(pixels, 0, w, 0, h - mBottom, w, rows);
+			ImageKernels.reverse(pixels, 0, size);
+			mDst.setPixels(pixels, 0, w, 0, mTop, w, rows);
+			return null;
+		}
+	}
+
+	/*
+	 * Rotates a mutable bitmap in place by swapping the band of rows [top,
+	 * bottom) from the upper half with the mirrored band from the lower half.
+	 * The bands may overlap in the middle row of an image with odd height.
+	 */
+	private static class SwapBandTask implements Callable<Void> {
+		private final Bitmap mBitmap;
+		private final int mTop;
+		private final int mBottom;
+		private final CancellationToken mToken;
+
+		SwapBandTask(Bitmap bitmap, int top, int bottom, CancellationToken token) {
+			mBitmap = bitmap;
+			mTop = top;
+			mBottom = bottom;
+			mToken = token;
+		}
+
+		@Override
+		public Void call() {
+			if (mToken != null) {
+				mToken.throwIfCancelled();
+			}
+			int w = mBitmap.getWidth();
+			int h = mBitmap.getHeight();
+			int rows = mBottom - mTop;
+			int mirrorTop = h - mBottom;
+			int size = rows * w;
+
+			int[] upper = obtainBuffer(0, size);
+			mBitmap.getPixels(upper, 0, w, 0, mTop, w, rows);
+			ImageKernels.reverse(upper, 0, size);
+
+			if (mirrorTop == mTop) {
+				/* The single middle band of an image. */
+				mBitmap.setPixels(upper, 0, w, 0, mTop, w, rows);
+				return null;
+			}
+
+			int[] lower = obtainBuffer(1, size);
+			mBitmap.getPixels(lower, 0, w, 0, mirrorTop, w, rows);
+			ImageKernels.reverse(lower, 0, size);
+
+			mBitmap.setPixels(lower, 0, w, 0, mTop, w, rows);
+			mBitmap.setPixels(upper, 0, w, 0, mirrorTop, w, rows);
+			return null;
+		}
+	}
+}
@@ -0,0 +1,70 @@
+package com.deakishin.idtmessagingtestapp;
+
+import java.util.concurrent.CancellationException;
+
+import android.graphics.BitmapFactory;
+
+/**
+ * Token for cooperative cancellation of a decode. Long operations check it
+ * between steps, a decoder that is running at the moment is asked to stop
+ * through its options.
+ */
+public class CancellationToken {
+
+	private volatile boolean mCancelled;
+
+	/* Options of the running decode, if any. */
+	private BitmapFactory.Options mOptions;
+
+	/**
+	 * Cancels the operation. It stops at the next check.
+	 */
+	public void cancel() {
+		BitmapFactory.Options options;
+		synchronized (this) {
+			mCancelled = true;
+			options = mOptions;
+		}
+		if (options != null) {
+			options.requestCancelDecode();
+		}
+	}
+
+	/**
+	 * @return true if the operation is cancelled.
+	 */
+	public boolean isCancelled() {
+		return mCancelled;
+	}
+
+	/**
+	 * Throws an exception if the operation is cancelled.
+	 *
+	 * @throws CancellationException
+	 *             if the operation is cancelled.
+	 */
+	public void throwIfCancelled() {
+		if (mCancelled) {
+			throw new CancellationException();
+		}
+	}
+
+	/**
+	 * Sets options of the decode that is about to start, so it can be stopped
+	 * by {@link #cancel()}. The decoder stops only on some Android versions,
+	 * otherwise the result is just dropped.
+	 *
+	 * @param options
+	 *            - options of the decode or null when it's finished.
+	 */
+	public void setDecodeOptions(BitmapFactory.Options options) {
+		boolean cancelled;
+		synchronized (this) {
+			mOptions = options;
+			cancelled = mCancelled;
+		}
+		if (cancelled && options != null) {
+			options.requestCancelDecode();
+		}
+	}
+}
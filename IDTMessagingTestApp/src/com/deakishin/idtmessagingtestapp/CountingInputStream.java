@@ -0,0 +1,64 @@
+package com.deakishin.idtmessagingtestapp;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * InputStream that counts bytes read from the underlying stream.
+ */
+public class CountingInputStream extends FilterInputStream {
+
+	/* Number of bytes read so far. */
+	private long mCount;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param in
+	 *            - stream to count bytes of.
+	 */
+	public CountingInputStream(InputStream in) {
+		super(in);
+	}
+
+	/**
+	 * @return number of bytes read from the underlying stream.
+	 */
+	public long getCount() {
+		return mCount;
+	}
+
+	@Override
+	public int read() throws IOException {
+		int b = super.read();
+		if (b != -1) {
+			mCount++;
+		}
+		return b;
+	}
+
+	@Override
+	public int read(byte[] buffer, int offset, int count) throws IOException {
+		int bytesRead = super.read(buffer, offset, count);
+		if (bytesRead > 0) {
+			mCount += bytesRead;
+		}
+		return bytesRead;
+	}
+
+	@Override
+	public long skip(long count) throws IOException {
+		long skipped = super.skip(count);
+		if (skipped > 0) {
+			mCount += skipped;
+		}
+		return skipped;
+	}
+
+	/* Counted bytes can't be "unread", so marking is not supported. */
+	@Override
+	public boolean markSupported() {
+		return false;
+	}
+}
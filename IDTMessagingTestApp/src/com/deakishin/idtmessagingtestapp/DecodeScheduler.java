@@ -0,0 +1,254 @@
+package com.deakishin.idtmessagingtestapp;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+/**
+ * Scheduler of image decodes for views. There's at most one request per
+ * target: a new request for the same target cancels the previous one, which
+ * is dropped if it hasn't started yet or stopped at the next check if it's
+ * running. Waiting requests are started newest first, since the latest one is
+ * the most likely to still be needed.
+ * <p>
+ * Results are delivered on the main thread. Methods are expected to be called
+ * from the main thread too.
+ */
+public class DecodeScheduler {
+	private static final String TAG = "DecodeScheduler";
+
+	/*
+	 * Number of decoding threads. Decodes of big images are limited by memory
+	 * rather than by cores, so they run one at a time.
+	 */
+	private static final int THREAD_COUNT = 1;
+
+	private static DecodeScheduler sDecodeScheduler;
+
+	/**
+	 * Decode to run in background.
+	 */
+	public interface Decoder {
+		/**
+		 * Decodes the image. Runs in a background thread.
+		 *
+		 * @param token
+		 *            - token to check, the decode should stop when it's
+		 *            cancelled.
+		 * @return decoded bitmap or null.
+		 */
+		Bitmap decode(CancellationToken token);
+	}
+
+	/**
+	 * Receiver of decoded images.
+	 */
+	public interface Callback {
+		/**
+		 * Called on the main thread when the latest request for the target is
+		 * decoded.
+		 *
+		 * @param bitmap
+		 *            - decoded bitmap or null if decoding failed.
+		 */
+		void onDecoded(Bitmap bitmap);
+	}
+
+	private final ThreadPoolExecutor mExecutor;
+	private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+	/* The latest request of every target. */
+	private final Map<Object, Request> mRequests = new HashMap<Object, Request>();
+
+	/* Sequence number of the next request, greater numbers are started first. */
+	private long mNextSequence;
+
+	/* Statistics. */
+	private int mSubmittedCount;
+	private int mMergedCount;
+	private int mWastedCount;
+	private int mDeliveredCount;
+
+	/**
+	 * @return the instance of the scheduler.
+	 */
+	public static synchronized DecodeScheduler getInstance() {
+		if (sDecodeScheduler == null) {
+			sDecodeScheduler = new DecodeScheduler();
+		}
+		return sDecodeScheduler;
+	}
+
+	private DecodeScheduler() {
+		mExecutor = new ThreadPoolExecutor(THREAD_COUNT, THREAD_COUNT, 0, TimeUnit.MILLISECONDS,
+				new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+					private int mCount = 0;
+
+					@Override
+					public synchronized Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, TAG + " #" + (++mCount));
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+	}
+
+	/**
+	 * Schedules a decode for the target. The previous request for the same
+	 * target is cancelled.
+	 *
+	 * @param target
+	 *            - object the image is decoded for, usually a view.
+	 * @param decoder
+	 *            - decode to run.
+	 * @param callback
+	 *            - receiver of the result.
+	 */
+	public synchronized void submit(Object target, Decoder decoder, Callback callback) {
+		Request request = new Request(target, decoder, callback, mNextSequence++);
+		mSubmittedCount++;
+		cancel(mRequests.put(target, request));
+		mExecutor.execute(request);
+	}
+
+	/**
+	 * Cancels the request for the target, if any. Its result won't be
+	 * delivered.
+	 *
+	 * @param target
+	 *            - object the image is decoded for.
+	 */
+	public synchronized void cancel(Object target) {
+		cancel(mRequests.remove(target));
+	}
+
+	/**
+	 * @param target
+	 *            - object the image is decoded for.
+	 * @return true if there's a request for the target that isn't delivered
+	 *         yet.
+	 */
+	public synchronized boolean isPending(Object target) {
+		return mRequests.containsKey(target);
+	}
+
+	/*
+	 * Cancels a replaced request. A request that hasn't started is removed
+	 * from the queue, so it costs nothing.
+	 */
+	private void cancel(Request request) {
+		if (request == null) {
+			return;
+		}
+		request.mToken.cancel();
+		if (mExecutor.remove(request)) {
+			mMergedCount++;
+		}
+	}
+
+	/*
+	 * Delivers the result of a request on the main thread if it's still the
+	 * latest one for its target.
+	 */
+	private void deliver(final Request request, final Bitmap bitmap) {
+		mMainHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				boolean latest;
+				synchronized (DecodeScheduler.this) {
+					latest = !request.mToken.isCancelled() && mRequests.get(request.mTarget) == request;
+					if (latest) {
+						mRequests.remove(request.mTarget);
+						mDeliveredCount++;
+					} else {
+						mWastedCount++;
+					}
+				}
+				if (latest) {
+					request.mCallback.onDecoded(bitmap);
+				} else if (bitmap != null && !BitmapMemoryCache.getInstance().contains(bitmap)) {
+					BitmapPool.getInstance().put(bitmap);
+				}
+			}
+		});
+	}
+
+	/**
+	 * @return number of submitted requests.
+	 */
+	public synchronized int getSubmittedCount() {
+		return mSubmittedCount;
+	}
+
+	/**
+	 * @return number of requests that were replaced before they started.
+	 */
+	public synchronized int getMergedCount() {
+		return mMergedCount;
+	}
+
+	/**
+	 * @return number of requests that were started, but their result wasn't
+	 *         needed anymore.
+	 */
+	public synchronized int getWastedCount() {
+		return mWastedCount;
+	}
+
+	/**
+	 * @return number of results delivered to callbacks.
+	 */
+	public synchronized int getDeliveredCount() {
+		return mDeliveredCount;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "DecodeScheduler[submitted=" + mSubmittedCount + ", merged=" + mMergedCount + ", wasted="
+				+ mWastedCount + ", delivered=" + mDeliveredCount + "]";
+	}
+
+	/*
+	 * Request of a decode. Requests are ordered newest first in the queue.
+	 */
+	private class Request implements Runnable, Comparable<Request> {
+		private final Object mTarget;
+		private final Decoder mDecoder;
+		private final Callback mCallback;
+		private final long mSequence;
+		private final CancellationToken mToken = new CancellationToken();
+
+		Request(Object target, Decoder decoder, Callback callback, long sequence) {
+			mTarget = target;
+			mDecoder = decoder;
+			mCallback = callback;
+			mSequence = sequence;
+		}
+
+		@Override
+		public void run() {
+			Bitmap bitmap = null;
+			if (!mToken.isCancelled()) {
+				try {
+					bitmap = mDecoder.decode(mToken);
+				} catch (RuntimeException e) {
+					Log.e(TAG, "Error decoding: " + e);
+				}
+			}
+			deliver(this, bitmap);
+		}
+
+		@Override
+		public int compareTo(Request another) {
+			return mSequence > another.mSequence ? -1 : (mSequence < another.mSequence ? 1 : 0);
+		}
+	}
+}
@@ -0,0 +1,634 @@
+package com.deakishin.idtmessagingtestapp;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import android.util.Log;
+
+/**
+ * Size-bounded store of image files in a directory. Images are kept in LRU
+ * order and the least recently used ones are deleted when the total size
+ * exceeds the budget. Derivatives of an image are accounted and deleted
+ * together with it.
+ * <p>
+ * The index is kept in memory and every change is appended to a journal file
+ * as one line, so it's rebuilt at startup by reading one file instead of
+ * listing and inspecting the directory:
+ *
+ * <pre>
+ * WRITE name size     - image is added or replaced
+ * DERIVE name derivative size - derivative of the image is added
+ * READ name           - image is used
+ * REMOVE name         - image is deleted
+ * </pre>
+ *
+ * The journal is compacted when it has many more lines than the index.
+ * <p>
+ * The index is loaded on a background thread started with the store, and
+ * the operations that come before it's loaded wait for it. Images can be
+ * pinned, e.g. while they are displayed, so they are never deleted to fit
+ * the limit.
+ */
+public class DiskImageStore {
+	private static final String TAG = "DiskImageStore";
+
+	/** Default limit of the store size. */
+	public static final long DEFAULT_MAX_SIZE = 64 * 1024 * 1024;
+
+	/* Names of the journal and its temporary copy used for compacting. */
+	private static final String JOURNAL_FILENAME = "journal";
+	private static final String JOURNAL_TMP_FILENAME = "journal.tmp";
+
+	/* First line of the journal, identifies its format. */
+	private static final String JOURNAL_HEADER = "IDT-DISK-STORE 1";
+
+	private static final String WRITE = "WRITE";
+	private static final String DERIVE = "DERIVE";
+	private static final String READ = "READ";
+	private static final String REMOVE = "REMOVE";
+
+	/* Number of redundant journal lines that triggers compacting. */
+	private static final int REDUNDANT_LINES_THRESHOLD = 2000;
+
+	/* Files that are not images: partial downloads, their state, temp files, indexes. */
+	private static final Pattern SERVICE_FILE_PATTERN = Pattern.compile(".*\\.(part|meta|tmp|idx)$");
+
+	/* Derivatives are named <original>.w<width>[r]. */
+	private static final Pattern DERIVATIVE_PATTERN = Pattern.compile("(.+)\\.w\\d+r?$");
+
+	private static DiskImageStore sInstance;
+
+	/*
+	 * Entry of the index.
+	 */
+	private static class Entry {
+		/* Size of the image and its derivatives. */
+		long size;
+		/* Names of derivatives. */
+		final List<String> derivatives = new ArrayList<String>(1);
+	}
+
+	private final File mDirectory;
+	private long mMaxSize;
+
+	/* Entries by image name in access order. */
+	private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+	private long mSize;
+	private int mHitCount;
+	private int mMissCount;
+	private int mEvictionCount;
+
+	private Writer mJournalWriter;
+	private int mRedundantLines;
+
+	/* Whether the index is loaded from the journal or the directory. */
+	private boolean mLoaded;
+
+	/*
+	 * Number of pins by image name, pinned images are not deleted. The map
+	 * has its own lock, so the UI thread pins images without waiting for the
+	 * index to load.
+	 */
+	private final Map<String, Integer> mPins = new HashMap<String, Integer>();
+
+	/**
+	 * Returns the store of the directory, creating it if necessary. The store
+	 * is shared by the whole process.
+	 *
+	 * @param directory
+	 *            - directory with images.
+	 * @return store instance.
+	 */
+	public static synchronized DiskImageStore getInstance(File directory) {
+		if (sInstance == null || !sInstance.mDirectory.equals(directory)) {
+			sInstance = new DiskImageStore(directory, DEFAULT_MAX_SIZE);
+		}
+		return sInstance;
+	}
+
+	/**
+	 * Constructor. The index is loaded on a background thread: the journal is
+	 * read or, if there's none, files in the directory are indexed. Then the
+	 * store is trimmed to the limit.
+	 *
+	 * @param directory
+	 *            - directory with images.
+	 * @param maxSize
+	 *            - limit of the store size in bytes.
+	 */
+	public DiskImageStore(File directory, long maxSize) {
+		mDirectory = directory;
+		mMaxSize = maxSize;
+
+		Thread loader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				trimToSize(null);
+			}
+		}, TAG);
+		loader.setPriority(Thread.MIN_PRIORITY);
+		loader.start();
+	}
+
+	/**
+	 * Pins an image, so it's not deleted to fit the limit until it's unpinned
+	 * as many times as it was pinned. An image that's not stored yet can be
+	 * pinned as well.
+	 *
+	 * @param filename
+	 *            - name of the image file.
+	 */
+	public void pin(String filename) {
+		synchronized (mPins) {
+			Integer count = mPins.get(filename);
+			mPins.put(filename, count == null ? 1 : count + 1);
+		}
+	}
+
+	/**
+	 * Unpins an image pinned by {@link #pin(String)}.
+	 *
+	 * @param filename
+	 *            - name of the image file.
+	 */
+	public void unpin(String filename) {
+		synchronized (mPins) {
+			Integer count = mPins.get(filename);
+			if (count == null || count <= 1) {
+				mPins.remove(filename);
+			} else {
+				mPins.put(filename, count - 1);
+			}
+		}
+	}
+
+	/**
+	 * Records that an image has been written.
+	 *
+	 * @param filename
+	 *            - name of the image file.
+	 */
+	public void recordWrite(String filename) {
+		long length = new File(mDirectory, filename).length();
+		synchronized (this) {
+			ensureLoaded();
+			Entry entry = mEntries.get(filename);
+			if (entry == null) {
+				entry = new Entry();
+				mEntries.put(filename, entry);
+			} else {
+				/* Derivatives of the replaced image are stale. */
+				deleteDerivatives(entry);
+				mSize -= entry.size;
+				mRedundantLines++;
+			}
+			entry.size = length;
+			mSize += length;
+			appendJournal(WRITE + " " + filename + " " + length);
+		}
+		trimToSize(filename);
+	}
+
+	/**
+	 * Records that a derivative of an image has been written.
+	 *
+	 * @param filename
+	 *            - name of the original image file.
+	 * @param derivative
+	 *            - name of the derivative file.
+	 */
+	public void recordDerivative(String filename, String derivative) {
+		long length = new File(mDirectory, derivative).length();
+		synchronized (this) {
+			ensureLoaded();
+			Entry entry = mEntries.get(filename);
+			if (entry == null || entry.derivatives.contains(derivative)) {
+				return;
+			}
+			entry.derivatives.add(derivative);
+			entry.size += length;
+			mSize += length;
+			appendJournal(DERIVE + " " + filename + " " + derivative + " " + length);
+		}
+		trimToSize(filename);
+	}
+
+	/**
+	 * Records that an image is used, so it becomes the most recently used one.
+	 *
+	 * @param filename
+	 *            - name of the image file.
+	 * @return true if the image is in the store.
+	 */
+	public synchronized boolean recordRead(String filename) {
+		ensureLoaded();
+		if (mEntries.get(filename) == null) {
+			mMissCount++;
+			return false;
+		}
+		mHitCount++;
+		mRedundantLines++;
+		appendJournal(READ + " " + filename);
+		return true;
+	}
+
+	/**
+	 * Records that an image has been deleted. Its derivatives have to be
+	 * deleted by the caller.
+	 *
+	 * @param filename
+	 *            - name of the image file.
+	 * @return names of the derivatives of the image, empty if it's not in the
+	 *         store.
+	 */
+	public synchronized List<String> recordRemove(String filename) {
+		ensureLoaded();
+		Entry entry = mEntries.remove(filename);
+		if (entry == null) {
+			return new ArrayList<String>(0);
+		}
+		mSize -= entry.size;
+		mRedundantLines += 2;
+		appendJournal(REMOVE + " " + filename);
+		return new ArrayList<String>(entry.derivatives);
+	}
+
+	/**
+	 * Sets the limit of the store size, the least recently used images are
+	 * deleted if it's exceeded.
+	 *
+	 * @param maxSize
+	 *            - limit in bytes.
+	 */
+	public void setMaxSize(long maxSize) {
+		synchronized (this) {
+			mMaxSize = maxSize;
+		}
+		trimToSize(null);
+	}
+
+	/**
+	 * @return size of the stored images in bytes.
+	 */
+	public synchronized long size() {
+		ensureLoaded();
+		return mSize;
+	}
+
+	/**
+	 * @return limit of the store size in bytes.
+	 */
+	public synchronized long maxSize() {
+		return mMaxSize;
+	}
+
+	/**
+	 * @return number of stored images.
+	 */
+	public synchronized int getEntryCount() {
+		ensureLoaded();
+		return mEntries.size();
+	}
+
+	/**
+	 * @return number of reads of stored images.
+	 */
+	public synchronized int getHitCount() {
+		return mHitCount;
+	}
+
+	/**
+	 * @return number of reads of images that are not in the store.
+	 */
+	public synchronized int getMissCount() {
+		return mMissCount;
+	}
+
+	/**
+	 * @return share of reads of stored images, 0 if there were no reads.
+	 */
+	public synchronized float getHitRate() {
+		int total = mHitCount + mMissCount;
+		return total > 0 ? (float) mHitCount / total : 0;
+	}
+
+	/**
+	 * @return number of images deleted to fit the limit.
+	 */
+	public synchronized int getEvictionCount() {
+		return mEvictionCount;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "DiskImageStore[size=" + mSize / 1024 + " KB of " + mMaxSize / 1024 + " KB, entries="
+				+ mEntries.size() + ", hits=" + mHitCount + ", misses=" + mMissCount + ", evictions="
+				+ mEvictionCount + "]";
+	}
+
+	private boolean isPinned(String filename) {
+		synchronized (mPins) {
+			return mPins.containsKey(filename);
+		}
+	}
+
+	/*
+	 * Deletes the least recently used images until the size fits the limit.
+	 * The image that has just been written and pinned images are never
+	 * deleted.
+	 */
+	private void trimToSize(String keep) {
+		List<File> files = new ArrayList<File>();
+		synchronized (this) {
+			ensureLoaded();
+			Iterator<Map.Entry<String, Entry>> it = mEntries.entrySet().iterator();
+			while (mSize > mMaxSize && it.hasNext()) {
+				Map.Entry<String, Entry> mapEntry = it.next();
+				if (mapEntry.getKey().equals(keep) || isPinned(mapEntry.getKey())) {
+					continue;
+				}
+				Entry entry = mapEntry.getValue();
+				it.remove();
+				mSize -= entry.size;
+				mEvictionCount++;
+				mRedundantLines += 2;
+				appendJournal(REMOVE + " " + mapEntry.getKey());
+				files.add(new File(mDirectory, mapEntry.getKey()));
+				for (String derivative : entry.derivatives) {
+					files.add(new File(mDirectory, derivative));
+				}
+			}
+			if (mRedundantLines >= REDUNDANT_LINES_THRESHOLD && mRedundantLines >= mEntries.size()) {
+				compactJournal();
+			}
+		}
+
+		/* Deleting is slow on external storage, so it's done without the lock. */
+		for (File file : files) {
+			if (!file.delete()) {
+				Log.e(TAG, "Unable to delete " + file.getName());
+			}
+		}
+		if (!files.isEmpty()) {
+			Log.d(TAG, "Deleted " + files.size() + " files: " + this);
+		}
+	}
+
+	/*
+	 * Loads the index on the first access. Called with the lock held. The
+	 * journal is rewritten only if there's none, it has broken lines or it
+	 * has too many redundant ones.
+	 */
+	private void ensureLoaded() {
+		if (mLoaded) {
+			return;
+		}
+		mLoaded = true;
+
+		long startTime = System.currentTimeMillis();
+		int journalState = readJournal();
+		boolean rebuilt = journalState >= 0;
+		if (!rebuilt) {
+			indexDirectory();
+		}
+		if (journalState != 0
+				|| (mRedundantLines >= REDUNDANT_LINES_THRESHOLD && mRedundantLines >= mEntries.size())) {
+			compactJournal();
+		}
+		Log.d(TAG, (rebuilt ? "Journal is read" : "Directory is indexed") + " in "
+				+ (System.currentTimeMillis() - startTime) + " ms: " + this);
+	}
+
+	private void deleteDerivatives(Entry entry) {
+		for (String derivative : entry.derivatives) {
+			new File(mDirectory, derivative).delete();
+		}
+		entry.derivatives.clear();
+	}
+
+	/*
+	 * Restores the index from the journal. Returns the number of skipped
+	 * broken lines, or -1 if there's no valid journal.
+	 */
+	private int readJournal() {
+		File journal = new File(mDirectory, JOURNAL_FILENAME);
+		if (!journal.isFile()) {
+			return -1;
+		}
+
+		BufferedReader reader = null;
+		try {
+			reader = new BufferedReader(new InputStreamReader(new FileInputStream(journal), "UTF-8"));
+			if (!JOURNAL_HEADER.equals(reader.readLine())) {
+				Log.e(TAG, "Unknown journal format");
+				return -1;
+			}
+			int lineCount = 0;
+			int skippedCount = 0;
+			String line;
+			while ((line = reader.readLine()) != null) {
+				lineCount++;
+				if (!replayJournalLine(line)) {
+					skippedCount++;
+				}
+			}
+			/* Compacted journal has one line per image and derivative. */
+			int neededCount = mEntries.size();
+			for (Entry entry : mEntries.values()) {
+				neededCount += entry.derivatives.size();
+			}
+			mRedundantLines = Math.max(0, lineCount - neededCount);
+			return skippedCount;
+		} catch (IOException e) {
+			Log.e(TAG, "Error reading journal: " + e);
+			mEntries.clear();
+			mSize = 0;
+			return -1;
+		} finally {
+			if (reader != null) {
+				try {
+					reader.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	/* Applies a line of the journal to the index. Returns false if the line is broken. */
+	private boolean replayJournalLine(String line) {
+		String[] parts = line.split(" ");
+		try {
+			if (WRITE.equals(parts[0]) && parts.length == 3) {
+				Entry entry = mEntries.remove(parts[1]);
+				if (entry != null) {
+					mSize -= entry.size;
+				}
+				entry = new Entry();
+				entry.size = Long.parseLong(parts[2]);
+				mEntries.put(parts[1], entry);
+				mSize += entry.size;
+			} else if (DERIVE.equals(parts[0]) && parts.length == 4) {
+				Entry entry = mEntries.get(parts[1]);
+				if (entry != null && !entry.derivatives.contains(parts[2])) {
+					long length = Long.parseLong(parts[3]);
+					entry.derivatives.add(parts[2]);
+					entry.size += length;
+					mSize += length;
+				}
+			} else if (READ.equals(parts[0]) && parts.length == 2) {
+				mEntries.get(parts[1]);
+			} else if (REMOVE.equals(parts[0]) && parts.length == 2) {
+				Entry entry = mEntries.remove(parts[1]);
+				if (entry != null) {
+					mSize -= entry.size;
+				}
+			} else {
+				/* The last line may be cut if the process was killed. */
+				Log.e(TAG, "Skipping journal line: " + line);
+				return false;
+			}
+			return true;
+		} catch (NumberFormatException e) {
+			Log.e(TAG, "Skipping journal line: " + line);
+			return false;
+		}
+	}
+
+	/*
+	 * Builds the index from the files in the directory when there's no
+	 * journal, e.g. on the first start. Older files are considered less
+	 * recently used.
+	 */
+	private void indexDirectory() {
+		File[] files = mDirectory.listFiles();
+		if (files == null) {
+			return;
+		}
+		Arrays.sort(files, new Comparator<File>() {
+			@Override
+			public int compare(File lhs, File rhs) {
+				long l = lhs.lastModified();
+				long r = rhs.lastModified();
+				return l < r ? -1 : (l == r ? 0 : 1);
+			}
+		});
+
+		List<File> derivatives = new ArrayList<File>();
+		for (File file : files) {
+			String name = file.getName();
+			if (!file.isFile() || name.startsWith(JOURNAL_FILENAME) || name.indexOf(' ') >= 0
+					|| SERVICE_FILE_PATTERN.matcher(name).matches()) {
+				continue;
+			}
+			if (DERIVATIVE_PATTERN.matcher(name).matches()) {
+				derivatives.add(file);
+				continue;
+			}
+			Entry entry = new Entry();
+			entry.size = file.length();
+			mEntries.put(name, entry);
+			mSize += entry.size;
+		}
+		for (File file : derivatives) {
+			Matcher matcher = DERIVATIVE_PATTERN.matcher(file.getName());
+			matcher.matches();
+			Entry entry = mEntries.get(matcher.group(1));
+			if (entry != null) {
+				entry.derivatives.add(file.getName());
+				entry.size += file.length();
+				mSize += file.length();
+			} else {
+				/* Derivative of a deleted image. */
+				file.delete();
+			}
+		}
+	}
+
+	/*
+	 * Rewrites the journal with one line per entry, so its size stays
+	 * proportional to the number of images.
+	 */
+	private void compactJournal() {
+		closeJournal();
+		File tmp = new File(mDirectory, JOURNAL_TMP_FILENAME);
+		Writer writer = null;
+		try {
+			writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8"));
+			writer.write(JOURNAL_HEADER + "\n");
+			for (Map.Entry<String, Entry> mapEntry : mEntries.entrySet()) {
+				Entry entry = mapEntry.getValue();
+				long size = entry.size;
+				StringBuilder derivativeLines = new StringBuilder();
+				for (String derivative : entry.derivatives) {
+					long length = new File(mDirectory, derivative).length();
+					size -= length;
+					derivativeLines.append(DERIVE).append(' ').append(mapEntry.getKey()).append(' ')
+							.append(derivative).append(' ').append(length).append('\n');
+				}
+				writer.write(WRITE + " " + mapEntry.getKey() + " " + Math.max(0, size) + "\n");
+				writer.write(derivativeLines.toString());
+			}
+			writer.close();
+			writer = null;
+
+			File journal = new File(mDirectory, JOURNAL_FILENAME);
+			if (!tmp.renameTo(journal) && !(journal.delete() && tmp.renameTo(journal))) {
+				throw new IOException("Unable to rename " + tmp.getName());
+			}
+			mRedundantLines = 0;
+		} catch (IOException e) {
+			Log.e(TAG, "Error compacting journal: " + e);
+		} finally {
+			if (writer != null) {
+				try {
+					writer.close();
+				} catch (IOException e) {
+				}
+			}
+			tmp.delete();
+		}
+	}
+
+	/* Appends a line to the journal. Errors only cost the LRU order. */
+	private void appendJournal(String line) {
+		try {
+			if (mJournalWriter == null) {
+				mJournalWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(new File(
+						mDirectory, JOURNAL_FILENAME), true), "UTF-8"));
+			}
+			mJournalWriter.write(line + "\n");
+			mJournalWriter.flush();
+		} catch (IOException e) {
+			Log.e(TAG, "Error writing journal: " + e);
+			closeJournal();
+		}
+	}
+
+	private void closeJournal() {
+		if (mJournalWriter != null) {
+			try {
+				mJournalWriter.close();
+			} catch (IOException e) {
+			}
+			mJournalWriter = null;
+		}
+	}
+}
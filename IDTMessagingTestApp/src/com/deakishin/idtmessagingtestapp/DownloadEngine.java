@@ -0,0 +1,280 @@
+package com.deakishin.idtmessagingtestapp;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import android.util.Log;
+
+/**
+ * Engine that runs several downloads at once. Jobs wait in a queue until there
+ * is a free worker and a free connection slot of their host in the
+ * {@link HostLimiter}. Requests for a url that's already queued or running are
+ * merged into the existing job.
+ */
+public class DownloadEngine {
+	private static final String TAG = "DownloadEngine";
+
+	/** Default number of workers. */
+	public static final int DEFAULT_MAX_WORKERS = 4;
+
+	/** Default number of jobs running for one host at once. */
+	public static final int DEFAULT_MAX_PER_HOST = HostLimiter.DEFAULT_MAX_PER_HOST;
+
+	/* Number of finished jobs kept for querying their state. */
+	private static final int MAX_FINISHED_JOBS = 64;
+
+	/**
+	 * Performs the actual work of jobs.
+	 */
+	public interface Downloader {
+		/**
+		 * Downloads data of the job. Called in a worker thread.
+		 *
+		 * @param job
+		 *            - job to perform.
+		 * @return name of the file the data is saved to, or null if an error
+		 *         occurred.
+		 */
+		String download(DownloadJob job);
+	}
+
+	/**
+	 * Listener of jobs. Methods are called in worker threads.
+	 */
+	public interface Listener {
+		/**
+		 * Called when a job is finished successfully or not.
+		 *
+		 * @param job
+		 *            - finished job.
+		 */
+		void onJobFinished(DownloadJob job);
+
+		/**
+		 * Called when the last active job is finished.
+		 */
+		void onIdle();
+	}
+
+	private final Downloader mDownloader;
+	private final int mMaxWorkers;
+	private final HostLimiter mHostLimiter;
+	private final ExecutorService mExecutor;
+
+	private final List<Listener> mListeners = new ArrayList<Listener>();
+
+	/* Jobs waiting for a worker. */
+	private final LinkedList<DownloadJob> mQueue = new LinkedList<DownloadJob>();
+
+	/* Queued and running jobs by their url. */
+	private final Map<String, DownloadJob> mActiveJobs = new HashMap<String, DownloadJob>();
+
+	private int mRunningCount;
+
+	/* All known jobs by id, finished ones are dropped in order of creation. */
+	private final LinkedHashMap<Integer, DownloadJob> mJobs = new LinkedHashMap<Integer, DownloadJob>();
+
+	private int mLastJobId;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param downloader
+	 *            - object that performs the work.
+	 * @param maxWorkers
+	 *            - number of jobs running at once.
+	 * @param maxPerHost
+	 *            - number of jobs running for one host at once.
+	 */
+	public DownloadEngine(Downloader downloader, int maxWorkers, int maxPerHost) {
+		this(downloader, maxWorkers, new HostLimiter(maxPerHost));
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param downloader
+	 *            - object that performs the work.
+	 * @param maxWorkers
+	 *            - number of jobs running at once.
+	 * @param hostLimiter
+	 *            - limiter of connections to one host. Every running job holds
+	 *            one slot of its host, the downloader may take more for
+	 *            additional connections.
+	 */
+	public DownloadEngine(Downloader downloader, int maxWorkers, HostLimiter hostLimiter) {
+		mDownloader = downloader;
+		mMaxWorkers = Math.max(1, maxWorkers);
+		mHostLimiter = hostLimiter;
+		mExecutor = Executors.newFixedThreadPool(mMaxWorkers, new ThreadFactory() {
+			private int mCount = 0;
+
+			@Override
+			public synchronized Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, TAG + " #" + (++mCount));
+				thread.setPriority(Thread.MIN_PRIORITY);
+				return thread;
+			}
+		});
+		/* Slots released by jobs or by other users of the limiter may let queued jobs run. */
+		mHostLimiter.addListener(new HostLimiter.Listener() {
+			@Override
+			public void onReleased(String host) {
+				synchronized (DownloadEngine.this) {
+					schedule();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Adds a listener of jobs.
+	 *
+	 * @param listener
+	 *            - listener to add.
+	 */
+	public synchronized void addListener(Listener listener) {
+		if (!mListeners.contains(listener)) {
+			mListeners.add(listener);
+		}
+	}
+
+	/**
+	 * Removes a listener of jobs.
+	 *
+	 * @param listener
+	 *            - listener to remove.
+	 */
+	public synchronized void removeListener(Listener listener) {
+		mListeners.remove(listener);
+	}
+
+	/**
+	 * Enqueues downloading from the url. If there's an active job for this url,
+	 * it is returned instead of creating a new one.
+	 *
+	 * @param url
+	 *            - url to download from.
+	 * @param displayWidth
+	 *            - width of the region the image will be displayed in, 0 if
+	 *            it's unknown.
+	 * @return job of downloading.
+	 */
+	public synchronized DownloadJob enqueue(String url, int displayWidth) {
+		DownloadJob job = mActiveJobs.get(url);
+		if (job != null) {
+			Log.d(TAG, "Merging request into " + job);
+			return job;
+		}
+
+		job = new DownloadJob(++mLastJobId, url, displayWidth);
+		mJobs.put(job.getId(), job);
+		mActiveJobs.put(url, job);
+		mQueue.add(job);
+		Log.d(TAG, "Enqueued " + job);
+		trimFinishedJobs();
+		schedule();
+		return job;
+	}
+
+	/**
+	 * Returns a job by its id.
+	 *
+	 * @param id
+	 *            - id of the job.
+	 * @return job or null if there's no such job or it was finished long ago.
+	 */
+	public synchronized DownloadJob getJob(int id) {
+		return mJobs.get(id);
+	}
+
+	/**
+	 * @return number of queued and running jobs.
+	 */
+	public synchronized int getActiveJobCount() {
+		return mActiveJobs.size();
+	}
+
+	/**
+	 * @return number of running jobs.
+	 */
+	public synchronized int getRunningJobCount() {
+		return mRunningCount;
+	}
+
+	/*
+	 * Starts queued jobs while there are free workers. The first job whose host
+	 * has a free slot is taken, so one slow host doesn't block others.
+	 */
+	private void schedule() {
+		Iterator<DownloadJob> it = mQueue.iterator();
+		while (mRunningCount < mMaxWorkers && it.hasNext()) {
+			final DownloadJob job = it.next();
+			if (!mHostLimiter.tryAcquire(job.getHost())) {
+				continue;
+			}
+			it.remove();
+			mRunningCount++;
+			job.markRunning();
+			mExecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					runJob(job);
+				}
+			});
+		}
+	}
+
+	/* Performs the job in a worker thread. */
+	private void runJob(DownloadJob job) {
+		Log.d(TAG, "Starting " + job);
+		String filename = null;
+		try {
+			filename = mDownloader.download(job);
+		} catch (RuntimeException e) {
+			Log.e(TAG, "Error running " + job + ": " + e);
+		}
+		job.markFinished(filename);
+		Log.d(TAG, "Finished " + job + " in " + (job.getFinishedTime() - job.getStartedTime()) + " ms");
+
+		List<Listener> listeners;
+		boolean idle;
+		synchronized (this) {
+			mActiveJobs.remove(job.getUrl());
+			mRunningCount--;
+			idle = mActiveJobs.isEmpty();
+			listeners = new ArrayList<Listener>(mListeners);
+		}
+		/* The limiter calls back to schedule the next jobs. */
+		mHostLimiter.release(job.getHost());
+
+		for (Listener listener : listeners) {
+			listener.onJobFinished(job);
+		}
+		if (idle) {
+			for (Listener listener : listeners) {
+				listener.onIdle();
+			}
+		}
+	}
+
+	/* Forgets the oldest finished jobs if there are too many of them. */
+	private void trimFinishedJobs() {
+		int finishedCount = mJobs.size() - mActiveJobs.size();
+		Iterator<DownloadJob> it = mJobs.values().iterator();
+		while (finishedCount > MAX_FINISHED_JOBS && it.hasNext()) {
+			if (!it.next().isActive()) {
+				it.remove();
+				finishedCount--;
+			}
+		}
+	}
+}
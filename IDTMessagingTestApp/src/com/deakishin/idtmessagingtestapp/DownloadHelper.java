@@ -1,20 +1,91 @@
 package com.deakishin.idtmessagingtestapp;
 
 import java.io.IOException;
-import java.io.InputStream;
 import java.net.HttpURLConnection;
-import java.net.URL;
 
 import android.content.Context;
+import android.graphics.Bitmap;
+import android.util.Log;
 
 /**
- * Helper for downloading data from a Url.
+ * Helper for downloading data from a Url. Downloaded data is cached: repeated
+ * requests are revalidated with the server or skipped while the cached
+ * response is fresh. Interrupted downloads are continued from the last
+ * written byte when the server supports ranges. Files are named by the hash of
+ * their content, so the cache maps urls to content and identical data from
+ * different urls is stored once. Requests, retries and storing of files are
+ * done by {@link HttpFetcher}.
  */
 public class DownloadHelper {
+	private static final String TAG = "DownloadHelper";
+
+	/* Response code for a range outside of the resource. */
+	private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+
+	/* Number of bytes written between saving the state of a partial download. */
+	private static final long SAVE_PROGRESS_INTERVAL = 64 * 1024;
+
+	/* Minimal interval between progress notifications in ms. */
+	private static final long PROGRESS_INTERVAL_MS = 250;
+
+	/* Log of the fetcher. */
+	private static final HttpFetcher.Logger LOGGER = new HttpFetcher.Logger() {
+		@Override
+		public void d(String tag, String message) {
+			Log.d(tag, message);
+		}
+
+		@Override
+		public void e(String tag, String message) {
+			Log.e(tag, message);
+		}
+	};
+
+	/**
+	 * Listener of the download progress. It's called in the downloading
+	 * threads.
+	 */
+	public interface ProgressListener {
+		/**
+		 * Called when a portion of data is written, but not more often than
+		 * every {@value #PROGRESS_INTERVAL_MS} ms. It's called in a
+		 * downloading thread, so it mustn't do any slow work, e.g. decoding.
+		 * 
+		 * @param partFilename
+		 *            - name of the file the data is being written to.
+		 * @param downloadedBytes
+		 *            - number of bytes written.
+		 * @param availableBytes
+		 *            - number of bytes written from the beginning of the file
+		 *            without gaps, only they can be decoded.
+		 * @param totalBytes
+		 *            - length of the data or -1 if it's unknown.
+		 */
+		void onProgress(String partFilename, long downloadedBytes, long availableBytes, long totalBytes);
+	}
 
 	/* Helper for reading/writing data. */
 	private FileIOHelper mFileIOHelper;
 
+	/* Listener of the download progress or null. */
+	private ProgressListener mProgressListener;
+
+	/* Index of downloaded files with their validators. */
+	private HttpDiskCache mHttpCache;
+
+	/* Downloader of large resources by segments, null if it's disabled. */
+	private SegmentedDownloader mSegmentedDownloader;
+
+	/* Fetcher of data, its transport keeps connections alive between downloads. */
+	private HttpFetcher mFetcher;
+
+	/* Parameters of display-optimized derivatives, width is 0 if disabled. */
+	private int mDisplayWidth;
+	private boolean mDisplayRotate;
+
+	/* Decoded derivative of the last downloaded image or null. */
+	private Bitmap mDisplayBitmap;
+
 	/**
 	 * Constructor.
 	 * 
@@ -23,44 +94,364 @@ public class DownloadHelper {
 	 */
 	public DownloadHelper(Context context) {
 		mFileIOHelper = new FileIOHelper(context);
+		mFetcher = new HttpFetcher(HttpTransport.getInstance(), mFileIOHelper.getDownloadStorage(), LOGGER);
+		mHttpCache = new HttpDiskCache(context, HttpDiskCache.FreshnessPolicy.USE_RESPONSE_HEADERS);
+	}
+
+	/**
+	 * Enables or disables downloading of large resources by several parallel
+	 * range requests. It's disabled by default.
+	 * 
+	 * @param enabled
+	 *            - true to enable segmented downloading.
+	 */
+	public void setSegmentedDownloading(boolean enabled) {
+		mSegmentedDownloader = enabled ? new SegmentedDownloader() : null;
+	}
+
+	/**
+	 * Enables storing a display-optimized derivative of every downloaded
+	 * image alongside the original, see
+	 * {@link FileIOHelper#writeExtDerivative(String, int, boolean)}. It's
+	 * disabled by default.
+	 * 
+	 * @param width
+	 *            - width of the region where the image will be displayed, 0
+	 *            to disable derivatives.
+	 * @param rotate
+	 *            - should be image rotated 180 degrees.
+	 */
+	public void setDisplayTarget(int width, boolean rotate) {
+		mDisplayWidth = width;
+		mDisplayRotate = rotate;
+	}
+
+	/**
+	 * Sets a listener of the download progress.
+	 * 
+	 * @param listener
+	 *            - listener or null.
+	 */
+	public void setProgressListener(ProgressListener listener) {
+		mProgressListener = listener;
 	}
 
 	/**
 	 * Downloads data from the Internet and saves it on the External Storage.
+	 * If the url was downloaded before, the stored file is reused when it is
+	 * fresh or the server reports it's not modified. If the connection breaks,
+	 * the download is retried from the last written byte.
 	 * 
 	 * @param urlString
 	 *            - a Url to download image from.
-	 * @param filename
-	 *            - name of a file to store data in.
-	 * @return false if an error occurred, otherwise true.
+	 * @return name of the file with the data or null if an error occurred.
+	 */
+	public String downloadAndSaveData(String urlString) {
+		String resultFilename = downloadOrReuse(urlString);
+		if (resultFilename != null && mDisplayWidth > 0
+				&& !mFileIOHelper.existsExtFile(FileIOHelper.getDerivativeFilename(resultFilename, mDisplayWidth,
+						mDisplayRotate))) {
+			mDisplayBitmap = mFileIOHelper.createExtDerivative(resultFilename, mDisplayWidth, mDisplayRotate);
+		}
+		if (resultFilename != null && mDisplayWidth > 0 && mDisplayRotate) {
+			writeRotatedCopyIfLarge(resultFilename);
+		}
+		return resultFilename;
+	}
+
+	/*
+	 * Images that will be shown by tiles get a full-size rotated copy, so
+	 * tiles don't have to be rotated one by one. The copy takes a while, so
+	 * it's made on the encoder's executor without delaying the download.
+	 */
+	private void writeRotatedCopyIfLarge(final String filename) {
+		ImageMetadataIndex.Metadata metadata = mFileIOHelper.getImageMetadata(filename);
+		if (metadata == null || metadata.width < mDisplayWidth * TiledImageView.MIN_IMAGE_SCALE
+				|| mFileIOHelper.existsExtFile(FileIOHelper.getRotatedCopyFilename(filename, metadata))) {
+			return;
+		}
+		final FileIOHelper fileIOHelper = mFileIOHelper;
+		ImageEncoder.getExecutor().execute(new Runnable() {
+			@Override
+			public void run() {
+				fileIOHelper.writeExtRotatedCopy(filename);
+			}
+		});
+	}
+
+	/**
+	 * Takes the decoded derivative of the last downloaded image. It's
+	 * available if the derivative was created by the download, see
+	 * {@link #setDisplayTarget(int, boolean)}.
+	 * 
+	 * @return bitmap of the derivative or null. The caller owns the bitmap.
+	 */
+	public Bitmap takeDisplayBitmap() {
+		Bitmap bitmap = mDisplayBitmap;
+		mDisplayBitmap = null;
+		return bitmap;
+	}
+
+	/*
+	 * Downloads data or reuses the cached file. Returns the name of the file
+	 * with the data or null if an error occurred.
 	 */
-	public boolean downloadAndSaveData(String urlString, String filename) {
-		HttpURLConnection connection = null;
-		InputStream is = null;
+	private String downloadOrReuse(final String urlString) {
+		HttpDiskCache.Entry entry = mHttpCache.get(urlString);
+		if (entry != null && !mFileIOHelper.existsExtFile(entry.filename)) {
+			mHttpCache.remove(urlString);
+			entry = null;
+		}
+		final HttpDiskCache.Entry cached = entry;
+		if (cached != null && mHttpCache.isFresh(cached)) {
+			Log.d(TAG, "Cached data is fresh: " + cached.filename);
+			return cached.filename;
+		}
+
+		final PartialDownload partial = PartialDownload.load(mFileIOHelper, urlString);
+
+		/*
+		 * Segmented downloading is tried for new resources only, cached ones
+		 * are revalidated and partial ones are resumed by one stream.
+		 */
+		if (mSegmentedDownloader != null && cached == null && !partial.canResume()) {
+			String resultFilename = downloadBySegments(urlString, partial);
+			if (resultFilename != null) {
+				return resultFilename;
+			}
+		}
+
+		return mFetcher.fetch(urlString, new HttpFetcher.Handler<String>() {
+			@Override
+			public void configure(HttpURLConnection connection) {
+				if (cached != null && cached.hasValidators()) {
+					HttpDiskCache.addConditionalHeaders(connection, cached);
+				}
+				if (partial.canResume()) {
+					connection.setRequestProperty("Range", "bytes=" + partial.getBytesWritten() + "-");
+					connection.setRequestProperty("If-Range", partial.getValidator());
+				}
+			}
+
+			@Override
+			public String onResponse(HttpFetcher.Response response) throws IOException {
+				return handleResponse(urlString, cached, partial, response);
+			}
+		});
+	}
+
+	/*
+	 * Downloads a large resource by segments. Returns the name of the file with
+	 * the data, or null if the resource is not suitable or an error occurred.
+	 */
+	private String downloadBySegments(String urlString, PartialDownload partial) {
+		SegmentedDownloader.Probe probe = null;
 		try {
-			URL url = new URL(urlString);
-			connection = (HttpURLConnection) url.openConnection();
-			is = connection.getInputStream();
-			if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
-				return false;
+			probe = mSegmentedDownloader.probe(urlString);
+			if (probe == null) {
+				return null;
 			}
+			final ProgressReporter reporter = new ProgressReporter(partial.getPartFilename(), probe.contentLength);
+			long startTime = System.nanoTime();
+			mSegmentedDownloader.download(urlString, probe, mFileIOHelper.getExtFile(partial.getPartFilename()),
+					new SegmentedDownloader.ProgressListener() {
+						@Override
+						public void onProgress(long downloadedBytes, long contiguousBytes) {
+							reporter.update(downloadedBytes, contiguousBytes);
+						}
+					});
+			recordDownloadSpeed(probe.contentLength, System.nanoTime() - startTime);
 
-			mFileIOHelper.writeExtFile(filename, is);
-			
-			return true;
+			/* Segments are written out of order, so data is hashed afterwards. */
+			String filename = mFileIOHelper.commitExtBlob(partial.getPartFilename(),
+					mFileIOHelper.hashExtFile(partial.getPartFilename()));
+			if (filename == null) {
+				throw new IOException("Unable to store downloaded file");
+			}
+			partial.markCommitted();
+			mHttpCache.put(urlString, filename, probe.connection, null);
+			return filename;
 		} catch (IOException e) {
-			return false;
+			/* Segments may leave gaps, so the data can't be resumed. */
+			Log.e(TAG, "Segmented download failed: " + e);
+			partial.discard();
+			return null;
 		} finally {
-			if (is != null) {
-				try {
-					is.close();
-				} catch (IOException e) {
-					e.printStackTrace();
+			if (probe != null) {
+				mSegmentedDownloader.release(probe);
+			}
+		}
+	}
+
+	/*
+	 * Handles the response of one attempt to download data. Returns the name
+	 * of the file with the data or null if the server responded with an error.
+	 * Errors that may pass are thrown, so the attempt is repeated.
+	 */
+	private String handleResponse(String urlString, HttpDiskCache.Entry cached, final PartialDownload partial,
+			HttpFetcher.Response response) throws IOException {
+		HttpURLConnection connection = response.getConnection();
+		int responseCode = response.getResponseCode();
+		boolean resuming = partial.canResume();
+		if (cached != null && responseCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+			Log.d(TAG, "Cached data is not modified: " + cached.filename);
+			partial.discard();
+			mHttpCache.put(urlString, cached.filename, connection, cached);
+			return cached.filename;
+		}
+
+		long offset;
+		if (resuming && responseCode == HttpURLConnection.HTTP_PARTIAL
+				&& getRangeStart(connection) == partial.getBytesWritten()) {
+			offset = partial.getBytesWritten();
+			Log.d(TAG, "Resuming from byte " + offset);
+		} else if (responseCode == HttpURLConnection.HTTP_OK) {
+			/* The server ignored the range or the resource has changed. */
+			offset = 0;
+			partial.restart(getStrongValidator(connection));
+		} else if (resuming
+				&& (responseCode == HttpURLConnection.HTTP_PARTIAL || responseCode == HTTP_RANGE_NOT_SATISFIABLE)) {
+			/* The range is not usable, the next attempt starts over. */
+			partial.discard();
+			throw new IOException("Unable to resume, response code: " + responseCode);
+		} else {
+			Log.e(TAG, "Unexpected response code: " + responseCode);
+			partial.discard();
+			return null;
+		}
+
+		long contentLength = connection.getContentLength();
+		final ProgressReporter reporter = new ProgressReporter(partial.getPartFilename(),
+				contentLength >= 0 ? offset + contentLength : -1);
+
+		/*
+		 * A full response to a revalidation often carries the same data, e.g.
+		 * when the server has no validators. It's compared with the cached
+		 * file and written only if it differs.
+		 */
+		if (offset == 0 && cached != null) {
+			StorageWriter.Result result = response.writeUnlessEqual(partial.getPartFilename(), cached.filename,
+					new StorageWriter.Listener() {
+						@Override
+						public void onBytesWritten(long totalBytes) {
+							/* Nothing is written while data matches, so there's no part file to preview. */
+							reporter.update(totalBytes, 0);
+						}
+					});
+			recordDownloadSpeed(result.length, result.elapsedNanos);
+			if (result.identical) {
+				partial.discard();
+				mHttpCache.put(urlString, cached.filename, connection, cached);
+				return cached.filename;
+			}
+			return complete(urlString, result.digest, response, cached, partial);
+		}
+
+		StorageWriter.Result result;
+		try {
+			result = response.write(partial.getPartFilename(), offset, new StorageWriter.Listener() {
+				private long mLastSaved = partial.getBytesWritten();
+
+				@Override
+				public void onBytesWritten(long totalBytes) {
+					reporter.update(totalBytes, totalBytes);
+					partial.setBytesWritten(totalBytes);
+					if (totalBytes - mLastSaved >= SAVE_PROGRESS_INTERVAL) {
+						partial.save();
+						mLastSaved = totalBytes;
+					}
 				}
+			});
+		} finally {
+			/* The state is kept to continue after an error. */
+			partial.save();
+		}
+		recordDownloadSpeed(result.bytesWritten, result.elapsedNanos);
+		return complete(urlString, result.digest, response, cached, partial);
+	}
+
+	/*
+	 * Records the throughput of a download in KB/s.
+	 */
+	private static void recordDownloadSpeed(long bytes, long elapsedNanos) {
+		if (bytes > 0 && elapsedNanos > 0) {
+			Metrics.getInstance().record(Metrics.DOWNLOAD_SPEED, bytes * 1000000000L / 1024 / elapsedNanos);
+		}
+	}
+
+	/*
+	 * Stores the downloaded data under its content name and updates the cache.
+	 * The file of the previous version is left to the store, other urls may
+	 * have the same content.
+	 */
+	private String complete(String urlString, String hash, HttpFetcher.Response response, HttpDiskCache.Entry cached,
+			PartialDownload partial) throws IOException {
+		String filename = response.commit(partial.getPartFilename(), hash);
+		partial.markCommitted();
+		mHttpCache.put(urlString, filename, response.getConnection(), cached);
+		return filename;
+	}
+
+	/*
+	 * Reports the progress of one download to the listener. Reports are
+	 * throttled under the lock, and the listener is called without it, so
+	 * threads of segments don't wait for each other's reports.
+	 */
+	private class ProgressReporter {
+		private final String mPartFilename;
+		private final long mTotalBytes;
+		private long mLastReportTime;
+
+		ProgressReporter(String partFilename, long totalBytes) {
+			mPartFilename = partFilename;
+			mTotalBytes = totalBytes;
+		}
+
+		void update(long downloadedBytes, long availableBytes) {
+			ProgressListener listener = mProgressListener;
+			if (listener == null) {
+				return;
 			}
-			if (connection != null) {
-				connection.disconnect();
+			long now = System.currentTimeMillis();
+			synchronized (this) {
+				if (now - mLastReportTime < PROGRESS_INTERVAL_MS && downloadedBytes != mTotalBytes) {
+					return;
+				}
+				mLastReportTime = now;
 			}
+			listener.onProgress(mPartFilename, downloadedBytes, availableBytes, mTotalBytes);
+		}
+	}
+
+	/*
+	 * Returns the first byte position of a partial response, or -1 if the
+	 * Content-Range header is missing or malformed.
+	 */
+	static long getRangeStart(HttpURLConnection connection) {
+		String contentRange = connection.getHeaderField("Content-Range");
+		if (contentRange == null || !contentRange.startsWith("bytes ")) {
+			return -1;
+		}
+		int dash = contentRange.indexOf('-');
+		if (dash == -1) {
+			return -1;
+		}
+		try {
+			return Long.parseLong(contentRange.substring("bytes ".length(), dash).trim());
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/*
+	 * Returns a validator that can be used in If-Range: a strong ETag or
+	 * Last-Modified date. Weak ETags are not allowed there.
+	 */
+	static String getStrongValidator(HttpURLConnection connection) {
+		String etag = connection.getHeaderField("ETag");
+		if (etag != null && !etag.startsWith("W/")) {
+			return etag;
 		}
+		return connection.getHeaderField("Last-Modified");
 	}
 }
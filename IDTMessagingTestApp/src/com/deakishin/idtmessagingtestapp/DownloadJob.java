@@ -0,0 +1,191 @@
+package com.deakishin.idtmessagingtestapp;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Job of downloading an image from a url. Jobs are created and run by
+ * {@link DownloadEngine}, their state can be queried from any thread.
+ */
+public class DownloadJob {
+
+	/** States of a job. */
+	public enum State {
+		/** Job is waiting for a free worker. */
+		QUEUED,
+		/** Data is being downloaded. */
+		RUNNING,
+		/** Data is downloaded and saved. */
+		SUCCEEDED,
+		/** An error occurred. */
+		FAILED
+	}
+
+	/* Unique id of the job. */
+	private final int mId;
+
+	/* Url to download from and its host. */
+	private final String mUrl;
+	private final String mHost;
+
+	/* Width of the region the image will be displayed in, 0 if unknown. */
+	private final int mDisplayWidth;
+
+	/* Current state. */
+	private volatile State mState = State.QUEUED;
+
+	/* Name of the file the data is saved to, set on success. */
+	private volatile String mFilename;
+
+	/* Progress of downloading. */
+	private volatile long mDownloadedBytes;
+	private volatile long mTotalBytes = -1;
+
+	/* Time of creating, starting and finishing the job in ms. */
+	private final long mCreatedTime;
+	private volatile long mStartedTime;
+	private volatile long mFinishedTime;
+
+	/* True after the image of the job is displayed for the first time. */
+	private final AtomicBoolean mDisplayed = new AtomicBoolean();
+
+	DownloadJob(int id, String url, int displayWidth) {
+		mId = id;
+		mUrl = url;
+		mDisplayWidth = displayWidth;
+		mHost = HostLimiter.getHost(url);
+		mCreatedTime = System.currentTimeMillis();
+	}
+
+	/**
+	 * @return unique id of the job.
+	 */
+	public int getId() {
+		return mId;
+	}
+
+	/**
+	 * @return url to download from.
+	 */
+	public String getUrl() {
+		return mUrl;
+	}
+
+	/**
+	 * @return host of the url, or empty string if the url is malformed.
+	 */
+	public String getHost() {
+		return mHost;
+	}
+
+	/**
+	 * @return width of the region the image will be displayed in, 0 if it's
+	 *         unknown.
+	 */
+	public int getDisplayWidth() {
+		return mDisplayWidth;
+	}
+
+	/**
+	 * @return current state of the job.
+	 */
+	public State getState() {
+		return mState;
+	}
+
+	/**
+	 * @return true if the job is queued or running.
+	 */
+	public boolean isActive() {
+		State state = mState;
+		return state == State.QUEUED || state == State.RUNNING;
+	}
+
+	/**
+	 * @return name of the file the data is saved to, or null if the job has
+	 *         not succeeded.
+	 */
+	public String getFilename() {
+		return mFilename;
+	}
+
+	/**
+	 * @return number of bytes downloaded so far.
+	 */
+	public long getDownloadedBytes() {
+		return mDownloadedBytes;
+	}
+
+	/**
+	 * @return length of the data or -1 if it's unknown.
+	 */
+	public long getTotalBytes() {
+		return mTotalBytes;
+	}
+
+	/**
+	 * @return time the job was created at in ms.
+	 */
+	public long getCreatedTime() {
+		return mCreatedTime;
+	}
+
+	/**
+	 * @return time the job was started at in ms, or 0 if it's still queued.
+	 */
+	public long getStartedTime() {
+		return mStartedTime;
+	}
+
+	/**
+	 * @return time the job was finished at in ms, or 0 if it's active.
+	 */
+	public long getFinishedTime() {
+		return mFinishedTime;
+	}
+
+	/**
+	 * Marks the image of the job as displayed.
+	 *
+	 * @return true if it's displayed for the first time.
+	 */
+	public boolean markDisplayed() {
+		return mDisplayed.compareAndSet(false, true);
+	}
+
+	/**
+	 * Waits until the job is finished.
+	 *
+	 * @return name of the file the data is saved to, or null if the job has
+	 *         failed.
+	 * @throws InterruptedException
+	 *             if the thread is interrupted while waiting.
+	 */
+	public synchronized String awaitFinished() throws InterruptedException {
+		while (isActive()) {
+			wait();
+		}
+		return mFilename;
+	}
+
+	void markRunning() {
+		mStartedTime = System.currentTimeMillis();
+		mState = State.RUNNING;
+	}
+
+	void updateProgress(long downloadedBytes, long totalBytes) {
+		mDownloadedBytes = downloadedBytes;
+		mTotalBytes = totalBytes;
+	}
+
+	synchronized void markFinished(String filename) {
+		mFilename = filename;
+		mFinishedTime = System.currentTimeMillis();
+		mState = filename != null ? State.SUCCEEDED : State.FAILED;
+		notifyAll();
+	}
+
+	@Override
+	public String toString() {
+		return "DownloadJob[id=" + mId + ", state=" + mState + ", url=" + mUrl + "]";
+	}
+}
@@ -1,119 +1,365 @@
 package com.deakishin.idtmessagingtestapp;
 
-import java.util.Date;
+import java.util.ArrayList;
+import java.util.List;
 
-import android.app.IntentService;
+import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
 import android.net.ConnectivityManager;
-import android.os.Bundle;
+import android.os.IBinder;
 import android.support.v4.content.LocalBroadcastManager;
 import android.util.Log;
 
 /**
- * Service for downloading an image from a given url.
+ * Service for downloading images from given urls. Downloads are performed by
+ * {@link DownloadEngine}, several of them can run at once. The service keeps
+ * running while there are active downloads.
  */
-public class DownloadService extends IntentService {
+public class DownloadService extends Service {
 
 	private static final String TAG = "DownloadService";
 
-	/** Key for Url to start Service. */
-	private static final String EXTRA_URL = "extra_url";
-
 	/** Key for filepath of the stored image in a Bundle to send. */
 	public static final String EXTRA_FILENAME = "com.deakishin.idtmessagingtestapp.DownloadService.extra_filename";
 
+	/** Key for id of the download job in a Bundle to send. */
+	public static final String EXTRA_JOB_ID = "com.deakishin.idtmessagingtestapp.DownloadService.extra_job_id";
+
+	/** Key for the name of the file being downloaded in a progress Bundle. */
+	public static final String EXTRA_PART_FILENAME = "com.deakishin.idtmessagingtestapp.DownloadService.extra_part_filename";
+
+	/** Key for the number of downloaded bytes in a progress Bundle. */
+	public static final String EXTRA_DOWNLOADED_BYTES = "com.deakishin.idtmessagingtestapp.DownloadService.extra_downloaded_bytes";
+
+	/** Key for the number of bytes that can be decoded in a progress Bundle. */
+	public static final String EXTRA_AVAILABLE_BYTES = "com.deakishin.idtmessagingtestapp.DownloadService.extra_available_bytes";
+
+	/** Key for the length of the data in a progress Bundle, -1 if unknown. */
+	public static final String EXTRA_TOTAL_BYTES = "com.deakishin.idtmessagingtestapp.DownloadService.extra_total_bytes";
+
 	/** Constant String for a broadcast intent. */
 	public static final String BROADCAST_RESULT_ACTION = "com.deakishin.idtmessagingtestapp.DownloadService.broadcast_result_action";
 
-	/* Flag indicating whether the downloading is in process or not */
-	private static boolean sDownloading = false;
+	/** Constant String for a broadcast intent with a processed image of a batch. */
+	public static final String BROADCAST_BATCH_ACTION = "com.deakishin.idtmessagingtestapp.DownloadService.broadcast_batch_action";
 
-	/* Image URL. */
-	private String mUrl;
+	/** Key for the flag of a finished batch in a batch Bundle. */
+	public static final String EXTRA_BATCH_FINISHED = "com.deakishin.idtmessagingtestapp.DownloadService.extra_batch_finished";
 
-	public DownloadService() {
-		this(TAG);
-	}
+	/** Constant String for a broadcast intent with the download progress. */
+	public static final String BROADCAST_PROGRESS_ACTION = "com.deakishin.idtmessagingtestapp.DownloadService.broadcast_progress_action";
 
-	public DownloadService(String name) {
-		super(name);
-	}
+	/*
+	 * Idle connections kept alive per host. Jobs and their segments share
+	 * the slots of HostLimiter, the rest is for hedged requests.
+	 */
+	private static final int MAX_IDLE_CONNECTIONS = 2 * HostLimiter.DEFAULT_MAX_PER_HOST;
+
+	/* Requests slower than this percentile of recent ones are hedged. */
+	private static final double HEDGE_PERCENTILE = 0.9;
+
+	/* Engine shared by the whole process. */
+	private static volatile DownloadEngine sEngine;
+
+	/* Whether large resources are downloaded by segments. */
+	private static volatile boolean sSegmentedDownloading;
+
+	/* Listener that stops the service when there's nothing to do. */
+	private DownloadEngine.Listener mIdleListener;
+
+	/* Running batches. */
+	private static final List<BatchPipeline> sBatches = new ArrayList<BatchPipeline>();
+
+	/* Id of the last start request. */
+	private volatile int mLastStartId;
 
 	/**
-	 * Initiates downloading.
-	 * 
+	 * Initiates downloading. If the url is already being downloaded, the
+	 * existing job is returned.
+	 *
 	 * @param url
 	 *            - url to download from.
 	 * @param context
 	 *            - context of the application.
+	 * @param displayWidth
+	 *            - width of the region the image will be displayed in. If
+	 *            it's positive, a display-optimized copy of the image is
+	 *            stored along with it.
+	 * @return id of the download job.
 	 */
-	public static void startDownloading(Context context, String url) {
+	public static int startDownloading(Context context, String url, int displayWidth) {
 		Log.d(TAG, "Received a command to download");
-		Intent intent = new Intent(context, DownloadService.class);
-		intent.putExtra(EXTRA_URL, url);
-		context.startService(intent);
+		DownloadJob job = getEngine(context).enqueue(url, displayWidth);
+
+		/* Keeping the service alive while the job is active. */
+		context.startService(new Intent(context, DownloadService.class));
+		return job.getId();
+	}
+
+	/**
+	 * Initiates processing of a batch of images by {@link BatchPipeline}.
+	 * Images are downloaded by the same engine as single downloads. Every
+	 * processed image is broadcast with {@link #BROADCAST_BATCH_ACTION}.
+	 *
+	 * @param context
+	 *            - context of the application.
+	 * @param urls
+	 *            - urls of the images.
+	 * @param displayWidth
+	 *            - width of the region the images will be displayed in.
+	 */
+	public static void startBatch(Context context, List<String> urls, int displayWidth) {
+		Log.d(TAG, "Received a command to process a batch of " + urls.size() + " images");
+		final Context appContext = context.getApplicationContext();
+		BatchPipeline pipeline = new BatchPipeline(appContext, getEngine(appContext), displayWidth, true);
+		synchronized (sBatches) {
+			sBatches.add(pipeline);
+		}
+		pipeline.start(urls, new BatchPipeline.Listener() {
+			@Override
+			public void onItemFinished(String url, String filename) {
+				sendBatchBroadcast(appContext, filename, false);
+			}
+
+			@Override
+			public void onFinished(BatchPipeline pipeline) {
+				synchronized (sBatches) {
+					sBatches.remove(pipeline);
+				}
+				sendBatchBroadcast(appContext, null, true);
+
+				/* The service stops itself on this command if nothing else is running. */
+				appContext.startService(new Intent(appContext, DownloadService.class));
+			}
+		});
+
+		/* Keeping the service alive while the batch is processed. */
+		context.startService(new Intent(context, DownloadService.class));
+	}
+
+	/**
+	 * Cancels running batches. Images being processed are finished, the rest
+	 * are dropped. Single downloads are not affected.
+	 */
+	public static void cancelBatches() {
+		List<BatchPipeline> batches;
+		synchronized (sBatches) {
+			batches = new ArrayList<BatchPipeline>(sBatches);
+		}
+		for (BatchPipeline pipeline : batches) {
+			Log.d(TAG, "Cancelling " + pipeline);
+			pipeline.cancel();
+		}
 	}
 
 	/**
-	 * Getter for sDownloading flag.
-	 * 
+	 * Enables or disables downloading of large resources by several parallel
+	 * range requests, see {@link SegmentedDownloader}. It's disabled by
+	 * default, since every new resource is probed by an extra HEAD request.
+	 *
+	 * @param enabled
+	 *            - true to enable segmented downloading.
+	 */
+	public static void setSegmentedDownloading(boolean enabled) {
+		sSegmentedDownloading = enabled;
+	}
+
+	/**
+	 * Checks if any downloading is in process.
+	 *
 	 * @return true if downloading is in process, false otherwise.
 	 */
 	public static boolean isDownloading() {
-		return sDownloading;
+		return getActiveDownloadCount() > 0 || isBatchRunning();
 	}
 
-	@Override
-	protected void onHandleIntent(Intent intent) {
+	/**
+	 * @return true if a batch is being processed.
+	 */
+	public static boolean isBatchRunning() {
+		synchronized (sBatches) {
+			return !sBatches.isEmpty();
+		}
+	}
 
-		Log.d(TAG, "Starting to download...");
+	/**
+	 * @return number of queued and running downloads.
+	 */
+	public static int getActiveDownloadCount() {
+		DownloadEngine engine = sEngine;
+		return engine == null ? 0 : engine.getActiveJobCount();
+	}
 
-		sDownloading = true;
+	/**
+	 * Returns a download job.
+	 *
+	 * @param id
+	 *            - id of the job.
+	 * @return job or null if there's no such job.
+	 */
+	public static DownloadJob getJob(int id) {
+		DownloadEngine engine = sEngine;
+		return engine == null ? null : engine.getJob(id);
+	}
 
-		/* Checking network availability. */
-		ConnectivityManager cm = (ConnectivityManager) getSystemService(Context.CONNECTIVITY_SERVICE);
-		@SuppressWarnings("deprecation")
-		boolean isNetworkAvailable = cm.getBackgroundDataSetting() && cm.getActiveNetworkInfo() != null;
-		if (!isNetworkAvailable) {
-			Log.e(TAG, "Network is unavailable");
-			sendResultBroadcast(null);
-			return;
-		}
+	/*
+	 * Returns the engine of the process, creating it if necessary.
+	 */
+	private static synchronized DownloadEngine getEngine(Context context) {
+		if (sEngine == null) {
+			HttpTransport.setMaxIdleConnections(MAX_IDLE_CONNECTIONS);
+			HttpTransport.getInstance().setHedgePercentile(HEDGE_PERCENTILE);
+
+			final Context appContext = context.getApplicationContext();
+			sEngine = new DownloadEngine(new ImageDownloader(appContext), DownloadEngine.DEFAULT_MAX_WORKERS,
+					HostLimiter.getInstance());
+			sEngine.addListener(new DownloadEngine.Listener() {
+				@Override
+				public void onJobFinished(DownloadJob job) {
+					sendResultBroadcast(appContext, job);
+					Log.d(TAG, HttpTransport.getInstance().toString());
+					Log.d(TAG, Metrics.getInstance().toString());
+				}
 
-		mUrl = null;
-		Bundle extras = intent.getExtras();
-		if (extras != null) {
-			mUrl = intent.getExtras().getString(EXTRA_URL);
+				@Override
+				public void onIdle() {
+				}
+			});
 		}
-		if (mUrl == null) {
-			Log.e(TAG, "Invalid url");
-			sendResultBroadcast(null);
-			return;
+		return sEngine;
+	}
+
+	@Override
+	public void onCreate() {
+		super.onCreate();
+		mIdleListener = new DownloadEngine.Listener() {
+			@Override
+			public void onJobFinished(DownloadJob job) {
+			}
+
+			@Override
+			public void onIdle() {
+				if (!isBatchRunning()) {
+					Log.d(TAG, "No active downloads, stopping");
+					stopSelf(mLastStartId);
+				}
+			}
+		};
+		getEngine(this).addListener(mIdleListener);
+	}
+
+	@Override
+	public int onStartCommand(Intent intent, int flags, int startId) {
+		mLastStartId = startId;
+		if (!isDownloading()) {
+			/* Jobs were finished before the service has started. */
+			stopSelf(startId);
 		}
+		return START_NOT_STICKY;
+	}
 
-		DownloadHelper dlHelper = new DownloadHelper(this);
-		String filename = "" + new Date().getTime() + ".png";
-		boolean success = dlHelper.downloadAndSaveData(mUrl, filename);
-		Log.d(TAG, "Bitmap is downloaded and saved " + (success ? "unsuccessfully" : "successfully"));
-		sendResultBroadcast(success ? filename : null);
+	@Override
+	public void onDestroy() {
+		getEngine(this).removeListener(mIdleListener);
+		super.onDestroy();
+	}
+
+	@Override
+	public IBinder onBind(Intent intent) {
+		return null;
 	}
 
 	/*
 	 * Sends the result of downloading as a filename of the stored image using
 	 * local broadcasting.
 	 */
-	private void sendResultBroadcast(String filename) {
-		Log.d(TAG, "Broadcasting the result. Filename: " + (filename == null ? "(null)" : filename));
+	private static void sendResultBroadcast(Context context, DownloadJob job) {
+		String filename = job.getFilename();
+		Log.d(TAG, "Broadcasting the result of job " + job.getId() + ". Filename: "
+				+ (filename == null ? "(null)" : filename));
 
 		Intent intent = new Intent(BROADCAST_RESULT_ACTION);
+		intent.putExtra(EXTRA_JOB_ID, job.getId());
 		if (filename != null) {
 			intent.putExtra(EXTRA_FILENAME, filename);
 		}
-		LocalBroadcastManager bm = LocalBroadcastManager.getInstance(this);
+		LocalBroadcastManager bm = LocalBroadcastManager.getInstance(context);
 		bm.sendBroadcast(intent);
+	}
 
-		sDownloading = false;
+	/*
+	 * Sends a processed image of a batch using local broadcasting. The
+	 * filename is null if the image failed.
+	 */
+	private static void sendBatchBroadcast(Context context, String filename, boolean finished) {
+		Intent intent = new Intent(BROADCAST_BATCH_ACTION);
+		if (filename != null) {
+			intent.putExtra(EXTRA_FILENAME, filename);
+		}
+		intent.putExtra(EXTRA_BATCH_FINISHED, finished);
+		LocalBroadcastManager bm = LocalBroadcastManager.getInstance(context);
+		bm.sendBroadcast(intent);
+	}
+
+	/*
+	 * Sends the progress of downloading using local broadcasting.
+	 */
+	private static void sendProgressBroadcast(Context context, DownloadJob job, String partFilename,
+			long availableBytes) {
+		Intent intent = new Intent(BROADCAST_PROGRESS_ACTION);
+		intent.putExtra(EXTRA_JOB_ID, job.getId());
+		intent.putExtra(EXTRA_PART_FILENAME, partFilename);
+		intent.putExtra(EXTRA_DOWNLOADED_BYTES, job.getDownloadedBytes());
+		intent.putExtra(EXTRA_AVAILABLE_BYTES, availableBytes);
+		intent.putExtra(EXTRA_TOTAL_BYTES, job.getTotalBytes());
+		LocalBroadcastManager bm = LocalBroadcastManager.getInstance(context);
+		bm.sendBroadcast(intent);
+	}
+
+	/*
+	 * Performs downloading of images for the engine.
+	 */
+	private static class ImageDownloader implements DownloadEngine.Downloader {
+		private final Context mContext;
+
+		ImageDownloader(Context context) {
+			mContext = context;
+		}
+
+		@Override
+		public String download(final DownloadJob job) {
+			Log.d(TAG, "Starting to download...");
+
+			/* Checking network availability. */
+			ConnectivityManager cm = (ConnectivityManager) mContext.getSystemService(Context.CONNECTIVITY_SERVICE);
+			@SuppressWarnings("deprecation")
+			boolean isNetworkAvailable = cm.getBackgroundDataSetting() && cm.getActiveNetworkInfo() != null;
+			if (!isNetworkAvailable) {
+				Log.e(TAG, "Network is unavailable");
+				return null;
+			}
+
+			DownloadHelper dlHelper = new DownloadHelper(mContext);
+			dlHelper.setSegmentedDownloading(sSegmentedDownloading);
+			dlHelper.setDisplayTarget(job.getDisplayWidth(), true);
+			dlHelper.setProgressListener(new DownloadHelper.ProgressListener() {
+				@Override
+				public void onProgress(String partFilename, long downloadedBytes, long availableBytes,
+						long totalBytes) {
+					job.updateProgress(downloadedBytes, totalBytes);
+					sendProgressBroadcast(mContext, job, partFilename, availableBytes);
+				}
+			});
+			String filename = dlHelper.downloadAndSaveData(job.getUrl());
+
+			/* The image is decoded for the display anyway, handing it to the activity. */
+			BitmapHandoff.getInstance().publish(job.getId(), filename, job.getDisplayWidth(), true,
+					dlHelper.takeDisplayBitmap());
+			boolean success = filename != null;
+			Log.d(TAG, "Bitmap is downloaded and saved " + (success ? "successfully" : "unsuccessfully"));
+			return filename;
+		}
 	}
 
 }
@@ -1,19 +1,26 @@
 package com.deakishin.idtmessagingtestapp;
 
+import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.Date;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Future;
 
+import android.annotation.TargetApi;
 import android.content.Context;
 import android.graphics.Bitmap;
-import android.graphics.Bitmap.CompressFormat;
 import android.graphics.BitmapFactory;
 import android.graphics.BitmapFactory.Options;
 import android.graphics.Matrix;
+import android.os.Build;
 import android.os.Environment;
 import android.util.Log;
 
@@ -23,12 +30,55 @@ import android.util.Log;
 public class FileIOHelper {
 	private static final String TAG = "FileIOHelper";
 
+	/*
+	 * Size of the buffer for decoding images. Image headers are expected to
+	 * fit in it, so the bounds pass and the full decode share one read.
+	 */
+	private static final int DECODE_BUFFER_SIZE = 64 * 1024;
+
+	/* Part of the available heap that one decoded image may occupy. */
+	private static final int DECODE_HEAP_FRACTION = 8;
+
+	/* Planner of decodes, its memory budget is shared by the process. */
+	private static final SamplingPlanner sPlanner = new SamplingPlanner(Runtime.getRuntime().maxMemory()
+			/ DECODE_HEAP_FRACTION);
+
+	/* Suffix of derivative file names, followed by their width. */
+	private static final String DERIVATIVE_SUFFIX = ".w";
+
+	/*
+	 * Images are named by the hash of their content, so identical ones are
+	 * stored once and names never collide.
+	 */
+	private static final String BLOB_DIGEST_ALGORITHM = "SHA-1";
+	private static final String BLOB_EXTENSION = ".img";
+
+	/* Locks that serialize commits of blobs, chosen by the hash. */
+	private static final Object[] sBlobLocks = new Object[16];
+	static {
+		for (int i = 0; i < sBlobLocks.length; i++) {
+			sBlobLocks[i] = new Object();
+		}
+	}
+
 	/* Application context. */
 	private Context mContext;
 
 	/* External Storage. */
 	private File mExternalStorage;
 
+	/* Store that keeps images within the size limit. */
+	private DiskImageStore mStore;
+
+	/* Bounds and types of stored images. */
+	private ImageMetadataIndex mMetadataIndex;
+
+	/* Writer of downloaded data, it's synced before files are renamed. */
+	private final StorageWriter mStorageWriter = new StorageWriter(StorageWriter.SyncPolicy.ON_CLOSE);
+
+	/* Encoder of saved bitmaps and derivatives. */
+	private ImageEncoder mEncoder = new ImageEncoder();
+
 	/**
 	 * Constructor.
 	 * 
@@ -43,40 +93,147 @@ public class FileIOHelper {
 		mExternalStorage = new File(Environment.getExternalStorageDirectory().getAbsolutePath() + "/" + folderName);
 		if (!mExternalStorage.exists())
 			mExternalStorage.mkdir();
+		mStore = DiskImageStore.getInstance(mExternalStorage);
+		mMetadataIndex = ImageMetadataIndex.getInstance(mExternalStorage);
+		mStorageWriter.setDigestAlgorithm(BLOB_DIGEST_ALGORITHM);
 	}
 
 	/**
-	 * Save data as a Bitmap image on the external storage.
+	 * Sets the encoder of saved bitmaps and derivatives. By default photos are
+	 * stored as JPEG and images with alpha or few colors as PNG.
+	 * 
+	 * @param encoder
+	 *            - encoder to use.
+	 */
+	public void setImageEncoder(ImageEncoder encoder) {
+		mEncoder = encoder;
+	}
+
+	/**
+	 * Save data as a Bitmap image on the external storage. The image is
+	 * encoded and written on the background executor of the encoder.
 	 * 
 	 * @param data
 	 *            - byte array to save
-	 * @return filename of the stored image
+	 * @return future filename of the stored image, null if an error occurred.
 	 */
-	public String saveDataAsBitmap(byte[] data) {
-		return writeExtBitmap(BitmapFactory.decodeByteArray(data, 0, data.length));
+	public Future<String> saveDataAsBitmap(byte[] data) {
+		return writeExtBitmapAsync(BitmapFactory.decodeByteArray(data, 0, data.length));
 	}
 
 	/**
-	 * Writes Bitmap image data to the External Storage.
+	 * Writes Bitmap image data to the External Storage. The file is named by
+	 * the hash of its content, an identical image is stored once.
 	 * 
 	 * @param bitmap
 	 *            - image to save.
 	 * @return filename of the stored image.
 	 */
 	public String writeExtBitmap(Bitmap bitmap) {
+		String tmpFilename = "bitmap_" + Thread.currentThread().getId() + "_" + System.nanoTime() + ".tmp";
+		MessageDigest digest = mStorageWriter.newDigest();
+		if (writeExtBitmap(bitmap, tmpFilename, bitmap != null && bitmap.hasAlpha(), digest) == null) {
+			deleteExtFile(tmpFilename);
+			return null;
+		}
+		return commitExtBlob(tmpFilename, StorageWriter.toHex(digest.digest()));
+	}
+
+	/**
+	 * Writes Bitmap image data to the External Storage on the background
+	 * executor of the encoder, see {@link #writeExtBitmap(Bitmap)}. The bitmap
+	 * must not be changed or recycled until it's written.
+	 * 
+	 * @param bitmap
+	 *            - image to save.
+	 * @return future filename of the stored image, null if an error occurred.
+	 */
+	public Future<String> writeExtBitmapAsync(final Bitmap bitmap) {
+		return ImageEncoder.getExecutor().submit(new Callable<String>() {
+			@Override
+			public String call() {
+				return writeExtBitmap(bitmap);
+			}
+		});
+	}
+
+	/**
+	 * Returns the name of the full-size copy of an image rotated 180 degrees,
+	 * see {@link #writeExtRotatedCopy(String)}. It's the derivative of the
+	 * full width.
+	 * 
+	 * @param filename
+	 *            - name of the original image file.
+	 * @param metadata
+	 *            - metadata of the image.
+	 * @return name of the copy, the file may not exist.
+	 */
+	public static String getRotatedCopyFilename(String filename, ImageMetadataIndex.Metadata metadata) {
+		return getDerivativeFilename(filename, metadata.width, true);
+	}
+
+	/**
+	 * Stores a full-size copy of an image rotated 180 degrees as its
+	 * derivative, so the tiled view decodes regions of it without rotating
+	 * every tile. The copy is transformed by bands with
+	 * {@link StripeTransformer}, the whole image is never kept in memory.
+	 * Only PNG images are copied: the copy is PNG, and a PNG copy of a photo
+	 * would be several times larger than the JPEG.
+	 * 
+	 * @param filename
+	 *            - name of the original image file.
+	 * @return name of the copy or null if the image isn't copied.
+	 */
+	public String writeExtRotatedCopy(String filename) {
+		ImageMetadataIndex.Metadata metadata = mMetadataIndex.get(filename);
+		if (!StripeTransformer.isSupported() || metadata == null || !"image/png".equals(metadata.mimeType)) {
+			return null;
+		}
+		String derivative = getRotatedCopyFilename(filename, metadata);
+		if (existsExtFile(derivative)) {
+			return derivative;
+		}
+
+		StripeTransformer transformer = new StripeTransformer();
+		transformer.rotate180();
+		String tmpFilename = derivative + ".tmp";
+		try {
+			transformer.transform(getExtFile(filename), getExtFile(tmpFilename));
+			if (!getExtFile(tmpFilename).renameTo(getExtFile(derivative))) {
+				throw new IOException("Unable to rename " + tmpFilename);
+			}
+		} catch (IOException e) {
+			Log.e(TAG, "Error transforming " + filename + ": " + e);
+			getExtFile(tmpFilename).delete();
+			return null;
+		}
+		mStore.recordDerivative(filename, derivative);
+		mMetadataIndex.put(derivative, new ImageMetadataIndex.Metadata(metadata.width, metadata.height,
+				metadata.mimeType, metadata.hasAlpha, getExtFile(derivative).length()));
+		return derivative;
+	}
+
+	/*
+	 * Writes Bitmap image data to the given file on the External Storage in
+	 * the format chosen by the encoder. If the digest is not null, it's
+	 * updated with the written bytes. Returns null if an error occurred.
+	 */
+	private ImageEncoder.Result writeExtBitmap(Bitmap bitmap, String filename, boolean hasAlpha,
+			MessageDigest digest) {
 		if (bitmap == null) {
 			return null;
 		}
 
 		OutputStream stream = null;
 		try {
-			String filename = "" + new Date().getTime() + ".png";
 			File file = new File(mExternalStorage.getAbsolutePath() + "/" + filename);
 			stream = new FileOutputStream(file);
-			bitmap.compress(CompressFormat.PNG, 100, stream);
-			stream.flush();
+			if (digest != null) {
+				stream = new DigestOutputStream(stream, digest);
+			}
+			ImageEncoder.Result result = mEncoder.encode(bitmap, hasAlpha, stream);
 			Log.d(TAG, "Bitmap is saved.");
-			return filename;
+			return result;
 		} catch (Exception e) {
 			Log.e(TAG, "Error saving bitmap: " + e);
 			return null;
@@ -89,9 +246,118 @@ public class FileIOHelper {
 		}
 	}
 
+	/**
+	 * Returns the name of a display-optimized derivative of an image.
+	 * 
+	 * @param filename
+	 *            - name of the original image file.
+	 * @param width
+	 *            - width of the derivative.
+	 * @param rotate
+	 *            - whether the derivative is rotated 180 degrees.
+	 * @return name of the derivative file.
+	 */
+	public static String getDerivativeFilename(String filename, int width, boolean rotate) {
+		return filename + DERIVATIVE_SUFFIX + width + (rotate ? "r" : "");
+	}
+
+	/**
+	 * Stores a display-optimized derivative of an image alongside the
+	 * original. The derivative is scaled to the given width and optionally
+	 * rotated, so later {@link #readExtBitmap(String, boolean, int)} calls
+	 * with the same parameters read a small file and do no rotation.
+	 * 
+	 * @param filename
+	 *            - name of the original image file.
+	 * @param width
+	 *            - width of the region where the image will be displayed.
+	 * @param rotate
+	 *            - should be image rotated 180 degrees.
+	 * @return name of the derivative file or null if an error occurred.
+	 */
+	public String writeExtDerivative(String filename, int width, boolean rotate) {
+		Bitmap bitmap = createExtDerivative(filename, width, rotate);
+		if (bitmap == null) {
+			return null;
+		}
+		BitmapPool.getInstance().put(bitmap);
+		return getDerivativeFilename(filename, width, rotate);
+	}
+
+	/**
+	 * Stores a display-optimized derivative of an image like
+	 * {@link #writeExtDerivative(String, int, boolean)} and returns its
+	 * decoded bitmap, so it can be displayed without reading it back.
+	 * 
+	 * @param filename
+	 *            - name of the original image file.
+	 * @param width
+	 *            - width of the region where the image will be displayed.
+	 * @param rotate
+	 *            - should be image rotated 180 degrees.
+	 * @return bitmap of the derivative or null if an error occurred. The
+	 *         caller owns the bitmap.
+	 */
+	public Bitmap createExtDerivative(String filename, int width, boolean rotate) {
+		Bitmap bitmap = readExtBitmap(filename, -1, rotate, width, null);
+		if (bitmap == null) {
+			return null;
+		}
+		return writeExtDerivative(filename, width, rotate, bitmap);
+	}
+
+	/**
+	 * Stores an image that is already decoded and transformed as a
+	 * display-optimized derivative. Bitmaps wider than the width are scaled
+	 * down first.
+	 * 
+	 * @param filename
+	 *            - name of the original image file.
+	 * @param width
+	 *            - width of the region where the image will be displayed.
+	 * @param rotate
+	 *            - whether the bitmap is rotated 180 degrees.
+	 * @param bitmap
+	 *            - decoded image.
+	 * @return stored bitmap, it may be a scaled copy of the given one, or null
+	 *         if an error occurred. The given bitmap goes to the pool if it's
+	 *         not returned.
+	 */
+	public Bitmap writeExtDerivative(String filename, int width, boolean rotate, Bitmap bitmap) {
+		long startTime = System.currentTimeMillis();
+		if (bitmap.getWidth() > width) {
+			int height = Math.max(1, (int) ((long) bitmap.getHeight() * width / bitmap.getWidth()));
+			Bitmap scaled = Bitmap.createScaledBitmap(bitmap, width, height, true);
+			if (scaled != bitmap) {
+				BitmapPool.getInstance().put(bitmap);
+				bitmap = scaled;
+			}
+		}
+
+		/* The encoder stores opaque photos lossy, it's much smaller than PNG. */
+		ImageMetadataIndex.Metadata metadata = mMetadataIndex.get(filename);
+		boolean hasAlpha = metadata != null ? metadata.hasAlpha : bitmap.hasAlpha();
+		String derivative = getDerivativeFilename(filename, width, rotate);
+		String tmpFilename = derivative + ".tmp";
+		ImageEncoder.Result result = writeExtBitmap(bitmap, tmpFilename, hasAlpha, null);
+
+		/* Renaming makes the derivative visible only when it's complete. */
+		if (result == null || !getExtFile(tmpFilename).renameTo(getExtFile(derivative))) {
+			deleteExtFile(tmpFilename);
+			BitmapPool.getInstance().put(bitmap);
+			return null;
+		}
+		mStore.recordDerivative(filename, derivative);
+		mMetadataIndex.put(derivative, new ImageMetadataIndex.Metadata(bitmap.getWidth(), bitmap.getHeight(),
+				result.getMimeType(), hasAlpha, result.length));
+		Log.d(TAG, "Derivative " + derivative + " is saved in " + (System.currentTimeMillis() - startTime) + " ms");
+		return bitmap;
+	}
+
 	/**
 	 * Reads Bitmap image from the External Storage. To avoid OOM the image is
-	 * scaled depending on width parameter.
+	 * scaled depending on width parameter. If there's a derivative of the image
+	 * for the same parameters, it is read instead.
 	 * 
 	 * @param filename
 	 *            - name of the file.
@@ -103,36 +369,222 @@ public class FileIOHelper {
 	 * @return bitmap or null if an error occurred.
 	 */
 	public Bitmap readExtBitmap(String filename, boolean rotate, int width) {
-		InputStream is = null;
-		try {
-			is = readExtFile(filename);
+		return readExtBitmap(filename, rotate, width, null);
+	}
+
+	/**
+	 * Reads Bitmap image from the External Storage like
+	 * {@link #readExtBitmap(String, boolean, int)}, but stops as soon as the
+	 * token is cancelled.
+	 * 
+	 * @param filename
+	 *            - name of the file.
+	 * @param rotate
+	 *            - should be image rotated 180 degrees
+	 * @param width
+	 *            - width of the region where the image will be displayed.
+	 * @param token
+	 *            - token to check or null.
+	 * @return bitmap or null if an error occurred or reading is cancelled.
+	 */
+	public Bitmap readExtBitmap(String filename, boolean rotate, int width, CancellationToken token) {
+		mStore.recordRead(filename);
+		String derivative = getDerivativeFilename(filename, width, rotate);
+		if (existsExtFile(derivative)) {
+			Log.d(TAG, "Reading derivative " + derivative);
+			Bitmap bitmap = readExtBitmap(derivative, -1, false, width, token);
+			if (bitmap != null || token != null && token.isCancelled()) {
+				return bitmap;
+			}
+		}
+		return readExtBitmap(filename, -1, rotate, width, token);
+	}
+
+	/**
+	 * Reads a preview of an image that is still being downloaded. Only the
+	 * available beginning of the file is decoded, the rest of the image may be
+	 * blank.
+	 * 
+	 * @param filename
+	 *            - name of the file.
+	 * @param availableBytes
+	 *            - number of bytes written to the beginning of the file.
+	 * @param rotate
+	 *            - should be image rotated 180 degrees
+	 * @param width
+	 *            - width of the preview.
+	 * @return bitmap or null if the available data is not enough or an error
+	 *         occurred.
+	 */
+	public Bitmap readExtBitmapPreview(String filename, long availableBytes, boolean rotate, int width) {
+		return readExtBitmap(filename, availableBytes, rotate, width, null);
+	}
 
-			/* First just bounds are loaded to calculate scale. */
+	/**
+	 * Decodes bounds of an image from the beginning of a file.
+	 * 
+	 * @param filename
+	 *            - name of the file.
+	 * @param availableBytes
+	 *            - number of bytes written to the beginning of the file, or -1
+	 *            if the file is complete.
+	 * @return options with the bounds and MIME type of the image, or null if
+	 *         they can't be decoded yet.
+	 */
+	public Options decodeExtBounds(String filename, long availableBytes) {
+		FileInputStream fis = null;
+		try {
+			fis = readExtFile(filename);
 			BitmapFactory.Options opts = new BitmapFactory.Options();
 			opts.inJustDecodeBounds = true;
-			BitmapFactory.decodeStream(is, null, opts);
+			BitmapFactory.decodeStream(openDecodeStream(fis, availableBytes), null, opts);
+			return opts.outWidth > 0 && opts.outHeight > 0 ? opts : null;
+		} catch (IOException e) {
+			Log.e(TAG, "Error reading bounds: " + e);
+			return null;
+		} finally {
+			if (fis != null) {
+				try {
+					fis.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
 
-			/* Now full scaled image is loaded. */
-			if (is != null) {
+	/*
+	 * Reads Bitmap image from the External Storage. If limit isn't negative,
+	 * only the given number of bytes from the beginning of the file is used.
+	 * If the token is cancelled, the decoded bitmap goes to the pool and null
+	 * is returned.
+	 */
+	private Bitmap readExtBitmap(String filename, long limit, boolean rotate, int width, CancellationToken token) {
+		FileInputStream fis = null;
+		try {
+			/*
+			 * The file is opened once. Bytes read for the bounds are kept in a
+			 * buffer, so the full decode starts from them without reading the
+			 * header again.
+			 */
+			fis = readExtFile(filename);
+			CountingInputStream counter = new CountingInputStream(fis);
+			InputStream is = openDecodeStream(counter, limit);
+			BitmapFactory.Options opts = new BitmapFactory.Options();
+
+			/* Bounds of complete images are usually known from the index. */
+			ImageMetadataIndex.Metadata metadata = limit < 0 ? mMetadataIndex.get(filename) : null;
+			if (metadata != null) {
+				opts.outWidth = metadata.width;
+				opts.outHeight = metadata.height;
+				opts.outMimeType = metadata.mimeType;
+			} else {
+				/* First just bounds are loaded to calculate scale. */
+				is.mark(DECODE_BUFFER_SIZE);
+				opts.inJustDecodeBounds = true;
+				long boundsStartTime = System.nanoTime();
+				BitmapFactory.decodeStream(is, null, opts);
+				Metrics.getInstance().recordMicrosSince(Metrics.BOUNDS_DECODE, boundsStartTime);
+
+				/* Now full scaled image is loaded. */
 				try {
-					is.close();
+					is.reset();
 				} catch (IOException e) {
+					/* The decoder has read past the mark, rewinding the file. */
+					Log.d(TAG, "Header is larger than the buffer, rewinding the file");
+					is = rewind(fis, counter, limit);
 				}
 			}
-			is = readExtFile(filename);
-			opts.inSampleSize = calculateInSampleSize(opts, width);
+			int imageWidth = opts.outWidth;
+			int imageHeight = opts.outHeight;
+			String mimeType = opts.outMimeType;
+
+			/*
+			 * The view scrolls vertically, so only its width limits the
+			 * image. Tall images are limited by the memory budget.
+			 */
+			boolean opaque = metadata != null ? !metadata.hasAlpha : "image/jpeg".equals(mimeType);
+			SamplingPlanner.Plan plan = sPlanner.plan(imageWidth, imageHeight, opaque, width, 0);
+			opts.inSampleSize = plan.sampleSize;
+			if (plan.isScaled()) {
+				opts.inScaled = true;
+				opts.inDensity = plan.density;
+				opts.inTargetDensity = plan.targetDensity;
+			}
+			if (plan.rgb565) {
+				opts.inPreferredConfig = Bitmap.Config.RGB_565;
+			}
 			opts.inJustDecodeBounds = false;
-			Log.d(TAG, "inSampleSize = " + opts.inSampleSize);
-			Bitmap bitmap = BitmapFactory.decodeStream(is, null, opts);
+			if (rotate) {
+				setMutable(opts);
+			}
+			setReusableBitmap(opts);
+			Log.d(TAG, "Decoding " + imageWidth + "x" + imageHeight + " as " + plan + ", reusing bitmap: "
+					+ (opts.inBitmap != null));
+			if (token != null) {
+				token.setDecodeOptions(opts);
+			}
+			long decodeStartTime = System.nanoTime();
+			Bitmap bitmap;
+			try {
+				bitmap = BitmapFactory.decodeStream(is, null, opts);
+			} catch (IllegalArgumentException e) {
+				/* The pooled bitmap doesn't suit the image, decoding without it. */
+				Log.d(TAG, "Unable to reuse bitmap: " + e);
+				BitmapPool.getInstance().put(opts.inBitmap);
+				opts.inBitmap = null;
+				is = rewind(fis, counter, limit);
+				bitmap = BitmapFactory.decodeStream(is, null, opts);
+			}
+			if (token != null) {
+				token.setDecodeOptions(null);
+			}
+			if (bitmap == null && opts.inBitmap != null) {
+				BitmapPool.getInstance().put(opts.inBitmap);
+			}
+			if (bitmap != null && plan.isScaled()) {
+				/* The densities only set the scale, the bitmap is drawn as it is. */
+				bitmap.setDensity(Bitmap.DENSITY_NONE);
+			}
 
-			Log.d(TAG, "Bitmap is read " + (bitmap == null ? "unsuccessfully" : "successfully"));
+			/* Previews decode a part of the data, they would distort the times. */
+			if (bitmap != null && limit < 0) {
+				Metrics.getInstance().recordMicrosSince(Metrics.DECODE, decodeStartTime);
+				Metrics.getInstance().record(Metrics.IN_SAMPLE_SIZE, opts.inSampleSize);
+				Metrics.getInstance().record(Metrics.DECODE_SAVED, plan.getSavedBytes() / 1024);
+			}
+
+			Log.d(TAG, "Bitmap is read " + (bitmap == null ? "unsuccessfully" : "successfully") + ", "
+					+ counter.getCount() + " of " + fis.getChannel().size() + " bytes read with 1 file open"
+					+ (metadata != null ? ", bounds are known from the index" : ""));
+
+			/* Images stored before the index existed are recorded on first read. */
+			if (bitmap != null && metadata == null && limit < 0 && imageWidth > 0) {
+				mMetadataIndex.put(filename, new ImageMetadataIndex.Metadata(imageWidth, imageHeight, mimeType,
+						bitmap.hasAlpha(), fis.getChannel().size()));
+			}
+
+			if (token != null && token.isCancelled()) {
+				Log.d(TAG, "Reading " + filename + " is cancelled");
+				if (bitmap != null) {
+					BitmapPool.getInstance().put(bitmap);
+				}
+				return null;
+			}
 
 			if (rotate) {
 				// Bitmap resBitmap = rotate(bitmap);
-				Bitmap resBitmap = rotateManual(bitmap);
+				// Bitmap resBitmap = rotateManual(bitmap);
+				Bitmap resBitmap;
+				try {
+					resBitmap = BitmapRotator.rotate180(bitmap, token);
+				} catch (CancellationException e) {
+					Log.d(TAG, "Rotating " + filename + " is cancelled");
+					BitmapPool.getInstance().put(bitmap);
+					return null;
+				}
 
-				if (bitmap != null) {
-					bitmap.recycle();
+				if (bitmap != null && bitmap != resBitmap) {
+					BitmapPool.getInstance().put(bitmap);
 					bitmap = null;
 				}
 				return resBitmap;
@@ -143,35 +595,77 @@ public class FileIOHelper {
 			Log.e(TAG, "Error reading bitmap: " + e);
 			return null;
 		} finally {
-			if (is != null) {
+			if (fis != null) {
 				try {
-					is.close();
+					fis.close();
 				} catch (IOException e) {
 				}
 			}
 		}
 	}
 
-	/* Calculates inSampleSize to be able to load scaled image. */
-	private int calculateInSampleSize(Options options, int reqWidth) {
-		// Raw width of image
-		final int width = options.outWidth;
-		int inSampleSize = 1;
-
-		if (width > reqWidth && reqWidth > 0) {
+	/*
+	 * Asks the decoder for a mutable bitmap, so it can be rotated in place.
+	 * Mutable decoding is available since Honeycomb.
+	 */
+	@TargetApi(11)
+	private void setMutable(Options options) {
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+			options.inMutable = true;
+		}
+	}
 
-			final int halfWidth = width / 2;
+	/*
+	 * Takes a bitmap from the pool to decode the image into. Before KitKat the
+	 * bitmap must be of the same size as the image, and only unsampled JPEG
+	 * and PNG images can be decoded into it.
+	 */
+	@TargetApi(11)
+	private void setReusableBitmap(Options options) {
+		if (!BitmapPool.isSupported()) {
+			return;
+		}
+		boolean scaled = options.inDensity > 0 && options.inTargetDensity > 0;
+		if (!BitmapPool.canReconfigure()
+				&& (options.inSampleSize != 1 || scaled || !("image/jpeg".equals(options.outMimeType) || "image/png"
+						.equals(options.outMimeType)))) {
+			return;
+		}
 
-			/*
-			 * Calculate the largest inSampleSize value that is a power of 2 and
-			 * keeps width larger than the requested width.
-			 */
-			while ((halfWidth / inSampleSize) >= reqWidth) {
-				inSampleSize *= 2;
-			}
+		int sampleSize = Math.max(1, options.inSampleSize);
+		int width = (options.outWidth + sampleSize - 1) / sampleSize;
+		int height = (options.outHeight + sampleSize - 1) / sampleSize;
+		if (scaled) {
+			double ratio = (double) options.inTargetDensity / options.inDensity;
+			width = Math.max(1, (int) (width * ratio + 0.5));
+			height = Math.max(1, (int) (height * ratio + 0.5));
 		}
+		Bitmap.Config config = options.inPreferredConfig != null ? options.inPreferredConfig : Bitmap.Config.ARGB_8888;
+		Bitmap reusable = BitmapPool.getInstance().get(width, height, config);
+		if (reusable != null) {
+			options.inMutable = true;
+			options.inBitmap = reusable;
+		}
+	}
+
+	/*
+	 * Moves to the beginning of the file and returns a new buffered stream for
+	 * reading it.
+	 */
+	private InputStream rewind(FileInputStream fis, CountingInputStream counter, long limit) throws IOException {
+		fis.getChannel().position(0);
+		return openDecodeStream(counter, limit);
+	}
 
-		return inSampleSize;
+	/*
+	 * Wraps the stream of a file for decoding. If limit isn't negative, the
+	 * stream ends after the given number of bytes.
+	 */
+	private InputStream openDecodeStream(InputStream is, long limit) {
+		if (limit >= 0) {
+			is = new LimitedInputStream(is, limit);
+		}
+		return new BufferedInputStream(is, DECODE_BUFFER_SIZE);
 	}
 
 	/* Rotates given bitmap 180 degrees. */
@@ -185,11 +679,19 @@ public class FileIOHelper {
 		return Bitmap.createBitmap(srcBitmap, 0, 0, srcBitmap.getWidth(), srcBitmap.getHeight(), matrix, true);
 	}
 
-	/* Rotates given bitmap 180 degrees switching pixels manually. */
+	/*
+	 * The original rotation of the app, switching pixels one by one. It reads
+	 * the pixel of the mirrored row but the same column, so it actually flips
+	 * the image vertically instead of rotating it 180 degrees. Replaced by
+	 * BitmapRotator, which does the real rotation, so the images look
+	 * different and the logged throughput is not of the same transform.
+	 */
+	@SuppressWarnings("unused")
 	private Bitmap rotateManual(Bitmap srcBitmap) {
 		if (srcBitmap == null)
 			return null;
 
+		long startTime = System.nanoTime();
 		int w = srcBitmap.getWidth();
 		int h = srcBitmap.getHeight();
 		int s = w * h;
@@ -199,18 +701,171 @@ public class FileIOHelper {
 			int iw = i - ih * w;
 			dstPixels[i] = srcBitmap.getPixel(iw, h - ih - 1);
 		}
-		return Bitmap.createBitmap(dstPixels, w, h, srcBitmap.getConfig());
+		Bitmap dstBitmap = Bitmap.createBitmap(dstPixels, w, h, srcBitmap.getConfig());
+		Log.d(TAG, "Flipped manually " + w + "x" + h + ", "
+				+ String.format("%.1f", BitmapRotator.megapixelsPerSecond(s, System.nanoTime() - startTime)) + " MP/s");
+		return dstBitmap;
 	}
 
 	/*
 	 * Reads file from the external storage.
 	 */
-	private InputStream readExtFile(String filename) throws IOException {
+	private FileInputStream readExtFile(String filename) throws IOException {
 		return new FileInputStream(mExternalStorage.getAbsolutePath() + "/" + filename);
 	}
 
 	/**
-	 * Writes data to a file on the external storage.
+	 * Checks if a file exists on the external storage.
+	 * 
+	 * @param filename
+	 *            - name of the file.
+	 * @return true if the file exists.
+	 */
+	public boolean existsExtFile(String filename) {
+		return filename != null && new File(mExternalStorage.getAbsolutePath() + "/" + filename).isFile();
+	}
+
+	/**
+	 * Deletes a file from the external storage.
+	 * 
+	 * @param filename
+	 *            - name of the file.
+	 * @return true if the file was deleted.
+	 */
+	public boolean deleteExtFile(String filename) {
+		boolean deleted = new File(mExternalStorage.getAbsolutePath() + "/" + filename).delete();
+		List<String> derivatives = mStore.recordRemove(filename);
+		mMetadataIndex.remove(filename);
+		Log.d(TAG, "File " + filename + (deleted ? " is deleted" : " is not deleted"));
+
+		/* Derivatives are useless without the original, the store knows them. */
+		for (String derivative : derivatives) {
+			getExtFile(derivative).delete();
+		}
+		return deleted;
+	}
+
+	/**
+	 * Returns the name of an image file by the hash of its content.
+	 * 
+	 * @param hash
+	 *            - hex hash of the content.
+	 * @return name of the file.
+	 */
+	public static String getBlobFilename(String hash) {
+		return hash + BLOB_EXTENSION;
+	}
+
+	/**
+	 * Stores a complete file under the name derived from the hash of its
+	 * content. If there's already a file with the same content, the new one
+	 * is deleted and the existing one is used. Commits of the same content
+	 * are serialized, so the second one always finds the first one's file
+	 * instead of replacing it and its derivatives.
+	 * 
+	 * @param tmpFilename
+	 *            - name of the complete file.
+	 * @param hash
+	 *            - hex hash of its content.
+	 * @return name of the stored file or null if an error occurred.
+	 */
+	public String commitExtBlob(String tmpFilename, String hash) {
+		String filename = getBlobFilename(hash);
+		synchronized (sBlobLocks[(hash.hashCode() & 0x7fffffff) % sBlobLocks.length]) {
+			if (existsExtFile(filename)) {
+				Log.d(TAG, "Content of " + tmpFilename + " is already stored as " + filename);
+				getExtFile(tmpFilename).delete();
+				mStore.recordRead(filename);
+				return filename;
+			}
+			return renameExtFile(tmpFilename, filename) ? filename : null;
+		}
+	}
+
+	/**
+	 * Computes the hash of the content of a file, the same one that names
+	 * stored images.
+	 * 
+	 * @param filename
+	 *            - name of the file.
+	 * @return hex hash.
+	 * @throws IOException
+	 *             if an error occurred.
+	 */
+	public String hashExtFile(String filename) throws IOException {
+		return mStorageWriter.computeDigest(getExtFile(filename));
+	}
+
+	/**
+	 * Renames a complete file, e.g. a downloaded one, and adds it to the image
+	 * store.
+	 * 
+	 * @param from
+	 *            - current name of the file.
+	 * @param to
+	 *            - new name of the file.
+	 * @return true if the file is renamed.
+	 */
+	public boolean renameExtFile(String from, String to) {
+		if (!getExtFile(from).renameTo(getExtFile(to))) {
+			return false;
+		}
+		mStore.recordWrite(to);
+
+		/* Metadata is read once here instead of on every display. */
+		ImageMetadataIndex.Metadata metadata = ImageMetadataIndex.read(getExtFile(to));
+		if (metadata != null) {
+			mMetadataIndex.put(to, metadata);
+			Log.d(TAG, "Recorded " + metadata + " of " + to);
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the metadata of a stored image without reading the image file.
+	 * 
+	 * @param filename
+	 *            - name of the image file.
+	 * @return metadata or null if it's not known.
+	 */
+	public ImageMetadataIndex.Metadata getImageMetadata(String filename) {
+		return mMetadataIndex.get(filename);
+	}
+
+	/**
+	 * Returns the metadata of a stored image if the index is already loaded.
+	 * Unlike {@link #getImageMetadata(String)}, it never waits for the index
+	 * to be read, so it can be called on the UI thread.
+	 * 
+	 * @param filename
+	 *            - name of the image file.
+	 * @return metadata or null if it's not known yet.
+	 */
+	public ImageMetadataIndex.Metadata peekImageMetadata(String filename) {
+		return mMetadataIndex.peek(filename);
+	}
+
+	/**
+	 * @return store that limits the size of images on the external storage.
+	 */
+	public DiskImageStore getImageStore() {
+		return mStore;
+	}
+
+	/**
+	 * Returns a file on the external storage.
+	 * 
+	 * @param filename
+	 *            - name of the file.
+	 * @return file object, the file may not exist.
+	 */
+	public File getExtFile(String filename) {
+		return new File(mExternalStorage.getAbsolutePath() + "/" + filename);
+	}
+
+	/**
+	 * Writes data to a file on the external storage. Data is written to a
+	 * temporary file first, so the file never appears half-written.
 	 * 
 	 * @param filename
 	 *            - name of file to store data in.
@@ -220,25 +875,46 @@ public class FileIOHelper {
 	 *             if an error occurred.
 	 */
 	public void writeExtFile(String filename, InputStream input) throws IOException {
-		OutputStream stream = null;
 		try {
-			File file = new File(mExternalStorage.getAbsolutePath() + "/" + filename);
-			stream = new FileOutputStream(file);
-			byte[] buffer = new byte[1024];
-			int bytesRead;
-			while ((bytesRead = input.read(buffer)) != -1) {
-				stream.write(buffer, 0, bytesRead);
-			}
+			StorageWriter.Result result = mStorageWriter.writeAtomically(input, getExtFile(filename), null);
+			logWriteResult(filename, result);
+			mStore.recordWrite(filename);
 		} catch (IOException e) {
-			Log.e(TAG, "Error saving bitmap: " + e);
+			Log.e(TAG, "Error saving file: " + e);
 			throw e;
-		} finally {
-			if (stream != null)
-				try {
-					stream.close();
-				} catch (IOException e) {
-				}
 		}
 	}
 
+	/**
+	 * Returns the storage of downloads for {@link HttpFetcher}. Downloaded
+	 * files are written to the external storage by the writer of this helper
+	 * and committed as images named by the hash of their content, see
+	 * {@link #commitExtBlob(String, String)}.
+	 * 
+	 * @return storage of downloads.
+	 */
+	public HttpFetcher.Storage getDownloadStorage() {
+		return new HttpFetcher.Storage() {
+			@Override
+			public StorageWriter getWriter() {
+				return mStorageWriter;
+			}
+
+			@Override
+			public File getFile(String filename) {
+				return getExtFile(filename);
+			}
+
+			@Override
+			public String commit(String filename, String hash) {
+				return commitExtBlob(filename, hash);
+			}
+		};
+	}
+
+	private static void logWriteResult(String filename, StorageWriter.Result result) {
+		Log.d(TAG, "Written " + result.bytesWritten + " bytes to " + filename + " in " + result.elapsedNanos / 1000000
+				+ " ms, " + String.format("%.1f", result.getMegabytesPerSecond()) + " MB/s");
+	}
+
 }
@@ -0,0 +1,155 @@
+package com.deakishin.idtmessagingtestapp;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Limiter of connections to one host. Every job of the download engine holds
+ * a slot of its host while it runs, and segmented downloads take extra slots
+ * for their additional connections, so the number of connections to a host
+ * stays within the limit whatever mix of downloads is running.
+ * <p>
+ * The class doesn't depend on Android, so it can be used by benchmarks and
+ * tools running on a desktop JVM.
+ */
+public class HostLimiter {
+
+	/** Default number of connections to one host at once. */
+	public static final int DEFAULT_MAX_PER_HOST = 2;
+
+	private static HostLimiter sInstance;
+
+	/**
+	 * Listener of released slots. It's called in the releasing thread.
+	 */
+	public interface Listener {
+		/**
+		 * Called after a slot is released.
+		 *
+		 * @param host
+		 *            - host of the slot.
+		 */
+		void onReleased(String host);
+	}
+
+	private final int mMaxPerHost;
+
+	/* Number of taken slots by host. */
+	private final Map<String, Integer> mCounts = new HashMap<String, Integer>();
+
+	private final List<Listener> mListeners = new ArrayList<Listener>();
+
+	/**
+	 * Returns the limiter shared by the process.
+	 *
+	 * @return limiter instance.
+	 */
+	public static synchronized HostLimiter getInstance() {
+		if (sInstance == null) {
+			sInstance = new HostLimiter(DEFAULT_MAX_PER_HOST);
+		}
+		return sInstance;
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param maxPerHost
+	 *            - number of slots of one host.
+	 */
+	public HostLimiter(int maxPerHost) {
+		mMaxPerHost = Math.max(1, maxPerHost);
+	}
+
+	/**
+	 * Adds a listener of released slots.
+	 *
+	 * @param listener
+	 *            - listener to add.
+	 */
+	public synchronized void addListener(Listener listener) {
+		if (!mListeners.contains(listener)) {
+			mListeners.add(listener);
+		}
+	}
+
+	/**
+	 * Takes a slot of the host if there's a free one.
+	 *
+	 * @param host
+	 *            - host to connect to.
+	 * @return true if the slot is taken, it must be released then.
+	 */
+	public synchronized boolean tryAcquire(String host) {
+		Integer count = mCounts.get(host);
+		if (count != null && count >= mMaxPerHost) {
+			return false;
+		}
+		mCounts.put(host, count == null ? 1 : count + 1);
+		return true;
+	}
+
+	/**
+	 * Takes a slot of the host, waiting until there's a free one.
+	 *
+	 * @param host
+	 *            - host to connect to.
+	 * @throws InterruptedException
+	 *             if the thread is interrupted while waiting.
+	 */
+	public synchronized void acquire(String host) throws InterruptedException {
+		while (!tryAcquire(host)) {
+			wait();
+		}
+	}
+
+	/**
+	 * Releases a slot taken before.
+	 *
+	 * @param host
+	 *            - host of the slot.
+	 */
+	public void release(String host) {
+		List<Listener> listeners;
+		synchronized (this) {
+			Integer count = mCounts.get(host);
+			if (count == null || count <= 1) {
+				mCounts.remove(host);
+			} else {
+				mCounts.put(host, count - 1);
+			}
+			notifyAll();
+			listeners = new ArrayList<Listener>(mListeners);
+		}
+		for (Listener listener : listeners) {
+			listener.onReleased(host);
+		}
+	}
+
+	/**
+	 * @return number of slots of one host.
+	 */
+	public int getMaxPerHost() {
+		return mMaxPerHost;
+	}
+
+	/**
+	 * Returns the host of a url the way slots are counted.
+	 *
+	 * @param url
+	 *            - url.
+	 * @return host in lower case or an empty string if the url is malformed.
+	 */
+	public static String getHost(String url) {
+		try {
+			String host = new URL(url).getHost();
+			return host != null ? host.toLowerCase() : "";
+		} catch (MalformedURLException e) {
+			return "";
+		}
+	}
+}
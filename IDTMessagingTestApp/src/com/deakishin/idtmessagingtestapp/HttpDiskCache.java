@@ -0,0 +1,236 @@
+package com.deakishin.idtmessagingtestapp;
+
+import java.net.HttpURLConnection;
+import java.util.Locale;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+/**
+ * Index of downloaded files by their urls. For every url it keeps the name of
+ * the stored file and the validators of the HTTP response (ETag and
+ * Last-Modified), so repeated downloads can be revalidated with a conditional
+ * request or skipped while the response is fresh.
+ */
+public class HttpDiskCache {
+	private static final String TAG = "HttpDiskCache";
+
+	/* Name of the preferences file with the index. */
+	private static final String PREFS_NAME = "http_disk_cache";
+
+	/* Limit of the heuristic freshness lifetime. */
+	private static final long MAX_HEURISTIC_LIFETIME_MS = 24 * 60 * 60 * 1000L;
+
+	/* Keys of entry fields. */
+	private static final String KEY_FILENAME = "filename";
+	private static final String KEY_ETAG = "etag";
+	private static final String KEY_LAST_MODIFIED = "last_modified";
+	private static final String KEY_EXPIRES = "expires";
+
+	/**
+	 * Policy of using cached responses without a request.
+	 */
+	public enum FreshnessPolicy {
+		/** Always send a conditional request. */
+		ALWAYS_REVALIDATE,
+		/** Skip the request while the response is fresh according to its headers. */
+		USE_RESPONSE_HEADERS
+	}
+
+	/**
+	 * Cached response.
+	 */
+	public static class Entry {
+		/** Name of the file with the response body. */
+		public final String filename;
+		/** ETag of the response or null. */
+		public final String etag;
+		/** Last-Modified header of the response or null. */
+		public final String lastModified;
+		/** Time until which the response is fresh in ms. */
+		public final long expires;
+
+		public Entry(String filename, String etag, String lastModified, long expires) {
+			this.filename = filename;
+			this.etag = etag;
+			this.lastModified = lastModified;
+			this.expires = expires;
+		}
+
+		/**
+		 * @return true if the response can be revalidated with a conditional
+		 *         request.
+		 */
+		public boolean hasValidators() {
+			return etag != null || lastModified != null;
+		}
+	}
+
+	private final SharedPreferences mPrefs;
+	private final FreshnessPolicy mPolicy;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param context
+	 *            - app context.
+	 * @param policy
+	 *            - policy of using cached responses without a request.
+	 */
+	public HttpDiskCache(Context context, FreshnessPolicy policy) {
+		mPrefs = context.getApplicationContext().getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+		mPolicy = policy;
+	}
+
+	/**
+	 * Returns cached response for the url.
+	 *
+	 * @param url
+	 *            - requested url.
+	 * @return entry or null if the url is not cached.
+	 */
+	public Entry get(String url) {
+		String json = mPrefs.getString(url, null);
+		if (json == null) {
+			return null;
+		}
+		try {
+			JSONObject object = new JSONObject(json);
+			return new Entry(object.getString(KEY_FILENAME), object.optString(KEY_ETAG, null), object.optString(
+					KEY_LAST_MODIFIED, null), object.optLong(KEY_EXPIRES));
+		} catch (JSONException e) {
+			Log.e(TAG, "Corrupted entry for " + url + ": " + e);
+			remove(url);
+			return null;
+		}
+	}
+
+	/**
+	 * Checks if the cached response can be used without a request.
+	 *
+	 * @param entry
+	 *            - cached response.
+	 * @return true if the response is fresh.
+	 */
+	public boolean isFresh(Entry entry) {
+		return mPolicy == FreshnessPolicy.USE_RESPONSE_HEADERS && System.currentTimeMillis() < entry.expires;
+	}
+
+	/**
+	 * Adds the validators of the cached response to the request.
+	 *
+	 * @param connection
+	 *            - connection that's not connected yet.
+	 * @param entry
+	 *            - cached response.
+	 */
+	public static void addConditionalHeaders(HttpURLConnection connection, Entry entry) {
+		if (entry.etag != null) {
+			connection.setRequestProperty("If-None-Match", entry.etag);
+		}
+		if (entry.lastModified != null) {
+			connection.setRequestProperty("If-Modified-Since", entry.lastModified);
+		}
+	}
+
+	/**
+	 * Stores the response for the url. Responses forbidden to store are
+	 * removed from the cache.
+	 *
+	 * @param url
+	 *            - requested url.
+	 * @param filename
+	 *            - name of the file with the response body.
+	 * @param connection
+	 *            - connection with the response (200 or 304).
+	 * @param previous
+	 *            - previously cached response or null. Its validators are kept
+	 *            if the new response has none (e.g. 304 without headers).
+	 * @return stored entry or null if the response can't be stored.
+	 */
+	public Entry put(String url, String filename, HttpURLConnection connection, Entry previous) {
+		String cacheControl = lowerCase(connection.getHeaderField("Cache-Control"));
+		if (cacheControl != null && cacheControl.contains("no-store")) {
+			remove(url);
+			return null;
+		}
+
+		String etag = connection.getHeaderField("ETag");
+		String lastModified = connection.getHeaderField("Last-Modified");
+		if (previous != null && etag == null && lastModified == null) {
+			etag = previous.etag;
+			lastModified = previous.lastModified;
+		}
+		Entry entry = new Entry(filename, etag, lastModified, calculateExpires(connection, cacheControl));
+
+		try {
+			JSONObject object = new JSONObject();
+			object.put(KEY_FILENAME, entry.filename);
+			object.putOpt(KEY_ETAG, entry.etag);
+			object.putOpt(KEY_LAST_MODIFIED, entry.lastModified);
+			object.put(KEY_EXPIRES, entry.expires);
+			mPrefs.edit().putString(url, object.toString()).commit();
+		} catch (JSONException e) {
+			Log.e(TAG, "Unable to store entry for " + url + ": " + e);
+			return null;
+		}
+		return entry;
+	}
+
+	/**
+	 * Removes cached response for the url.
+	 *
+	 * @param url
+	 *            - url to remove.
+	 */
+	public void remove(String url) {
+		mPrefs.edit().remove(url).commit();
+	}
+
+	/*
+	 * Calculates the time until which the response is fresh. Uses max-age or
+	 * Expires, if there are none, 10% of the time since the last modification
+	 * is used as recommended by RFC 7234. must-revalidate only forbids using
+	 * the response after it's stale, which is never done here anyway, so it
+	 * doesn't shorten the lifetime.
+	 */
+	private static long calculateExpires(HttpURLConnection connection, String cacheControl) {
+		long now = System.currentTimeMillis();
+		if (cacheControl != null) {
+			if (cacheControl.contains("no-cache")) {
+				return 0;
+			}
+			int index = cacheControl.indexOf("max-age=");
+			if (index != -1) {
+				int start = index + "max-age=".length();
+				int end = start;
+				while (end < cacheControl.length() && Character.isDigit(cacheControl.charAt(end))) {
+					end++;
+				}
+				try {
+					return now + Long.parseLong(cacheControl.substring(start, end)) * 1000;
+				} catch (NumberFormatException e) {
+					return 0;
+				}
+			}
+		}
+
+		long date = connection.getDate() > 0 ? connection.getDate() : now;
+		if (connection.getExpiration() > 0) {
+			return now + Math.max(0, connection.getExpiration() - date);
+		}
+		if (connection.getLastModified() > 0) {
+			long lifetime = Math.min((date - connection.getLastModified()) / 10, MAX_HEURISTIC_LIFETIME_MS);
+			return now + Math.max(0, lifetime);
+		}
+		return 0;
+	}
+
+	private static String lowerCase(String s) {
+		return s == null ? null : s.toLowerCase(Locale.US);
+	}
+}
@@ -0,0 +1,376 @@
+package com.deakishin.idtmessagingtestapp;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+
+/**
+ * Fetcher of urls into files. Requests go through {@link HttpTransport},
+ * responses that may succeed later and broken connections are retried with
+ * its backoff, bodies are written by the {@link StorageWriter} of a
+ * {@link Storage} and complete files are committed to it. What to request and
+ * what to do with a response is decided by the {@link Handler} of a fetch, so
+ * callers like DownloadHelper add caching and resuming on top.
+ * <p>
+ * The class doesn't depend on Android, so it can be used by benchmarks and
+ * tools running on a desktop JVM. The log and the location of files are
+ * behind {@link Logger} and {@link Storage}.
+ */
+public class HttpFetcher {
+	private static final String TAG = "HttpFetcher";
+
+	/** Default number of attempts to fetch a url before giving up. */
+	public static final int DEFAULT_MAX_ATTEMPTS = 3;
+
+	/**
+	 * Log of fetches.
+	 */
+	public interface Logger {
+		/**
+		 * Logs a debug message.
+		 *
+		 * @param tag
+		 *            - source of the message.
+		 * @param message
+		 *            - message.
+		 */
+		void d(String tag, String message);
+
+		/**
+		 * Logs an error message.
+		 *
+		 * @param tag
+		 *            - source of the message.
+		 * @param message
+		 *            - message.
+		 */
+		void e(String tag, String message);
+	}
+
+	/**
+	 * Storage of fetched files.
+	 */
+	public interface Storage {
+		/**
+		 * @return writer of bodies to files.
+		 */
+		StorageWriter getWriter();
+
+		/**
+		 * Returns a file of the storage.
+		 *
+		 * @param filename
+		 *            - name of the file.
+		 * @return file object, the file may not exist.
+		 */
+		File getFile(String filename);
+
+		/**
+		 * Stores a complete file under the name derived from the hash of its
+		 * content.
+		 *
+		 * @param filename
+		 *            - name of the complete file.
+		 * @param hash
+		 *            - hex hash of its content, null if the writer doesn't
+		 *            compute it.
+		 * @return name of the stored file or null if an error occurred.
+		 */
+		String commit(String filename, String hash);
+	}
+
+	/**
+	 * Handler of the responses of one fetch. It configures every request and
+	 * handles its response, the connection is released or closed by the
+	 * fetcher afterwards.
+	 *
+	 * @param <T>
+	 *            - type of the result of the fetch.
+	 */
+	public static abstract class Handler<T> implements HttpTransport.RequestConfigurator {
+		@Override
+		public void configure(HttpURLConnection connection) {
+		}
+
+		/**
+		 * Handles a response. Responses that may succeed when repeated are
+		 * not passed here, they fail the attempt with
+		 * {@link ServerErrorException}.
+		 *
+		 * @param response
+		 *            - response of the attempt.
+		 * @return result of the fetch or null if it failed and must not be
+		 *         retried.
+		 * @throws IOException
+		 *             if an error that may pass occurred, so the attempt is
+		 *             repeated.
+		 */
+		public abstract T onResponse(Response response) throws IOException;
+
+		/**
+		 * Called when an attempt fails with an error that may pass. The fetch
+		 * gives up after {@link HttpFetcher#getMaxAttempts()} attempts.
+		 *
+		 * @param attempt
+		 *            - number of the attempt starting from 1.
+		 * @param e
+		 *            - error of the attempt.
+		 */
+		public void onAttemptFailed(int attempt, IOException e) {
+		}
+	}
+
+	/**
+	 * Response with a code that may be different when repeated.
+	 */
+	public static class ServerErrorException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		/** HTTP response code. */
+		public final int responseCode;
+
+		ServerErrorException(int responseCode) {
+			super("Server error, response code: " + responseCode);
+			this.responseCode = responseCode;
+		}
+	}
+
+	/**
+	 * Response of one attempt. Its body is read by writing it to the storage.
+	 */
+	public class Response {
+		private final HttpURLConnection mConnection;
+		private final int mResponseCode;
+		private final int mAttempt;
+		private InputStream mBody;
+
+		Response(HttpURLConnection connection, int responseCode, int attempt) {
+			mConnection = connection;
+			mResponseCode = responseCode;
+			mAttempt = attempt;
+		}
+
+		/**
+		 * @return connection of the response for reading its headers.
+		 */
+		public HttpURLConnection getConnection() {
+			return mConnection;
+		}
+
+		/**
+		 * @return HTTP response code.
+		 */
+		public int getResponseCode() {
+			return mResponseCode;
+		}
+
+		/**
+		 * @return number of the attempt starting from 1.
+		 */
+		public int getAttempt() {
+			return mAttempt;
+		}
+
+		/**
+		 * Writes the body to a file of the storage starting from the given
+		 * offset, see {@link StorageWriter#write}.
+		 *
+		 * @param filename
+		 *            - name of the file.
+		 * @param offset
+		 *            - position in the file to start writing from.
+		 * @param listener
+		 *            - listener of the progress or null.
+		 * @return result of writing with the hash of the whole file.
+		 * @throws IOException
+		 *             if an error occurred or the body is shorter than its
+		 *             Content-Length.
+		 */
+		public StorageWriter.Result write(String filename, long offset, StorageWriter.Listener listener)
+				throws IOException {
+			StorageWriter.Result result = mStorage.getWriter().write(openBody(), mStorage.getFile(filename), offset,
+					listener);
+			checkLength(result.bytesWritten);
+			logWriteResult(filename, result);
+			return result;
+		}
+
+		/**
+		 * Writes the body to a file of the storage unless it equals an
+		 * existing file, see {@link StorageWriter#writeUnlessEqual}.
+		 *
+		 * @param filename
+		 *            - name of the file to write if data differs.
+		 * @param existingFilename
+		 *            - name of the file data is expected to equal.
+		 * @param listener
+		 *            - listener of the progress or null.
+		 * @return result of writing with the hash of data.
+		 * @throws IOException
+		 *             if an error occurred or the body is shorter than its
+		 *             Content-Length.
+		 */
+		public StorageWriter.Result writeUnlessEqual(String filename, String existingFilename,
+				StorageWriter.Listener listener) throws IOException {
+			StorageWriter.Result result = mStorage.getWriter().writeUnlessEqual(openBody(),
+					mStorage.getFile(existingFilename), mStorage.getFile(filename), listener);
+			checkLength(result.length);
+			if (result.identical) {
+				mLogger.d(TAG, "Data equals " + existingFilename + ", nothing is written");
+			} else {
+				logWriteResult(filename, result);
+			}
+			return result;
+		}
+
+		/**
+		 * Commits a complete file to the storage, see {@link Storage#commit}.
+		 *
+		 * @param filename
+		 *            - name of the complete file.
+		 * @param hash
+		 *            - hex hash of its content.
+		 * @return name of the stored file.
+		 * @throws IOException
+		 *             if the file can't be stored.
+		 */
+		public String commit(String filename, String hash) throws IOException {
+			String committed = mStorage.commit(filename, hash);
+			if (committed == null) {
+				throw new IOException("Unable to store downloaded file");
+			}
+			return committed;
+		}
+
+		private InputStream openBody() throws IOException {
+			if (mBody == null) {
+				mBody = mConnection.getInputStream();
+			}
+			return mBody;
+		}
+
+		/* A body cut short without an error from the stream is retried as well. */
+		private void checkLength(long length) throws IOException {
+			long contentLength = mConnection.getContentLength();
+			if (contentLength >= 0 && length != contentLength) {
+				throw new IOException("Incomplete body: " + length + " of " + contentLength);
+			}
+		}
+
+		private void closeBody() {
+			if (mBody != null) {
+				try {
+					mBody.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	private final HttpTransport mTransport;
+	private final Storage mStorage;
+	private final Logger mLogger;
+	private volatile int mMaxAttempts = DEFAULT_MAX_ATTEMPTS;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param transport
+	 *            - transport of requests.
+	 * @param storage
+	 *            - storage of fetched files.
+	 * @param logger
+	 *            - log of fetches.
+	 */
+	public HttpFetcher(HttpTransport transport, Storage storage, Logger logger) {
+		mTransport = transport;
+		mStorage = storage;
+		mLogger = logger;
+	}
+
+	/**
+	 * Sets the number of attempts to fetch a url before giving up.
+	 *
+	 * @param maxAttempts
+	 *            - number of attempts, at least 1.
+	 */
+	public void setMaxAttempts(int maxAttempts) {
+		mMaxAttempts = Math.max(1, maxAttempts);
+	}
+
+	/**
+	 * @return number of attempts to fetch a url before giving up.
+	 */
+	public int getMaxAttempts() {
+		return mMaxAttempts;
+	}
+
+	/**
+	 * Fetches a url. Errors that may pass are retried after a delay of the
+	 * transport, an interruption of the thread stops the fetch at once.
+	 *
+	 * @param url
+	 *            - url to fetch.
+	 * @param handler
+	 *            - handler of the responses.
+	 * @return result of the handler or null if the fetch failed.
+	 */
+	public <T> T fetch(String url, Handler<T> handler) {
+		int maxAttempts = mMaxAttempts;
+		for (int attempt = 1;; attempt++) {
+			try {
+				if (attempt > 1) {
+					mTransport.sleepBeforeRetry(attempt);
+				}
+				return fetchOnce(url, attempt, handler);
+			} catch (IOException e) {
+				if (HttpTransport.isInterruption(e)) {
+					mLogger.e(TAG, "Fetching " + url + " is interrupted");
+					return null;
+				}
+				mLogger.e(TAG, "Attempt " + attempt + " to fetch " + url + " failed: " + e);
+				handler.onAttemptFailed(attempt, e);
+				if (attempt >= maxAttempts) {
+					return null;
+				}
+			}
+		}
+	}
+
+	/*
+	 * Performs one attempt. The connection is released for reuse after a
+	 * successful response and closed otherwise.
+	 */
+	private <T> T fetchOnce(String url, int attempt, Handler<T> handler) throws IOException {
+		HttpURLConnection connection = mTransport.open(url, handler);
+		Response response = null;
+		boolean released = false;
+		try {
+			int responseCode = connection.getResponseCode();
+			if (HttpTransport.isRetryable(responseCode)) {
+				throw new ServerErrorException(responseCode);
+			}
+			response = new Response(connection, responseCode, attempt);
+			T result = handler.onResponse(response);
+			if (result != null) {
+				/* The body is read completely, the connection can serve the next request. */
+				released = true;
+				mTransport.release(connection, response.mBody);
+			}
+			return result;
+		} finally {
+			if (!released) {
+				if (response != null) {
+					response.closeBody();
+				}
+				mTransport.abort(connection);
+			}
+		}
+	}
+
+	private void logWriteResult(String filename, StorageWriter.Result result) {
+		mLogger.d(TAG, "Written " + result.bytesWritten + " bytes to " + filename + " in " + result.elapsedNanos
+				/ 1000000 + " ms, " + String.format("%.1f", result.getMegabytesPerSecond()) + " MB/s");
+	}
+}
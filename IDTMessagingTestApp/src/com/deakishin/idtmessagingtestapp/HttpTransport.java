@@ -0,0 +1,517 @@
+package com.deakishin.idtmessagingtestapp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Transport of HTTP requests. Connections are opened with timeouts and
+ * released without disconnecting, so the connection pool of
+ * {@link HttpURLConnection} keeps them alive and reuses them for the next
+ * request to the same host. Failed requests can be retried after an
+ * exponential delay with jitter.
+ * <p>
+ * Optionally requests are hedged: if the response hasn't started after the
+ * given percentile of recent latencies, the same request is sent once more
+ * and the first response wins. Only idempotent requests are suitable for
+ * that, which all requests of the app are.
+ * <p>
+ * The class doesn't depend on Android, so it can be used by benchmarks and
+ * tools running on a desktop JVM.
+ */
+public class HttpTransport {
+
+	/** Default timeouts in ms. */
+	public static final int DEFAULT_CONNECT_TIMEOUT = 15000;
+	public static final int DEFAULT_READ_TIMEOUT = 20000;
+
+	/** Default delays between attempts in ms. */
+	public static final long DEFAULT_BASE_RETRY_DELAY = 500;
+	public static final long DEFAULT_MAX_RETRY_DELAY = 8000;
+
+	/* Number of latencies used for percentiles. */
+	private static final int LATENCY_SAMPLES = 64;
+
+	/* Hedging starts when this many latencies are known. */
+	private static final int MIN_HEDGE_SAMPLES = 8;
+
+	/* Requests are not hedged earlier than this, in ms. */
+	private static final long MIN_HEDGE_DELAY = 20;
+
+	/* Bytes of a response left unread that are skipped to reuse the connection. */
+	private static final int MAX_DRAIN_BYTES = 64 * 1024;
+
+	private static HttpTransport sInstance;
+
+	/* Executor of hedged requests, shared by all transports. */
+	private static ExecutorService sExecutor;
+
+	/**
+	 * Configurator of requests, it sets the method and headers. It can be
+	 * called several times for one request when it's hedged or retried.
+	 */
+	public interface RequestConfigurator {
+		/**
+		 * Configures a connection before it's connected.
+		 *
+		 * @param connection
+		 *            - connection to configure.
+		 * @throws IOException
+		 *             if an error occurred.
+		 */
+		void configure(HttpURLConnection connection) throws IOException;
+	}
+
+	private volatile int mConnectTimeout = DEFAULT_CONNECT_TIMEOUT;
+	private volatile int mReadTimeout = DEFAULT_READ_TIMEOUT;
+	private volatile long mBaseRetryDelay = DEFAULT_BASE_RETRY_DELAY;
+	private volatile long mMaxRetryDelay = DEFAULT_MAX_RETRY_DELAY;
+
+	/* Percentile of latencies after which requests are hedged, 0 if disabled. */
+	private volatile double mHedgePercentile;
+
+	/* Latencies of the recent responses in ms, a ring buffer. */
+	private final long[] mLatencies = new long[LATENCY_SAMPLES];
+	private int mLatencyCount;
+
+	private final Random mRandom = new Random();
+
+	/* Statistics. */
+	private int mRequestCount;
+	private int mHedgedCount;
+	private int mHedgeWinCount;
+	private int mRetryCount;
+
+	/**
+	 * Returns the transport of the process.
+	 *
+	 * @return transport instance.
+	 */
+	public static synchronized HttpTransport getInstance() {
+		if (sInstance == null) {
+			sInstance = new HttpTransport();
+		}
+		return sInstance;
+	}
+
+	/**
+	 * Sets the number of idle connections kept alive per host by
+	 * {@link HttpURLConnection}. It's a setting of the whole process.
+	 *
+	 * @param maxConnections
+	 *            - number of connections.
+	 */
+	public static void setMaxIdleConnections(int maxConnections) {
+		System.setProperty("http.keepAlive", "true");
+		System.setProperty("http.maxConnections", String.valueOf(maxConnections));
+	}
+
+	/**
+	 * Sets timeouts of connecting and reading. A read timeout applies to every
+	 * read of the body as well, so a stalled download fails instead of
+	 * hanging.
+	 *
+	 * @param connectTimeout
+	 *            - connect timeout in ms, 0 for none.
+	 * @param readTimeout
+	 *            - read timeout in ms, 0 for none.
+	 */
+	public void setTimeouts(int connectTimeout, int readTimeout) {
+		mConnectTimeout = connectTimeout;
+		mReadTimeout = readTimeout;
+	}
+
+	/**
+	 * Sets delays between attempts. The delay before attempt n is random
+	 * between 0 and min(maxDelay, baseDelay * 2^(n - 2)), so clients that
+	 * failed at once don't retry at once.
+	 *
+	 * @param baseDelay
+	 *            - delay before the second attempt in ms.
+	 * @param maxDelay
+	 *            - maximal delay in ms.
+	 */
+	public void setRetryDelays(long baseDelay, long maxDelay) {
+		mBaseRetryDelay = baseDelay;
+		mMaxRetryDelay = maxDelay;
+	}
+
+	/**
+	 * Enables hedging of requests.
+	 *
+	 * @param percentile
+	 *            - percentile of recent latencies from 0 to 1 after which a
+	 *            second request is sent, e.g. 0.9. It must leave out the
+	 *            slow responses: with 5% of them, 0.95 or more is too late.
+	 *            0 disables hedging.
+	 */
+	public void setHedgePercentile(double percentile) {
+		mHedgePercentile = percentile;
+	}
+
+	/**
+	 * Opens a connection and waits for the response headers. The connection
+	 * must be given back by {@link #release(HttpURLConnection, InputStream)}
+	 * or {@link #abort(HttpURLConnection)}.
+	 *
+	 * @param url
+	 *            - url of the resource.
+	 * @param configurator
+	 *            - configurator of the request or null for a plain GET.
+	 * @return connection with the response code available.
+	 * @throws IOException
+	 *             if an error occurred.
+	 */
+	public HttpURLConnection open(String url, RequestConfigurator configurator) throws IOException {
+		synchronized (this) {
+			mRequestCount++;
+		}
+		long startTime = System.nanoTime();
+		long hedgeDelay = getHedgeDelay();
+		HttpURLConnection connection;
+		if (hedgeDelay < 0) {
+			connection = connect(url, configurator);
+			addLatency((System.nanoTime() - startTime) / 1000000);
+		} else {
+			connection = openHedged(url, configurator, hedgeDelay);
+		}
+
+		/* Latency seen by the caller, with hedging if any. */
+		Metrics.getInstance().record(Metrics.TIME_TO_FIRST_BYTE, (System.nanoTime() - startTime) / 1000000);
+		return connection;
+	}
+
+	/**
+	 * Releases a connection after its response is read, so it can be reused.
+	 * Unread bytes of a short rest are skipped, otherwise the connection is
+	 * closed.
+	 *
+	 * @param connection
+	 *            - connection to release.
+	 * @param body
+	 *            - stream of the response body or null if it wasn't opened.
+	 */
+	public void release(HttpURLConnection connection, InputStream body) {
+		if (body == null) {
+			return;
+		}
+		try {
+			byte[] buffer = new byte[8 * 1024];
+			int drained = 0;
+			int bytesRead;
+			while (drained <= MAX_DRAIN_BYTES && (bytesRead = body.read(buffer)) != -1) {
+				drained += bytesRead;
+			}
+			body.close();
+			if (drained > MAX_DRAIN_BYTES) {
+				connection.disconnect();
+			}
+		} catch (IOException e) {
+			connection.disconnect();
+		}
+	}
+
+	/**
+	 * Closes a connection after an error. It won't be reused.
+	 *
+	 * @param connection
+	 *            - connection to close or null.
+	 */
+	public void abort(HttpURLConnection connection) {
+		if (connection != null) {
+			connection.disconnect();
+		}
+	}
+
+	/**
+	 * Checks if a response with the code may succeed when repeated.
+	 *
+	 * @param responseCode
+	 *            - HTTP response code.
+	 * @return true for server errors and throttling.
+	 */
+	public static boolean isRetryable(int responseCode) {
+		return responseCode == 408 || responseCode == 429 || responseCode >= 500;
+	}
+
+	/**
+	 * Checks if an error means the thread was interrupted, so the request
+	 * must not be retried. Timeouts are {@link InterruptedIOException}s as
+	 * well, but they are retryable.
+	 *
+	 * @param e
+	 *            - error of a request.
+	 * @return true if the request was interrupted.
+	 */
+	public static boolean isInterruption(IOException e) {
+		return e instanceof InterruptedIOException && !(e instanceof SocketTimeoutException);
+	}
+
+	/**
+	 * Calculates a random delay before an attempt.
+	 *
+	 * @param attempt
+	 *            - number of the attempt to make, starting from 2.
+	 * @return delay in ms.
+	 */
+	public long getRetryDelay(int attempt) {
+		long maxDelay = mBaseRetryDelay << Math.min(30, Math.max(0, attempt - 2));
+		maxDelay = Math.min(maxDelay, mMaxRetryDelay);
+		synchronized (this) {
+			return (long) (mRandom.nextDouble() * maxDelay);
+		}
+	}
+
+	/**
+	 * Waits before an attempt, see {@link #getRetryDelay(int)}.
+	 *
+	 * @param attempt
+	 *            - number of the attempt to make, starting from 2.
+	 * @throws InterruptedIOException
+	 *             if the thread is interrupted.
+	 */
+	public void sleepBeforeRetry(int attempt) throws InterruptedIOException {
+		synchronized (this) {
+			mRetryCount++;
+		}
+		try {
+			Thread.sleep(getRetryDelay(attempt));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted before attempt " + attempt);
+		}
+	}
+
+	/**
+	 * Returns a percentile of recent latencies.
+	 *
+	 * @param percentile
+	 *            - percentile from 0 to 1.
+	 * @return latency in ms or -1 if no requests were made.
+	 */
+	public synchronized long getLatencyPercentile(double percentile) {
+		int count = Math.min(mLatencyCount, LATENCY_SAMPLES);
+		if (count == 0) {
+			return -1;
+		}
+		long[] sorted = new long[count];
+		System.arraycopy(mLatencies, 0, sorted, 0, count);
+		Arrays.sort(sorted);
+		int index = (int) Math.ceil(percentile * count) - 1;
+		return sorted[Math.max(0, Math.min(count - 1, index))];
+	}
+
+	/**
+	 * @return number of opened requests, hedges not included.
+	 */
+	public synchronized int getRequestCount() {
+		return mRequestCount;
+	}
+
+	/**
+	 * @return number of requests that were hedged.
+	 */
+	public synchronized int getHedgedCount() {
+		return mHedgedCount;
+	}
+
+	/**
+	 * @return number of hedged requests where the second request won.
+	 */
+	public synchronized int getHedgeWinCount() {
+		return mHedgeWinCount;
+	}
+
+	/**
+	 * @return number of retries.
+	 */
+	public synchronized int getRetryCount() {
+		return mRetryCount;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "HttpTransport[requests=" + mRequestCount + ", retries=" + mRetryCount + ", hedged=" + mHedgedCount
+				+ ", hedge wins=" + mHedgeWinCount + ", p50=" + getLatencyPercentile(0.5) + " ms, p99="
+				+ getLatencyPercentile(0.99) + " ms]";
+	}
+
+	/*
+	 * Opens a connection and waits for the response code.
+	 */
+	private HttpURLConnection connect(String url, RequestConfigurator configurator) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+		boolean connected = false;
+		try {
+			connection.setConnectTimeout(mConnectTimeout);
+			connection.setReadTimeout(mReadTimeout);
+			if (configurator != null) {
+				configurator.configure(connection);
+			}
+			connection.getResponseCode();
+			connected = true;
+			return connection;
+		} finally {
+			if (!connected) {
+				connection.disconnect();
+			}
+		}
+	}
+
+	/*
+	 * Sends the request and sends it once more if the response hasn't started
+	 * after the delay. The first connection that gets a response is returned,
+	 * the other one is closed. If one request fails, the other one is waited
+	 * for.
+	 */
+	private HttpURLConnection openHedged(String url, RequestConfigurator configurator, long hedgeDelay)
+			throws IOException {
+		BlockingQueue<Object> results = new LinkedBlockingQueue<Object>();
+		AtomicBoolean claimed = new AtomicBoolean();
+		AtomicBoolean abandoned = new AtomicBoolean();
+		ExecutorService executor = getExecutor();
+		executor.execute(new Attempt(url, configurator, results, claimed, abandoned, false));
+		int running = 1;
+		IOException firstError = null;
+		try {
+			Object result = results.poll(hedgeDelay, TimeUnit.MILLISECONDS);
+			if (result == null) {
+				synchronized (this) {
+					mHedgedCount++;
+				}
+				executor.execute(new Attempt(url, configurator, results, claimed, abandoned, true));
+				running++;
+			}
+			while (true) {
+				if (result == null) {
+					result = results.take();
+				}
+				running--;
+				if (result instanceof HttpURLConnection) {
+					return (HttpURLConnection) result;
+				}
+				if (firstError == null) {
+					firstError = (IOException) result;
+				}
+				if (running == 0) {
+					throw firstError;
+				}
+				result = null;
+			}
+		} catch (InterruptedException e) {
+			/*
+			 * A response that comes later is closed by its attempt. A winner
+			 * may have already put its connection into the queue, it's closed
+			 * here, whichever of the two sees it first.
+			 */
+			claimed.set(true);
+			abandoned.set(true);
+			Object result;
+			while ((result = results.poll()) != null) {
+				if (result instanceof HttpURLConnection) {
+					((HttpURLConnection) result).disconnect();
+				}
+			}
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for " + url);
+		}
+	}
+
+	/*
+	 * Returns the delay after which a request is hedged, or -1 if hedging is
+	 * disabled or there are too few latencies yet.
+	 */
+	private long getHedgeDelay() {
+		double percentile = mHedgePercentile;
+		synchronized (this) {
+			if (percentile <= 0 || mLatencyCount < MIN_HEDGE_SAMPLES) {
+				return -1;
+			}
+		}
+		return Math.max(MIN_HEDGE_DELAY, getLatencyPercentile(percentile));
+	}
+
+	private synchronized void addLatency(long latency) {
+		mLatencies[mLatencyCount % LATENCY_SAMPLES] = latency;
+		mLatencyCount++;
+	}
+
+	private static synchronized ExecutorService getExecutor() {
+		if (sExecutor == null) {
+			sExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+				private int mCount = 0;
+
+				@Override
+				public synchronized Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "HttpTransport #" + (++mCount));
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return sExecutor;
+	}
+
+	/*
+	 * One of the hedged requests. The first one that gets a response claims
+	 * the result, a later one closes its connection.
+	 */
+	private class Attempt implements Runnable {
+		private final String mUrl;
+		private final RequestConfigurator mConfigurator;
+		private final BlockingQueue<Object> mResults;
+		private final AtomicBoolean mClaimed;
+		private final AtomicBoolean mAbandoned;
+		private final boolean mHedge;
+
+		Attempt(String url, RequestConfigurator configurator, BlockingQueue<Object> results, AtomicBoolean claimed,
+				AtomicBoolean abandoned, boolean hedge) {
+			mUrl = url;
+			mConfigurator = configurator;
+			mResults = results;
+			mClaimed = claimed;
+			mAbandoned = abandoned;
+			mHedge = hedge;
+		}
+
+		@Override
+		public void run() {
+			long startTime = System.nanoTime();
+			HttpURLConnection connection;
+			try {
+				connection = connect(mUrl, mConfigurator);
+			} catch (IOException e) {
+				mResults.add(e);
+				return;
+			}
+			addLatency((System.nanoTime() - startTime) / 1000000);
+			if (!mClaimed.compareAndSet(false, true)) {
+				connection.disconnect();
+				return;
+			}
+			if (mHedge) {
+				synchronized (HttpTransport.this) {
+					mHedgeWinCount++;
+				}
+			}
+			mResults.add(connection);
+
+			/* The caller may have given up before the connection was added. */
+			if (mAbandoned.get() && mResults.remove(connection)) {
+				connection.disconnect();
+			}
+		}
+	}
+}
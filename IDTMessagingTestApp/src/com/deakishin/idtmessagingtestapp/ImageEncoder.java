@@ -0,0 +1,289 @@
+package com.deakishin.idtmessagingtestapp;
+
+import java.io.BufferedOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.CompressFormat;
+import android.os.Build;
+import android.util.Log;
+
+/**
+ * Encoder of bitmaps to files. The format is chosen per image by a
+ * {@link FormatSelector}: by default lossless PNG for images with alpha and
+ * for graphics with few colors, where lossy formats blur edges and don't
+ * save much, and lossy JPEG or WebP with the given quality for photos. PNG is
+ * the slowest encoder and gives the largest files, so photos are never
+ * stored as PNG unless the selector says so.
+ * <p>
+ * Encoded data goes through a buffer to the output, and the time and size
+ * of every encoding are reported in the result and recorded in
+ * {@link Metrics}. Tasks that encode and store images in background run on
+ * the executor of {@link #getExecutor()}.
+ */
+public class ImageEncoder {
+	private static final String TAG = "ImageEncoder";
+
+	/** Default quality of lossy formats. */
+	public static final int DEFAULT_QUALITY = 90;
+
+	/* Size of the buffer between the encoder and the output. */
+	private static final int OUTPUT_BUFFER_SIZE = 64 * 1024;
+
+	/* Threads of the background executor. Encoding takes a lot of memory, so there are few. */
+	private static final int THREAD_COUNT = Math.min(2, Runtime.getRuntime().availableProcessors());
+
+	private static ExecutorService sExecutor;
+
+	/**
+	 * Selector of the format of an image.
+	 */
+	public interface FormatSelector {
+		/**
+		 * Chooses the format of an image.
+		 *
+		 * @param bitmap
+		 *            - image to encode.
+		 * @param hasAlpha
+		 *            - whether the image has transparent pixels.
+		 * @return format to encode the image in.
+		 */
+		CompressFormat select(Bitmap bitmap, boolean hasAlpha);
+	}
+
+	/**
+	 * Result of encoding.
+	 */
+	public static class Result {
+		/** Format of the data. */
+		public final CompressFormat format;
+		/** Quality the data was encoded with. */
+		public final int quality;
+		/** Size of the data in bytes. */
+		public final long length;
+		/** Time of encoding in ns, including writing to the output. */
+		public final long elapsedNanos;
+
+		Result(CompressFormat format, int quality, long length, long elapsedNanos) {
+			this.format = format;
+			this.quality = quality;
+			this.length = length;
+			this.elapsedNanos = elapsedNanos;
+		}
+
+		/**
+		 * @return MIME type of the data.
+		 */
+		public String getMimeType() {
+			return ImageEncoder.getMimeType(format);
+		}
+
+		@Override
+		public String toString() {
+			return format + (isLossless(format) ? "" : " q" + quality) + ", " + length / 1024 + " KB in "
+					+ elapsedNanos / 1000000 + " ms";
+		}
+	}
+
+	/**
+	 * Selector that keeps images with alpha and graphics lossless and encodes
+	 * photos with a lossy format. An image is counted as graphics when a grid
+	 * of sampled pixels has few distinct colors.
+	 */
+	public static class ContentFormatSelector implements FormatSelector {
+		/* Side of the grid of sampled pixels. */
+		private static final int SAMPLE_GRID = 32;
+
+		/* Images with fewer distinct colors per sample are graphics. */
+		private static final double GRAPHICS_COLOR_RATIO = 0.25;
+
+		private final boolean mPreferWebp;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param preferWebp
+		 *            - true to encode photos as WebP where it's supported, it's
+		 *            smaller than JPEG of the same quality but slower to encode.
+		 */
+		public ContentFormatSelector(boolean preferWebp) {
+			mPreferWebp = preferWebp;
+		}
+
+		@Override
+		public CompressFormat select(Bitmap bitmap, boolean hasAlpha) {
+			if (hasAlpha) {
+				/* WebP keeps alpha since Android 4.3, JPEG can't. */
+				return mPreferWebp && Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2 ? CompressFormat.WEBP
+						: CompressFormat.PNG;
+			}
+			if (isGraphics(bitmap)) {
+				return CompressFormat.PNG;
+			}
+			return mPreferWebp && Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH ? CompressFormat.WEBP
+					: CompressFormat.JPEG;
+		}
+
+		/*
+		 * Checks if the image is graphics by the number of distinct colors in a
+		 * grid of pixels.
+		 */
+		private static boolean isGraphics(Bitmap bitmap) {
+			int width = bitmap.getWidth();
+			int height = bitmap.getHeight();
+			int columns = Math.min(SAMPLE_GRID, width);
+			int rows = Math.min(SAMPLE_GRID, height);
+			Set<Integer> colors = new HashSet<Integer>();
+			for (int row = 0; row < rows; row++) {
+				int y = (int) ((row + 0.5) * height / rows);
+				for (int column = 0; column < columns; column++) {
+					colors.add(bitmap.getPixel((int) ((column + 0.5) * width / columns), y));
+				}
+			}
+			return colors.size() < columns * rows * GRAPHICS_COLOR_RATIO;
+		}
+	}
+
+	private final FormatSelector mSelector;
+	private volatile int mQuality = DEFAULT_QUALITY;
+
+	/**
+	 * Constructor with the default selector, which doesn't use WebP.
+	 */
+	public ImageEncoder() {
+		this(new ContentFormatSelector(false));
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param selector
+	 *            - selector of formats.
+	 */
+	public ImageEncoder(FormatSelector selector) {
+		mSelector = selector;
+	}
+
+	/**
+	 * Sets the quality of lossy formats.
+	 *
+	 * @param quality
+	 *            - quality from 0 to 100.
+	 */
+	public void setQuality(int quality) {
+		mQuality = Math.max(0, Math.min(100, quality));
+	}
+
+	/**
+	 * Encodes an image to the output in the current thread. The output isn't
+	 * closed.
+	 *
+	 * @param bitmap
+	 *            - image to encode.
+	 * @param hasAlpha
+	 *            - whether the image has transparent pixels.
+	 * @param out
+	 *            - output of the data.
+	 * @return result of encoding.
+	 * @throws IOException
+	 *             if the image can't be encoded or written.
+	 */
+	public Result encode(Bitmap bitmap, boolean hasAlpha, OutputStream out) throws IOException {
+		long startTime = System.nanoTime();
+		CompressFormat format = mSelector.select(bitmap, hasAlpha);
+		int quality = isLossless(format) ? 100 : mQuality;
+
+		CountingOutputStream counter = new CountingOutputStream(out);
+		OutputStream stream = new BufferedOutputStream(counter, OUTPUT_BUFFER_SIZE);
+		if (!bitmap.compress(format, quality, stream)) {
+			throw new IOException("Unable to encode " + bitmap.getWidth() + "x" + bitmap.getHeight() + " as " + format);
+		}
+		stream.flush();
+
+		Result result = new Result(format, quality, counter.getCount(), System.nanoTime() - startTime);
+		Metrics.getInstance().record(Metrics.ENCODE, result.elapsedNanos / 1000);
+		Metrics.getInstance().record(Metrics.ENCODED_SIZE, result.length / 1024);
+		Log.d(TAG, "Encoded " + bitmap.getWidth() + "x" + bitmap.getHeight() + " as " + result);
+		return result;
+	}
+
+	/**
+	 * Returns the executor that encodes images in background. Tasks that
+	 * encode and store images should run on it, so encodings don't compete
+	 * for memory.
+	 *
+	 * @return executor.
+	 */
+	public static synchronized ExecutorService getExecutor() {
+		if (sExecutor == null) {
+			sExecutor = Executors.newFixedThreadPool(THREAD_COUNT, new ThreadFactory() {
+				private int mCount = 0;
+
+				@Override
+				public synchronized Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, TAG + " #" + (++mCount));
+					thread.setPriority(Thread.MIN_PRIORITY);
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return sExecutor;
+	}
+
+	/**
+	 * Returns the MIME type of a format.
+	 *
+	 * @param format
+	 *            - format of images.
+	 * @return MIME type.
+	 */
+	public static String getMimeType(CompressFormat format) {
+		switch (format) {
+		case JPEG:
+			return "image/jpeg";
+		case PNG:
+			return "image/png";
+		default:
+			return "image/webp";
+		}
+	}
+
+	private static boolean isLossless(CompressFormat format) {
+		return format == CompressFormat.PNG;
+	}
+
+	/*
+	 * Stream that counts written bytes.
+	 */
+	private static class CountingOutputStream extends FilterOutputStream {
+		private long mCount;
+
+		CountingOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			mCount++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			mCount += len;
+		}
+
+		long getCount() {
+			return mCount;
+		}
+	}
+}
@@ -0,0 +1,55 @@
+package com.deakishin.idtmessagingtestapp;
+
+/**
+ * Kernels of image processing that work on plain arrays and numbers: pixel
+ * reversal used by rotations and the sampling math of decoding. Bitmaps are
+ * handled by the callers, so the kernels can be measured in isolation.
+ * <p>
+ * The class doesn't depend on Android, so it can be used by benchmarks and
+ * tools running on a desktop JVM.
+ */
+public class ImageKernels {
+
+	private ImageKernels() {
+	}
+
+	/**
+	 * Reverses a part of an array of pixels in place. Reversing rows of an
+	 * image as a whole rotates them 180 degrees.
+	 *
+	 * @param pixels
+	 *            - array of pixels.
+	 * @param from
+	 *            - index of the first pixel, inclusive.
+	 * @param to
+	 *            - index of the last pixel, exclusive.
+	 */
+	public static void reverse(int[] pixels, int from, int to) {
+		for (int i = from, j = to - 1; i < j; i++, j--) {
+			int tmp = pixels[i];
+			pixels[i] = pixels[j];
+			pixels[j] = tmp;
+		}
+	}
+
+	/**
+	 * Calculates the largest power of 2 sample size that keeps the width of a
+	 * decoded image not less than the requested width.
+	 *
+	 * @param width
+	 *            - width of the image.
+	 * @param reqWidth
+	 *            - requested width, not positive if the image isn't scaled.
+	 * @return sample size.
+	 */
+	public static int calculateInSampleSize(int width, int reqWidth) {
+		int inSampleSize = 1;
+		if (width > reqWidth && reqWidth > 0) {
+			final int halfWidth = width / 2;
+			while ((halfWidth / inSampleSize) >= reqWidth) {
+				inSampleSize *= 2;
+			}
+		}
+		return inSampleSize;
+	}
+}
@@ -0,0 +1,495 @@
+package com.deakishin.idtmessagingtestapp;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Map;
+
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+/**
+ * Persistent index of image metadata: bounds, MIME type, alpha presence and
+ * file size. Metadata is recorded once when an image is written, so displaying
+ * it doesn't need a separate pass to decode its bounds.
+ * <p>
+ * Records are appended to one binary file that is read on the first lookup.
+ * Images are named by their content, so a record never becomes wrong, it can
+ * only become unused when the image is deleted. Unused records are dropped
+ * when the file is compacted.
+ */
+public class ImageMetadataIndex {
+	private static final String TAG = "ImageMetadataIndex";
+
+	/* Name of the index file and its temporary copy used for compacting. */
+	private static final String INDEX_FILENAME = "metadata.idx";
+	private static final String INDEX_TMP_FILENAME = "metadata.idx.tmp";
+
+	/* Version of the file format, a file of another version is discarded. */
+	private static final int VERSION = 1;
+
+	/* Types of records. */
+	private static final byte RECORD_PUT = 1;
+	private static final byte RECORD_REMOVE = 2;
+
+	/* Number of bytes of the file inspected for alpha presence. */
+	private static final int HEADER_SIZE = 64 * 1024;
+
+	/* Number of redundant records that triggers compacting. */
+	private static final int REDUNDANT_RECORDS_THRESHOLD = 500;
+
+	private static ImageMetadataIndex sInstance;
+
+	/**
+	 * Metadata of one image.
+	 */
+	public static class Metadata {
+		/** Bounds of the image. */
+		public final int width;
+		public final int height;
+		/** MIME type of the image or null if it's unknown. */
+		public final String mimeType;
+		/** True if the image may have transparent pixels. */
+		public final boolean hasAlpha;
+		/** Size of the file in bytes. */
+		public final long byteSize;
+
+		public Metadata(int width, int height, String mimeType, boolean hasAlpha, long byteSize) {
+			this.width = width;
+			this.height = height;
+			this.mimeType = mimeType;
+			this.hasAlpha = hasAlpha;
+			this.byteSize = byteSize;
+		}
+
+		@Override
+		public String toString() {
+			return "Metadata[" + width + "x" + height + ", " + mimeType + ", alpha=" + hasAlpha + ", " + byteSize
+					+ " bytes]";
+		}
+	}
+
+	private final File mDirectory;
+
+	/* Records by file name, null until the index file is read. */
+	private Map<String, Metadata> mEntries;
+
+	private DataOutputStream mOutput;
+	private int mRedundantRecords;
+
+	/* Set when the index file has been read by the loader thread. */
+	private volatile boolean mLoaded;
+
+	/**
+	 * Returns the index of the directory, creating it if necessary. The index
+	 * is shared by the whole process.
+	 *
+	 * @param directory
+	 *            - directory with images.
+	 * @return index instance.
+	 */
+	public static synchronized ImageMetadataIndex getInstance(File directory) {
+		if (sInstance == null || !sInstance.mDirectory.equals(directory)) {
+			sInstance = new ImageMetadataIndex(directory);
+		}
+		return sInstance;
+	}
+
+	/**
+	 * Constructor. The index file is read on a background thread, so the UI
+	 * thread doesn't wait for it, see {@link #peek(String)}.
+	 *
+	 * @param directory
+	 *            - directory with images.
+	 */
+	public ImageMetadataIndex(File directory) {
+		mDirectory = directory;
+
+		Thread loader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				synchronized (ImageMetadataIndex.this) {
+					ensureLoaded();
+				}
+				mLoaded = true;
+			}
+		}, TAG);
+		loader.setPriority(Thread.MIN_PRIORITY);
+		loader.start();
+	}
+
+	/**
+	 * Returns the metadata of an image.
+	 *
+	 * @param filename
+	 *            - name of the image file.
+	 * @return metadata or null if it's not recorded.
+	 */
+	public synchronized Metadata get(String filename) {
+		ensureLoaded();
+		return mEntries.get(filename);
+	}
+
+	/**
+	 * Returns the metadata of an image if the index is already loaded,
+	 * without waiting for it. It's meant for the UI thread.
+	 *
+	 * @param filename
+	 *            - name of the image file.
+	 * @return metadata or null if it's not recorded or not loaded yet.
+	 */
+	public Metadata peek(String filename) {
+		return mLoaded ? get(filename) : null;
+	}
+
+	/**
+	 * Records the metadata of an image.
+	 *
+	 * @param filename
+	 *            - name of the image file.
+	 * @param metadata
+	 *            - metadata of the image.
+	 */
+	public synchronized void put(String filename, Metadata metadata) {
+		ensureLoaded();
+		if (mEntries.put(filename, metadata) != null) {
+			mRedundantRecords++;
+		}
+		try {
+			DataOutputStream out = getOutput();
+			writeRecord(out, filename, metadata);
+			out.flush();
+		} catch (IOException e) {
+			Log.e(TAG, "Error writing index: " + e);
+			closeOutput();
+		}
+	}
+
+	/**
+	 * Forgets the metadata of a deleted image.
+	 *
+	 * @param filename
+	 *            - name of the image file.
+	 */
+	public synchronized void remove(String filename) {
+		ensureLoaded();
+		if (mEntries.remove(filename) == null) {
+			return;
+		}
+		mRedundantRecords += 2;
+		try {
+			DataOutputStream out = getOutput();
+			out.writeByte(RECORD_REMOVE);
+			out.writeUTF(filename);
+			out.flush();
+		} catch (IOException e) {
+			Log.e(TAG, "Error writing index: " + e);
+			closeOutput();
+		}
+		if (mRedundantRecords >= REDUNDANT_RECORDS_THRESHOLD && mRedundantRecords >= mEntries.size()) {
+			compact();
+		}
+	}
+
+	/**
+	 * Reads the metadata from an image file. Bounds and type are decoded, alpha
+	 * presence is found from the format header.
+	 *
+	 * @param file
+	 *            - image file.
+	 * @return metadata or null if the file is not a supported image.
+	 */
+	public static Metadata read(File file) {
+		BitmapFactory.Options opts = new BitmapFactory.Options();
+		opts.inJustDecodeBounds = true;
+		BitmapFactory.decodeFile(file.getAbsolutePath(), opts);
+		if (opts.outWidth <= 0 || opts.outHeight <= 0) {
+			return null;
+		}
+
+		InputStream is = null;
+		try {
+			is = new FileInputStream(file);
+			byte[] header = new byte[HEADER_SIZE];
+			int length = 0;
+			int bytesRead;
+			while (length < header.length && (bytesRead = is.read(header, length, header.length - length)) != -1) {
+				length += bytesRead;
+			}
+			return new Metadata(opts.outWidth, opts.outHeight, opts.outMimeType, hasAlpha(header, length),
+					file.length());
+		} catch (IOException e) {
+			Log.e(TAG, "Error reading " + file.getName() + ": " + e);
+			return null;
+		} finally {
+			if (is != null) {
+				try {
+					is.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	/**
+	 * Finds out from the header of an image file whether it may have
+	 * transparent pixels. When it can't be known, e.g. the header is cut, true
+	 * is returned.
+	 *
+	 * @param header
+	 *            - first bytes of the file.
+	 * @param length
+	 *            - number of bytes in the header.
+	 * @return false if the image is opaque for sure.
+	 */
+	public static boolean hasAlpha(byte[] header, int length) {
+		if (startsWith(header, length, 0, new byte[] { (byte) 0x89, 'P', 'N', 'G' })) {
+			return hasPngAlpha(header, length);
+		}
+		if (startsWith(header, length, 0, new byte[] { 'R', 'I', 'F', 'F' })
+				&& startsWith(header, length, 8, new byte[] { 'W', 'E', 'B', 'P' })) {
+			return hasWebpAlpha(header, length);
+		}
+		if (startsWith(header, length, 0, new byte[] { (byte) 0xff, (byte) 0xd8 })) {
+			/* JPEG has no alpha channel. */
+			return false;
+		}
+		return true;
+	}
+
+	/*
+	 * PNG has alpha if its color type has an alpha channel or a tRNS chunk
+	 * precedes the image data.
+	 */
+	private static boolean hasPngAlpha(byte[] header, int length) {
+		final int colorTypeOffset = 25;
+		if (length <= colorTypeOffset) {
+			return true;
+		}
+		int colorType = header[colorTypeOffset] & 0xff;
+		if (colorType == 4 || colorType == 6) {
+			return true;
+		}
+
+		/* Chunks: 4 bytes of length, 4 bytes of type, data and 4 bytes of CRC. */
+		int offset = 8;
+		while (offset + 8 <= length) {
+			long chunkLength = readInt(header, offset) & 0xffffffffL;
+			if (startsWith(header, length, offset + 4, new byte[] { 't', 'R', 'N', 'S' })) {
+				return true;
+			}
+			if (startsWith(header, length, offset + 4, new byte[] { 'I', 'D', 'A', 'T' })) {
+				return false;
+			}
+			if (chunkLength > length) {
+				break;
+			}
+			offset += 12 + (int) chunkLength;
+		}
+		return true;
+	}
+
+	/*
+	 * Extended WebP declares alpha in its flags, lossless WebP in its header,
+	 * simple lossy WebP has no alpha.
+	 */
+	private static boolean hasWebpAlpha(byte[] header, int length) {
+		if (startsWith(header, length, 12, new byte[] { 'V', 'P', '8', 'X' })) {
+			return length <= 20 || (header[20] & 0x10) != 0;
+		}
+		if (startsWith(header, length, 12, new byte[] { 'V', 'P', '8', 'L' })) {
+			/* Signature byte is followed by 14 bits of width and height each and the alpha bit. */
+			return length < 25 || (header[24] & 0x10) != 0;
+		}
+		return !startsWith(header, length, 12, new byte[] { 'V', 'P', '8', ' ' });
+	}
+
+	private static boolean startsWith(byte[] data, int length, int offset, byte[] prefix) {
+		if (offset < 0 || offset + prefix.length > length) {
+			return false;
+		}
+		for (int i = 0; i < prefix.length; i++) {
+			if (data[offset + i] != prefix[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static int readInt(byte[] data, int offset) {
+		return ((data[offset] & 0xff) << 24) | ((data[offset + 1] & 0xff) << 16) | ((data[offset + 2] & 0xff) << 8)
+				| (data[offset + 3] & 0xff);
+	}
+
+	/*
+	 * Reads the index file on the first access. A cut or broken tail is
+	 * truncated, so new records are appended after the last complete one.
+	 */
+	private void ensureLoaded() {
+		if (mEntries != null) {
+			return;
+		}
+		mEntries = new HashMap<String, Metadata>();
+		File file = new File(mDirectory, INDEX_FILENAME);
+		if (!file.isFile()) {
+			return;
+		}
+
+		long startTime = System.currentTimeMillis();
+		int records = 0;
+		/* Length of the file up to the end of the last complete record. */
+		long validLength = 0;
+		CountingInputStream counter = null;
+		DataInputStream in = null;
+		try {
+			counter = new CountingInputStream(new BufferedInputStream(new FileInputStream(file)));
+			in = new DataInputStream(counter);
+			if (in.readInt() != VERSION) {
+				Log.d(TAG, "Index of another version is discarded");
+				file.delete();
+				return;
+			}
+			validLength = counter.getCount();
+			while (true) {
+				byte type = in.readByte();
+				String filename = in.readUTF();
+				if (type == RECORD_PUT) {
+					mEntries.put(filename, readMetadata(in));
+				} else if (type == RECORD_REMOVE) {
+					mEntries.remove(filename);
+				} else {
+					throw new IOException("Unknown record type " + type);
+				}
+				records++;
+				validLength = counter.getCount();
+			}
+		} catch (EOFException e) {
+			/* End of the file, the last record may be cut if the process was killed. */
+		} catch (IOException e) {
+			Log.e(TAG, "Error reading index: " + e);
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+		mRedundantRecords = records - mEntries.size();
+		Log.d(TAG, mEntries.size() + " records are read in " + (System.currentTimeMillis() - startTime) + " ms");
+		if (file.isFile() && file.length() > validLength && !truncate(file, validLength)) {
+			compact();
+		} else if (mRedundantRecords >= REDUNDANT_RECORDS_THRESHOLD && mRedundantRecords >= mEntries.size()) {
+			compact();
+		}
+	}
+
+	/*
+	 * Cuts the file to the given length. Returns false if it's not possible.
+	 */
+	private static boolean truncate(File file, long length) {
+		Log.d(TAG, "Truncating index from " + file.length() + " to " + length + " bytes");
+		RandomAccessFile raf = null;
+		try {
+			raf = new RandomAccessFile(file, "rw");
+			raf.setLength(length);
+			return true;
+		} catch (IOException e) {
+			Log.e(TAG, "Error truncating index: " + e);
+			return false;
+		} finally {
+			if (raf != null) {
+				try {
+					raf.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	/*
+	 * Rewrites the index file with the records of existing images only.
+	 */
+	private void compact() {
+		closeOutput();
+		File tmp = new File(mDirectory, INDEX_TMP_FILENAME);
+		DataOutputStream out = null;
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+			out.writeInt(VERSION);
+			for (Map.Entry<String, Metadata> entry : mEntries.entrySet()) {
+				if (new File(mDirectory, entry.getKey()).isFile()) {
+					writeRecord(out, entry.getKey(), entry.getValue());
+				}
+			}
+			out.close();
+			out = null;
+
+			File file = new File(mDirectory, INDEX_FILENAME);
+			if (!tmp.renameTo(file) && !(file.delete() && tmp.renameTo(file))) {
+				throw new IOException("Unable to rename " + tmp.getName());
+			}
+			mRedundantRecords = 0;
+		} catch (IOException e) {
+			Log.e(TAG, "Error compacting index: " + e);
+		} finally {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {
+				}
+			}
+			tmp.delete();
+		}
+	}
+
+	private DataOutputStream getOutput() throws IOException {
+		if (mOutput == null) {
+			File file = new File(mDirectory, INDEX_FILENAME);
+			boolean isNew = !file.isFile() || file.length() == 0;
+			mOutput = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+			if (isNew) {
+				mOutput.writeInt(VERSION);
+			}
+		}
+		return mOutput;
+	}
+
+	private void closeOutput() {
+		if (mOutput != null) {
+			try {
+				mOutput.close();
+			} catch (IOException e) {
+			}
+			mOutput = null;
+		}
+	}
+
+	private static void writeRecord(DataOutputStream out, String filename, Metadata metadata) throws IOException {
+		out.writeByte(RECORD_PUT);
+		out.writeUTF(filename);
+		out.writeInt(metadata.width);
+		out.writeInt(metadata.height);
+		out.writeUTF(metadata.mimeType != null ? metadata.mimeType : "");
+		out.writeBoolean(metadata.hasAlpha);
+		out.writeLong(metadata.byteSize);
+	}
+
+	private static Metadata readMetadata(DataInputStream in) throws IOException {
+		int width = in.readInt();
+		int height = in.readInt();
+		String mimeType = in.readUTF();
+		boolean hasAlpha = in.readBoolean();
+		long byteSize = in.readLong();
+		return new Metadata(width, height, mimeType.length() > 0 ? mimeType : null, hasAlpha, byteSize);
+	}
+}
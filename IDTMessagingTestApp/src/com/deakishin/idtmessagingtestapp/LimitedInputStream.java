@@ -0,0 +1,72 @@
+package com.deakishin.idtmessagingtestapp;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * InputStream that ends after the given number of bytes of the underlying
+ * stream. Used for reading files that are still being written.
+ */
+public class LimitedInputStream extends FilterInputStream {
+
+	/* Number of bytes that can still be read. */
+	private long mRemaining;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param in
+	 *            - underlying stream.
+	 * @param limit
+	 *            - number of bytes to read at most.
+	 */
+	public LimitedInputStream(InputStream in, long limit) {
+		super(in);
+		mRemaining = limit;
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (mRemaining <= 0) {
+			return -1;
+		}
+		int b = super.read();
+		if (b != -1) {
+			mRemaining--;
+		}
+		return b;
+	}
+
+	@Override
+	public int read(byte[] buffer, int offset, int count) throws IOException {
+		if (mRemaining <= 0) {
+			return -1;
+		}
+		int bytesRead = super.read(buffer, offset, (int) Math.min(count, mRemaining));
+		if (bytesRead > 0) {
+			mRemaining -= bytesRead;
+		}
+		return bytesRead;
+	}
+
+	@Override
+	public long skip(long count) throws IOException {
+		long skipped = super.skip(Math.min(count, mRemaining));
+		if (skipped > 0) {
+			mRemaining -= skipped;
+		}
+		return skipped;
+	}
+
+	@Override
+	public int available() throws IOException {
+		return (int) Math.min(super.available(), mRemaining);
+	}
+
+	/* Position of the limit can't be restored, so marking is not supported. */
+	@Override
+	public boolean markSupported() {
+		return false;
+	}
+}
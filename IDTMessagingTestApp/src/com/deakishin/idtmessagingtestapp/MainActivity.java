@@ -1,5 +1,10 @@
 package com.deakishin.idtmessagingtestapp;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
 import android.Manifest;
 import android.annotation.TargetApi;
 import android.app.Activity;
@@ -18,6 +23,7 @@ import android.os.Bundle;
 import android.support.v4.app.ActivityCompat;
 import android.support.v4.content.ContextCompat;
 import android.support.v4.content.LocalBroadcastManager;
+import android.util.Log;
 import android.view.View;
 import android.view.inputmethod.InputMethodManager;
 import android.widget.Button;
@@ -31,22 +37,41 @@ import android.widget.ProgressBar;
  *
  */
 public class MainActivity extends Activity {
+	private static final String TAG = "MainActivity";
 
 	/* Request codes for child activities. */
 	private static final int REQUEST_ASK_PERMISSIONS = 0;
 
+	/* Previews are decoded with 1/PREVIEW_SCALE of the view width. */
+	private static final int PREVIEW_SCALE = 4;
+
+	/* Previews are refreshed every 1/PREVIEW_STEPS of the data. */
+	private static final int PREVIEW_STEPS = 5;
+	private static final long PREVIEW_MIN_STEP_BYTES = 32 * 1024;
+
+	/* File the metrics are exported to, in the external files directory of the app. */
+	private static final String METRICS_FILENAME = "metrics.tsv";
+
 	/* Keys for saving state on rotation. */
 	private static final String KEY_FILENAME = "filename";
+	private static final String KEY_JOB_ID = "job_id";
 
 	/* Widgets. */
 	private EditText mUrlEditText;
 	private Button mDownloadButton;
 	private ImageView mImageView;
+	private TiledImageView mTiledImageView;
 	private ProgressBar mLoadingFormStorageProgressBar;
 
 	/* Filename of the downloaded image. */
 	private String mImgFilename;
 
+	/*
+	 * Id of the last started download job. Only its result is displayed, 0 if
+	 * there's no such job.
+	 */
+	private int mLastJobId;
+
 	/* Broadcast receiver that receives the result of downloading. */
 	private DownloadResultReceiver mDownloadResultReceiver;
 
@@ -57,13 +82,14 @@ public class MainActivity extends Activity {
 	protected void onCreate(Bundle savedInstanceState) {
 		super.onCreate(savedInstanceState);
 
+		mFileIO = new FileIOHelper(this);
+
 		/* Restoring data after rotation. */
 		if (savedInstanceState != null) {
-			mImgFilename = savedInstanceState.getString(KEY_FILENAME);
+			setImageFilename(savedInstanceState.getString(KEY_FILENAME));
+			mLastJobId = savedInstanceState.getInt(KEY_JOB_ID);
 		}
 
-		mFileIO = new FileIOHelper(this);
-
 		setContentView(R.layout.activity_main);
 
 		mUrlEditText = (EditText) findViewById(R.id.imageurl_editText);
@@ -75,18 +101,35 @@ public class MainActivity extends Activity {
 		mDownloadButton.setOnClickListener(new View.OnClickListener() {
 			@Override
 			public void onClick(View v) {
-				String url = null;
+				String text = null;
 				if (mUrlEditText.getText() != null) {
-					url = mUrlEditText.getText().toString();
+					text = mUrlEditText.getText().toString().trim();
+				}
+				if (text == null || text.equals("")) {
+					return;
 				}
 
-				if (url != null && !url.equals("")) {
-					startDownloading(url);
+				/* Several urls, one per line, are processed as a batch. */
+				List<String> urls = Arrays.asList(text.split("\\s+"));
+				if (urls.size() > 1) {
+					startBatch(urls);
+				} else {
+					startDownloading(text);
 				}
 			}
 		});
 
+		/* Metrics are dumped on demand, e.g. for collecting them from test devices. */
+		mDownloadButton.setOnLongClickListener(new View.OnLongClickListener() {
+			@Override
+			public boolean onLongClick(View v) {
+				showMetrics();
+				return true;
+			}
+		});
+
 		mImageView = (ImageView) findViewById(R.id.image_imageview);
+		mTiledImageView = (TiledImageView) findViewById(R.id.image_tiledview);
 
 		mLoadingFormStorageProgressBar = (ProgressBar) findViewById(R.id.loadingFromStorageProgressBar);
 
@@ -97,8 +140,23 @@ public class MainActivity extends Activity {
 	 * Initiates downloading an image from the given @param url.
 	 */
 	private void startDownloading(String url) {
-		enableWidgets(false);
-		DownloadService.startDownloading(this, url);
+		hideKeyboard();
+		mLastJobId = DownloadService.startDownloading(this, url, mImageView.getWidth());
+		mPreviewBytes = 0;
+		updateDownloadButtonText();
+	}
+
+	/*
+	 * Initiates processing of a batch of images from the given @param urls.
+	 * Images are displayed as they are processed. The new batch replaces the
+	 * running ones, so their images are not mixed.
+	 */
+	private void startBatch(List<String> urls) {
+		hideKeyboard();
+		DownloadService.cancelBatches();
+		DownloadService.startBatch(this, urls, mImageView.getWidth());
+		mLastJobId = 0;
+		updateDownloadButtonText();
 	}
 
 	@Override
@@ -111,6 +169,8 @@ public class MainActivity extends Activity {
 		if (mDownloadResultReceiver == null)
 			mDownloadResultReceiver = new DownloadResultReceiver();
 		IntentFilter intentFilter = new IntentFilter(DownloadService.BROADCAST_RESULT_ACTION);
+		intentFilter.addAction(DownloadService.BROADCAST_PROGRESS_ACTION);
+		intentFilter.addAction(DownloadService.BROADCAST_BATCH_ACTION);
 		LocalBroadcastManager bm = LocalBroadcastManager.getInstance(this);
 		bm.registerReceiver(mDownloadResultReceiver, intentFilter);
 	}
@@ -124,11 +184,26 @@ public class MainActivity extends Activity {
 		bm.unregisterReceiver(mDownloadResultReceiver);
 	}
 
+	@Override
+	protected void onDestroy() {
+		super.onDestroy();
+
+		/* The view is gone, e.g. on rotation, so is the need for its image. */
+		DecodeScheduler.getInstance().cancel(mImageView);
+		setImageFilename(null);
+	}
+
 	/*
 	 * Updates widgets.
 	 */
 	private void updateWidgets() {
-		enableWidgets(!DownloadService.isDownloading());
+		enableWidgets(hasWritePermission());
+
+		/* The last job may have finished while the activity was paused. */
+		DownloadJob lastJob = DownloadService.getJob(mLastJobId);
+		if (lastJob != null && lastJob.getState() == DownloadJob.State.SUCCEEDED) {
+			setImageFilename(lastJob.getFilename());
+		}
 		updateImageView();
 	}
 
@@ -137,25 +212,33 @@ public class MainActivity extends Activity {
 	 */
 	private void enableWidgets(boolean enable) {
 		mDownloadButton.setEnabled(enable);
-		int textResId;
-		if (enable)
-			textResId = R.string.download;
+		updateDownloadButtonText();
+	}
+
+	/*
+	 * Shows the number of active downloads on the button. Several downloads
+	 * can run at once, so the button stays enabled while downloading.
+	 */
+	private void updateDownloadButtonText() {
+		int activeCount = DownloadService.getActiveDownloadCount();
+		if (activeCount == 0 && DownloadService.isBatchRunning())
+			mDownloadButton.setText(R.string.downloading);
+		else if (activeCount == 0)
+			mDownloadButton.setText(R.string.download);
 		else
-			textResId = R.string.downloading;
-		mDownloadButton.setText(textResId);
-
-		/* Hiding keyboard. */
-		if (!enable) {
-			View view = getCurrentFocus();
-			if (view != null) {
-				InputMethodManager imm = (InputMethodManager) getSystemService(Context.INPUT_METHOD_SERVICE);
-				imm.hideSoftInputFromWindow(view.getWindowToken(), 0);
-			}
-		}
+			mDownloadButton.setText(getString(R.string.download_running, activeCount));
 	}
 
-	/* Object that loads image from storage and sets it to ImageView. */
-	private LoadingImageFromMemoryTask mLoadingImageFromMemoryTask;
+	/*
+	 * Hides keyboard.
+	 */
+	private void hideKeyboard() {
+		View view = getCurrentFocus();
+		if (view != null) {
+			InputMethodManager imm = (InputMethodManager) getSystemService(Context.INPUT_METHOD_SERVICE);
+			imm.hideSoftInputFromWindow(view.getWindowToken(), 0);
+		}
+	}
 
 	/*
 	 * Updates display of the image.
@@ -173,60 +256,246 @@ public class MainActivity extends Activity {
 		mImageView.post(new Runnable() {
 			@Override
 			public void run() {
-				if (mLoadingImageFromMemoryTask != null)
-					mLoadingImageFromMemoryTask.cancel(false);
+				/* A pending decode is stale, the image or the view has changed. */
+				DecodeScheduler.getInstance().cancel(mImageView);
 
-				mLoadingImageFromMemoryTask = new LoadingImageFromMemoryTask(mImageView, mImgFilename);
-				mLoadingImageFromMemoryTask.execute();
+				if (showTiledIfLarge()) {
+					return;
+				}
+				showImageView();
+
+				/* The image may have been loaded already, e.g. before rotation. */
+				String key = BitmapMemoryCache.getKey(mImgFilename, mImageView.getWidth(), true);
+				Bitmap cachedBitmap = BitmapMemoryCache.getInstance().get(key);
+
+				/* Or decoded by the download that has just finished. */
+				if (cachedBitmap == null) {
+					cachedBitmap = BitmapHandoff.getInstance().take(mLastJobId, mImgFilename, mImageView.getWidth(),
+							true);
+					if (cachedBitmap != null) {
+						Log.d(TAG, BitmapHandoff.getInstance().toString());
+						BitmapMemoryCache.getInstance().put(key, cachedBitmap);
+					}
+				}
+				if (cachedBitmap != null) {
+					mLoadingFormStorageProgressBar.setVisibility(View.GONE);
+					setImageBitmap(mImageView, cachedBitmap);
+					recordUrlToPixels(mImgFilename);
+					return;
+				}
+
+				loadImageFromMemory(mImageView, mImgFilename);
 			}
 		});
 	}
 
 	/*
-	 * AsyncTask that loads image from memory in a background thread and sets it
-	 * to ImageView. In case of huge images the loading can take some time and
-	 * block the UI thread - that's why it is done in background.
+	 * Shows the image by tiles if it's much larger than the view, so its full
+	 * detail can be seen without decoding it whole. Returns true if the tiled
+	 * view is used. Bounds are known from the index without reading the file.
+	 * Until the index is loaded in background, images are shown the usual way.
 	 */
-	private class LoadingImageFromMemoryTask extends AsyncTask<Void, Void, Bitmap> {
+	private boolean showTiledIfLarge() {
+		if (!TiledImageView.isSupported()) {
+			return false;
+		}
+		ImageMetadataIndex.Metadata metadata = mFileIO.peekImageMetadata(mImgFilename);
+		if (metadata == null || metadata.width < mImageView.getWidth() * TiledImageView.MIN_IMAGE_SCALE
+				|| !("image/jpeg".equals(metadata.mimeType) || "image/png".equals(metadata.mimeType))) {
+			return false;
+		}
 
-		/* Widget that's has to be updated once the image is loaded. */
-		private ImageView mImageViewToUpdate;
-		/* Name of the file in which the image is stored. */
-		private String mFilename;
+		Log.d(TAG, "Showing " + metadata.width + "x" + metadata.height + " image by tiles");
+		mLoadingFormStorageProgressBar.setVisibility(View.GONE);
 
-		LoadingImageFromMemoryTask(ImageView imageView, String filename) {
-			mImageViewToUpdate = imageView;
-			mFilename = filename;
+		/* The image view keeps its width for measuring, but not its bitmap. */
+		setImageBitmap(mImageView, null);
+		mImageView.setVisibility(View.INVISIBLE);
+		mTiledImageView.setVisibility(View.VISIBLE);
+
+		/* A rotated copy saves rotating every tile. */
+		String rotated = FileIOHelper.getRotatedCopyFilename(mImgFilename, metadata);
+		if (mFileIO.existsExtFile(rotated)) {
+			mTiledImageView.setImage(mFileIO.getExtFile(rotated).getPath(), false);
+		} else {
+			mTiledImageView.setImage(mFileIO.getExtFile(mImgFilename).getPath(), true);
 		}
+		recordUrlToPixels(mImgFilename);
+		return true;
+	}
 
-		@Override
-		protected void onPreExecute() {
-			mLoadingFormStorageProgressBar.setVisibility(View.VISIBLE);
+	/*
+	 * Records the time from starting the last download to displaying its
+	 * image, once per job. Images shown later, e.g. after rotation, are not
+	 * counted.
+	 */
+	private void recordUrlToPixels(String filename) {
+		DownloadJob job = DownloadService.getJob(mLastJobId);
+		if (job != null && job.getState() == DownloadJob.State.SUCCEEDED && filename.equals(job.getFilename())
+				&& job.markDisplayed()) {
+			Metrics.getInstance().record(Metrics.URL_TO_PIXELS, System.currentTimeMillis() - job.getCreatedTime());
+		}
+	}
+
+	/*
+	 * Shows the collected metrics and exports them to a file.
+	 */
+	private void showMetrics() {
+		String metrics = Metrics.getInstance().toString();
+		Log.d(TAG, metrics);
+		File dir = getExternalFilesDir(null);
+		if (dir != null) {
+			File file = new File(dir, METRICS_FILENAME);
+			try {
+				Metrics.getInstance().exportTo(file);
+				metrics += "\n\n" + file.getAbsolutePath();
+			} catch (IOException e) {
+				Log.e(TAG, "Error exporting metrics: " + e);
+			}
+		}
+		new AlertDialog.Builder(MainActivity.this).setMessage(metrics).setPositiveButton(R.string.ok, null)
+				.create().show();
+	}
+
+	/*
+	 * Sets the file of the displayed image. The file is pinned in the image
+	 * store while it's displayed, so it's not deleted to fit the limit.
+	 */
+	private void setImageFilename(String filename) {
+		DiskImageStore store = mFileIO.getImageStore();
+		if (mImgFilename != null) {
+			store.unpin(mImgFilename);
+		}
+		mImgFilename = filename;
+		if (filename != null) {
+			store.pin(filename);
+		}
+	}
+
+	/*
+	 * Shows the image view instead of the tiled one.
+	 */
+	private void showImageView() {
+		mTiledImageView.setVisibility(View.GONE);
+		mImageView.setVisibility(View.VISIBLE);
+	}
+
+	/*
+	 * Loads image from memory in a background thread and sets it to the
+	 * ImageView. In case of huge images the loading can take some time and
+	 * block the UI thread - that's why it is done in background. A newer
+	 * request for the same view replaces this one, and the replaced decode
+	 * stops as soon as possible.
+	 */
+	private void loadImageFromMemory(final ImageView imageView, final String filename) {
+		mLoadingFormStorageProgressBar.setVisibility(View.VISIBLE);
+		final int width = imageView.getWidth();
+		DecodeScheduler.getInstance().submit(imageView, new DecodeScheduler.Decoder() {
+			@Override
+			public Bitmap decode(CancellationToken token) {
+				Bitmap bitmap = mFileIO.readExtBitmap(filename, true, width, token);
+				if (bitmap != null) {
+					BitmapMemoryCache.getInstance().put(BitmapMemoryCache.getKey(filename, width, true), bitmap);
+				}
+				return bitmap;
+			}
+		}, new DecodeScheduler.Callback() {
+			@Override
+			public void onDecoded(Bitmap bitmap) {
+				mLoadingFormStorageProgressBar.setVisibility(View.GONE);
+				setImageBitmap(imageView, bitmap);
+				if (bitmap != null) {
+					recordUrlToPixels(filename);
+				}
+				Log.d(TAG, BitmapMemoryCache.getInstance().toString());
+				Log.d(TAG, BitmapPool.getInstance().toString());
+				Log.d(TAG, DecodeScheduler.getInstance().toString());
+			}
+		});
+	}
+
+	/* Object that loads a preview of the image being downloaded. */
+	private LoadingPreviewTask mLoadingPreviewTask;
+
+	/* Number of bytes the last preview was decoded from. */
+	private long mPreviewBytes;
+
+	/*
+	 * Updates the preview of the image being downloaded by the last job. The
+	 * preview is refreshed when enough new data has arrived since the previous
+	 * one and no preview is being loaded.
+	 */
+	private void updatePreview(String partFilename, long availableBytes, long totalBytes) {
+		if (mLoadingPreviewTask != null || mImageView.getWidth() == 0) {
+			return;
+		}
+		long step = totalBytes > 0 ? totalBytes / PREVIEW_STEPS : PREVIEW_MIN_STEP_BYTES;
+		if (availableBytes - mPreviewBytes < Math.max(step, PREVIEW_MIN_STEP_BYTES)) {
+			return;
+		}
+		mPreviewBytes = availableBytes;
+		mLoadingPreviewTask = new LoadingPreviewTask(mImageView, mLastJobId, partFilename, availableBytes);
+		mLoadingPreviewTask.execute();
+	}
+
+	/*
+	 * AsyncTask that decodes a low-resolution preview from the downloaded part
+	 * of the image and shows it until the whole image is downloaded.
+	 */
+	private class LoadingPreviewTask extends AsyncTask<Void, Void, Bitmap> {
+		private ImageView mImageViewToUpdate;
+		private int mJobId;
+		private String mPartFilename;
+		private long mAvailableBytes;
+
+		LoadingPreviewTask(ImageView imageView, int jobId, String partFilename, long availableBytes) {
+			mImageViewToUpdate = imageView;
+			mJobId = jobId;
+			mPartFilename = partFilename;
+			mAvailableBytes = availableBytes;
 		}
 
 		@Override
 		protected Bitmap doInBackground(Void... arg0) {
-			return mFileIO.readExtBitmap(mFilename, true, mImageViewToUpdate.getWidth());
+			/* Nothing can be decoded until the header with the bounds has arrived. */
+			if (mFileIO.decodeExtBounds(mPartFilename, mAvailableBytes) == null) {
+				return null;
+			}
+			int width = mImageViewToUpdate.getWidth() / PREVIEW_SCALE;
+			return mFileIO.readExtBitmapPreview(mPartFilename, mAvailableBytes, true, width);
 		}
 
 		@Override
-		protected void onPostExecute(Bitmap loadedBitmap) {
-			if (!isCancelled()) {
-				mLoadingFormStorageProgressBar.setVisibility(View.GONE);
-
-				/*
-				 * Before assigning new image to the ImageView we recycle
-				 * previous one.
-				 */
-				if (mImageViewToUpdate.getDrawable() != null) {
-					Bitmap oldBitmap = ((BitmapDrawable) mImageViewToUpdate.getDrawable()).getBitmap();
-					mImageViewToUpdate.setImageDrawable(null);
-					oldBitmap.recycle();
-				}
-				mImageViewToUpdate.setImageBitmap(loadedBitmap);
+		protected void onPostExecute(Bitmap preview) {
+			mLoadingPreviewTask = null;
+
+			/* The preview is useless once the download is finished. */
+			DownloadJob job = DownloadService.getJob(mJobId);
+			if (preview != null && mJobId == mLastJobId && job != null && job.isActive()) {
+				showImageView();
+				setImageBitmap(mImageViewToUpdate, preview);
+			} else if (preview != null) {
+				BitmapPool.getInstance().put(preview);
 			}
 		}
+	}
 
+	/*
+	 * Sets the bitmap to the ImageView. Before assigning new image we put
+	 * previous one into the pool for reusing unless it's kept in the cache.
+	 */
+	private void setImageBitmap(ImageView imageView, Bitmap bitmap) {
+		if (imageView.getDrawable() != null) {
+			Bitmap oldBitmap = ((BitmapDrawable) imageView.getDrawable()).getBitmap();
+			if (oldBitmap == bitmap) {
+				return;
+			}
+			imageView.setImageDrawable(null);
+			if (oldBitmap != null && !BitmapMemoryCache.getInstance().contains(oldBitmap)) {
+				BitmapPool.getInstance().put(oldBitmap);
+			}
+		}
+		imageView.setImageBitmap(bitmap);
 	}
 
 	/*
@@ -236,9 +505,7 @@ public class MainActivity extends Activity {
 	 * classes from a support library are used.
 	 */
 	private void checkPermissions() {
-		int hasWriteExtStoragePermission = ContextCompat.checkSelfPermission(this,
-				Manifest.permission.WRITE_EXTERNAL_STORAGE);
-		if (hasWriteExtStoragePermission != PackageManager.PERMISSION_GRANTED) {
+		if (!hasWritePermission()) {
 			enableWidgets(false);
 			if (ActivityCompat.shouldShowRequestPermissionRationale(this, Manifest.permission.WRITE_EXTERNAL_STORAGE)) {
 				showMessageOKCancel(new DialogInterface.OnClickListener() {
@@ -253,6 +520,14 @@ public class MainActivity extends Activity {
 		}
 	}
 
+	/*
+	 * Checks if the app can write to the external storage.
+	 */
+	private boolean hasWritePermission() {
+		return ContextCompat.checkSelfPermission(this, Manifest.permission.WRITE_EXTERNAL_STORAGE)
+				== PackageManager.PERMISSION_GRANTED;
+	}
+
 	/*
 	 * Performs requesting necessary permission.
 	 */
@@ -293,6 +568,7 @@ public class MainActivity extends Activity {
 		if (mImgFilename != null) {
 			savedInstanceState.putString(KEY_FILENAME, mImgFilename);
 		}
+		savedInstanceState.putInt(KEY_JOB_ID, mLastJobId);
 	}
 
 	/*
@@ -305,26 +581,48 @@ public class MainActivity extends Activity {
 	}
 
 	/*
-	 * Broadcast receiver that receives the result of the image downloading as a
-	 * filename of the stored downloaded image.
+	 * Broadcast receiver that receives the progress of the image downloading
+	 * and its result as a filename of the stored downloaded image. Results of
+	 * jobs other than the last started one are not displayed.
 	 */
 	private class DownloadResultReceiver extends BroadcastReceiver {
 		@Override
 		public void onReceive(Context context, Intent intent) {
-			if (intent.getAction().equals(DownloadService.BROADCAST_RESULT_ACTION)) {
+			if (intent.getAction().equals(DownloadService.BROADCAST_PROGRESS_ACTION)) {
+				Bundle extras = intent.getExtras();
+				if (extras != null && extras.getInt(DownloadService.EXTRA_JOB_ID) == mLastJobId) {
+					updatePreview(extras.getString(DownloadService.EXTRA_PART_FILENAME),
+							extras.getLong(DownloadService.EXTRA_AVAILABLE_BYTES),
+							extras.getLong(DownloadService.EXTRA_TOTAL_BYTES));
+				}
+			} else if (intent.getAction().equals(DownloadService.BROADCAST_RESULT_ACTION)) {
 				String filename = null;
+				int jobId = 0;
 				if (intent.getExtras() != null) {
 					filename = intent.getExtras().getString(DownloadService.EXTRA_FILENAME);
+					jobId = intent.getExtras().getInt(DownloadService.EXTRA_JOB_ID);
 				}
 
-				if (filename != null) {
-					mImgFilename = filename;
-					updateImageView();
-				} else {
-					showErrorMessage();
+				if (jobId == mLastJobId) {
+					if (filename != null) {
+						setImageFilename(filename);
+						updateImageView();
+					} else {
+						showErrorMessage();
+					}
 				}
 
-				enableWidgets(true);
+				updateDownloadButtonText();
+			} else if (intent.getAction().equals(DownloadService.BROADCAST_BATCH_ACTION)) {
+				/* Images of a batch are shown unless a single download was started after it. */
+				String filename = intent.getStringExtra(DownloadService.EXTRA_FILENAME);
+				if (filename != null && mLastJobId == 0) {
+					setImageFilename(filename);
+					updateImageView();
+				}
+				if (intent.getBooleanExtra(DownloadService.EXTRA_BATCH_FINISHED, false)) {
+					updateDownloadButtonText();
+				}
 			}
 		}
 	}
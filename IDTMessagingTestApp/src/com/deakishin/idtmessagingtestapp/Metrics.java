@@ -0,0 +1,320 @@
+package com.deakishin.idtmessagingtestapp;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Metrics of the app: histograms of latencies, throughputs and other values
+ * by name. Recording is lock-free and allocates nothing, so it can be done on
+ * every download and decode. Histograms can be dumped as text or exported to
+ * a file for collecting percentiles from devices.
+ * <p>
+ * The class doesn't depend on Android, so it can be used by benchmarks and
+ * tools running on a desktop JVM.
+ */
+public class Metrics {
+
+	/** Time from sending a request to the response headers, ms. */
+	public static final String TIME_TO_FIRST_BYTE = "ttfb_ms";
+	/** Throughput of a download, KB/s. */
+	public static final String DOWNLOAD_SPEED = "download_kb_per_s";
+	/** Time spent writing and syncing a downloaded file, us. */
+	public static final String FILE_WRITE = "file_write_us";
+	/** Time of decoding bounds of an image, us. */
+	public static final String BOUNDS_DECODE = "bounds_decode_us";
+	/** Time of decoding a whole image, us. */
+	public static final String DECODE = "decode_us";
+	/** Sample size chosen for decoding. */
+	public static final String IN_SAMPLE_SIZE = "in_sample_size";
+	/** Memory a decode saves compared with sampling by the width only in ARGB_8888, KB. */
+	public static final String DECODE_SAVED = "decode_saved_kb";
+	/** Time of rotating a bitmap, us. */
+	public static final String ROTATE = "rotate_us";
+	/** Time of encoding and writing an image, us. */
+	public static final String ENCODE = "encode_us";
+	/** Size of an encoded image, KB. */
+	public static final String ENCODED_SIZE = "encoded_kb";
+	/** Time from starting a download to showing its image, ms. */
+	public static final String URL_TO_PIXELS = "url_to_pixels_ms";
+
+	/* Percentiles included in dumps. */
+	private static final double[] PERCENTILES = { 0.5, 0.9, 0.99 };
+
+	/* Created eagerly, so getting it takes no lock. */
+	private static final Metrics sInstance = new Metrics();
+
+	/* Histograms by name, they are sorted only for dumps. */
+	private final ConcurrentMap<String, Histogram> mHistograms = new ConcurrentHashMap<String, Histogram>();
+
+	/**
+	 * Returns metrics of the process.
+	 *
+	 * @return metrics instance.
+	 */
+	public static Metrics getInstance() {
+		return sInstance;
+	}
+
+	/**
+	 * Returns a histogram, creating it if necessary. Existing histograms are
+	 * found without a lock.
+	 *
+	 * @param name
+	 *            - name of the histogram.
+	 * @return histogram.
+	 */
+	public Histogram get(String name) {
+		Histogram histogram = mHistograms.get(name);
+		if (histogram == null) {
+			Histogram created = new Histogram();
+			histogram = mHistograms.putIfAbsent(name, created);
+			if (histogram == null) {
+				histogram = created;
+			}
+		}
+		return histogram;
+	}
+
+	/**
+	 * Records a value.
+	 *
+	 * @param name
+	 *            - name of the histogram.
+	 * @param value
+	 *            - value to record, negative values are recorded as 0.
+	 */
+	public void record(String name, long value) {
+		get(name).record(value);
+	}
+
+	/**
+	 * Records a time measured from the given start.
+	 *
+	 * @param name
+	 *            - name of the histogram in microseconds.
+	 * @param startNanos
+	 *            - start time from {@link System#nanoTime()}.
+	 */
+	public void recordMicrosSince(String name, long startNanos) {
+		get(name).record((System.nanoTime() - startNanos) / 1000);
+	}
+
+	/**
+	 * Clears all histograms.
+	 */
+	public void reset() {
+		mHistograms.clear();
+	}
+
+	/**
+	 * Exports the histograms to a file as tab-separated lines: name, count,
+	 * min, mean, percentiles, max and then the non-empty buckets as
+	 * lower_bound:count pairs, so percentiles of several devices can be
+	 * merged later. The file is overwritten.
+	 *
+	 * @param file
+	 *            - file to write.
+	 * @throws IOException
+	 *             if an error occurred.
+	 */
+	public void exportTo(File file) throws IOException {
+		Writer writer = new FileWriter(file);
+		try {
+			writer.write("# name\tcount\tmin\tmean");
+			for (double percentile : PERCENTILES) {
+				writer.write("\tp" + Math.round(percentile * 100));
+			}
+			writer.write("\tmax\tbuckets\n");
+			for (Map.Entry<String, Histogram> entry : snapshot().entrySet()) {
+				Histogram histogram = entry.getValue();
+				StringBuilder sb = new StringBuilder(entry.getKey());
+				sb.append('\t').append(histogram.getCount()).append('\t').append(histogram.getMin()).append('\t')
+						.append(Math.round(histogram.getMean()));
+				for (double percentile : PERCENTILES) {
+					sb.append('\t').append(histogram.getPercentile(percentile));
+				}
+				sb.append('\t').append(histogram.getMax()).append('\t');
+				List<long[]> buckets = histogram.getBuckets();
+				for (int i = 0; i < buckets.size(); i++) {
+					sb.append(i > 0 ? "," : "").append(buckets.get(i)[0]).append(':').append(buckets.get(i)[1]);
+				}
+				writer.write(sb.append('\n').toString());
+			}
+		} finally {
+			writer.close();
+		}
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("Metrics:");
+		for (Map.Entry<String, Histogram> entry : snapshot().entrySet()) {
+			sb.append("\n").append(entry.getKey()).append(": ").append(entry.getValue());
+		}
+		return sb.toString();
+	}
+
+	private Map<String, Histogram> snapshot() {
+		return new TreeMap<String, Histogram>(mHistograms);
+	}
+
+	/**
+	 * Histogram with buckets of exponentially growing width: every power of
+	 * two is split into 8 buckets, so values are kept with the precision of
+	 * 12.5% at any scale in a fixed array.
+	 */
+	public static class Histogram {
+		/* Number of sub-buckets per power of two is 2^SUB_BITS. */
+		private static final int SUB_BITS = 3;
+		private static final int SUB_COUNT = 1 << SUB_BITS;
+		private static final int BUCKET_COUNT = (64 - SUB_BITS + 1) * SUB_COUNT;
+
+		private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKET_COUNT);
+		private final AtomicLong mCount = new AtomicLong();
+		private final AtomicLong mSum = new AtomicLong();
+		private final AtomicLong mMin = new AtomicLong(Long.MAX_VALUE);
+		private final AtomicLong mMax = new AtomicLong();
+
+		/**
+		 * Records a value.
+		 *
+		 * @param value
+		 *            - value to record, negative values are recorded as 0.
+		 */
+		public void record(long value) {
+			value = Math.max(0, value);
+			mBuckets.incrementAndGet(getIndex(value));
+			mCount.incrementAndGet();
+			mSum.addAndGet(value);
+			long min = mMin.get();
+			while (value < min && !mMin.compareAndSet(min, value)) {
+				min = mMin.get();
+			}
+			long max = mMax.get();
+			while (value > max && !mMax.compareAndSet(max, value)) {
+				max = mMax.get();
+			}
+		}
+
+		/**
+		 * @return number of recorded values.
+		 */
+		public long getCount() {
+			return mCount.get();
+		}
+
+		/**
+		 * @return minimal recorded value or 0 if there are none.
+		 */
+		public long getMin() {
+			return mCount.get() == 0 ? 0 : mMin.get();
+		}
+
+		/**
+		 * @return maximal recorded value.
+		 */
+		public long getMax() {
+			return mMax.get();
+		}
+
+		/**
+		 * @return mean of recorded values.
+		 */
+		public double getMean() {
+			long count = mCount.get();
+			return count == 0 ? 0 : (double) mSum.get() / count;
+		}
+
+		/**
+		 * Returns a percentile of recorded values. It's the upper bound of the
+		 * bucket the percentile falls into, so it's never underestimated.
+		 *
+		 * @param percentile
+		 *            - percentile from 0 to 1.
+		 * @return value or 0 if there are no values.
+		 */
+		public long getPercentile(double percentile) {
+			long count = mCount.get();
+			if (count == 0) {
+				return 0;
+			}
+			long rank = Math.max(1, (long) Math.ceil(percentile * count));
+			long seen = 0;
+			for (int i = 0; i < BUCKET_COUNT; i++) {
+				seen += mBuckets.get(i);
+				if (seen >= rank) {
+					return Math.min(getUpperBound(i), getMax());
+				}
+			}
+			return getMax();
+		}
+
+		/**
+		 * @return non-empty buckets as pairs of the lower bound and the count.
+		 */
+		public List<long[]> getBuckets() {
+			List<long[]> buckets = new ArrayList<long[]>();
+			for (int i = 0; i < BUCKET_COUNT; i++) {
+				long count = mBuckets.get(i);
+				if (count > 0) {
+					buckets.add(new long[] { getLowerBound(i), count });
+				}
+			}
+			return buckets;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder("count=" + getCount());
+			if (getCount() > 0) {
+				sb.append(", min=").append(getMin()).append(", mean=").append(Math.round(getMean()));
+				for (double percentile : PERCENTILES) {
+					sb.append(", p").append(Math.round(percentile * 100)).append('=')
+							.append(getPercentile(percentile));
+				}
+				sb.append(", max=").append(getMax());
+			}
+			return sb.toString();
+		}
+
+		/*
+		 * Values below SUB_COUNT have their own buckets, others are split by
+		 * the highest bit and the next SUB_BITS bits.
+		 */
+		static int getIndex(long value) {
+			if (value < SUB_COUNT) {
+				return (int) value;
+			}
+			int exponent = 63 - Long.numberOfLeadingZeros(value);
+			int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_COUNT - 1);
+			return (exponent - SUB_BITS + 1) * SUB_COUNT + sub;
+		}
+
+		static long getLowerBound(int index) {
+			if (index < SUB_COUNT) {
+				return index;
+			}
+			int exponent = index / SUB_COUNT + SUB_BITS - 1;
+			long sub = index % SUB_COUNT;
+			return (SUB_COUNT + sub) << (exponent - SUB_BITS);
+		}
+
+		static long getUpperBound(int index) {
+			if (index < SUB_COUNT) {
+				return index;
+			}
+			int exponent = index / SUB_COUNT + SUB_BITS - 1;
+			return getLowerBound(index) + (1L << (exponent - SUB_BITS)) - 1;
+		}
+	}
+}
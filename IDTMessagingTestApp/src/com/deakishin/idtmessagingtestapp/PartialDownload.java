@@ -0,0 +1,210 @@
+package com.deakishin.idtmessagingtestapp;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Properties;
+
+import android.util.Log;
+
+/**
+ * State of an interrupted download. Data of a url is written to a partial file
+ * and a small sidecar file keeps the url, the validator of the response and the
+ * number of bytes written. A retry, even after the process has died, can then
+ * request the rest of the data with a Range request.
+ */
+public class PartialDownload {
+	private static final String TAG = "PartialDownload";
+
+	/* Extensions of the partial file and its sidecar. */
+	private static final String PART_EXTENSION = ".part";
+	private static final String META_EXTENSION = ".part.meta";
+
+	/* Keys of the sidecar properties. */
+	private static final String KEY_URL = "url";
+	private static final String KEY_VALIDATOR = "validator";
+	private static final String KEY_BYTES = "bytes";
+
+	private final FileIOHelper mFileIOHelper;
+	private final String mUrl;
+
+	/* Name of the partial file without extension. */
+	private final String mName;
+
+	/* Validator of the response the partial data belongs to. */
+	private String mValidator;
+
+	/* Number of bytes written to the partial file. */
+	private long mBytesWritten;
+
+	private PartialDownload(FileIOHelper fileIOHelper, String url) {
+		mFileIOHelper = fileIOHelper;
+		mUrl = url;
+		mName = "download_" + md5Hex(url);
+	}
+
+	/**
+	 * Loads the state of the download of the url. If there's no partial data,
+	 * or it doesn't match its sidecar, the state is empty.
+	 *
+	 * @param fileIOHelper
+	 *            - helper for accessing files.
+	 * @param url
+	 *            - url of the download.
+	 * @return state of the download.
+	 */
+	public static PartialDownload load(FileIOHelper fileIOHelper, String url) {
+		PartialDownload partial = new PartialDownload(fileIOHelper, url);
+		File meta = fileIOHelper.getExtFile(partial.mName + META_EXTENSION);
+		if (!meta.isFile()) {
+			return partial;
+		}
+
+		Properties properties = new Properties();
+		InputStream is = null;
+		try {
+			is = new FileInputStream(meta);
+			properties.load(is);
+			long bytes = Long.parseLong(properties.getProperty(KEY_BYTES, "0"));
+			long partLength = fileIOHelper.getExtFile(partial.getPartFilename()).length();
+			if (url.equals(properties.getProperty(KEY_URL)) && bytes <= partLength) {
+				partial.mValidator = properties.getProperty(KEY_VALIDATOR);
+				partial.mBytesWritten = bytes;
+				Log.d(TAG, "Found " + bytes + " bytes of " + url);
+			}
+		} catch (IOException e) {
+			Log.e(TAG, "Error reading partial download state: " + e);
+		} catch (NumberFormatException e) {
+			Log.e(TAG, "Corrupted partial download state: " + e);
+		} finally {
+			if (is != null) {
+				try {
+					is.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+		return partial;
+	}
+
+	/**
+	 * @return name of the file with the partial data.
+	 */
+	public String getPartFilename() {
+		return mName + PART_EXTENSION;
+	}
+
+	/**
+	 * @return validator of the response the partial data belongs to, or null.
+	 */
+	public String getValidator() {
+		return mValidator;
+	}
+
+	/**
+	 * @return number of bytes already written.
+	 */
+	public long getBytesWritten() {
+		return mBytesWritten;
+	}
+
+	/**
+	 * Checks if the download can be continued with a Range request. It's only
+	 * possible when there's partial data and a strong validator to make sure
+	 * it belongs to the same version of the resource.
+	 *
+	 * @return true if the download can be resumed.
+	 */
+	public boolean canResume() {
+		return mBytesWritten > 0 && mValidator != null;
+	}
+
+	/**
+	 * Starts the download over for a new response.
+	 *
+	 * @param validator
+	 *            - validator of the response, or null if it has none.
+	 */
+	public void restart(String validator) {
+		mValidator = validator;
+		mBytesWritten = 0;
+		save();
+	}
+
+	/**
+	 * Records the number of bytes written to the partial file.
+	 *
+	 * @param bytesWritten
+	 *            - total number of bytes in the partial file.
+	 */
+	public void setBytesWritten(long bytesWritten) {
+		mBytesWritten = bytesWritten;
+	}
+
+	/**
+	 * Writes the state to the sidecar file.
+	 */
+	public void save() {
+		Properties properties = new Properties();
+		properties.setProperty(KEY_URL, mUrl);
+		if (mValidator != null) {
+			properties.setProperty(KEY_VALIDATOR, mValidator);
+		}
+		properties.setProperty(KEY_BYTES, String.valueOf(mBytesWritten));
+
+		OutputStream os = null;
+		try {
+			os = new FileOutputStream(mFileIOHelper.getExtFile(mName + META_EXTENSION));
+			properties.store(os, null);
+		} catch (IOException e) {
+			Log.e(TAG, "Error saving partial download state: " + e);
+		} finally {
+			if (os != null) {
+				try {
+					os.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	/**
+	 * Forgets the state after the partial file is stored under the name
+	 * derived from the hash of its content, see
+	 * {@link HttpFetcher.Storage#commit(String, String)}.
+	 */
+	public void markCommitted() {
+		mFileIOHelper.deleteExtFile(mName + META_EXTENSION);
+	}
+
+	/**
+	 * Deletes the partial data and its state.
+	 */
+	public void discard() {
+		mFileIOHelper.deleteExtFile(getPartFilename());
+		mFileIOHelper.deleteExtFile(mName + META_EXTENSION);
+		mValidator = null;
+		mBytesWritten = 0;
+	}
+
+	private static String md5Hex(String s) {
+		try {
+			byte[] digest = MessageDigest.getInstance("MD5").digest(s.getBytes("UTF-8"));
+			StringBuilder sb = new StringBuilder(digest.length * 2);
+			for (byte b : digest) {
+				sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+			}
+			return sb.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
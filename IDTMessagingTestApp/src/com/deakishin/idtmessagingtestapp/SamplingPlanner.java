@@ -0,0 +1,162 @@
+package com.deakishin.idtmessagingtestapp;
+
+/**
+ * Planner of image decoding. A plan fits the image into the requested width
+ * and height and into the memory budget of one decoded image, so tall images
+ * are limited as well as wide ones. The power of 2 sample size is chosen so
+ * the sampled image is not smaller than the target, and the rest of the way
+ * is done by density scaling during the decode, so the result has the target
+ * size instead of up to twice of it. Opaque images are decoded with 2 bytes
+ * per pixel.
+ * <p>
+ * Every plan also tells the size of the decode the way it was planned
+ * before: sampling by the width only and 4 bytes per pixel, so savings can
+ * be reported.
+ * <p>
+ * The class doesn't depend on Android, so it can be used by benchmarks and
+ * tools running on a desktop JVM.
+ */
+public class SamplingPlanner {
+
+	/**
+	 * Plan of decoding an image.
+	 */
+	public static class Plan {
+		/** Power of 2 sample size. */
+		public final int sampleSize;
+		/**
+		 * Density of the sampled image and the density to scale it to, both 0
+		 * if the sampled image isn't scaled. They are the width of the sampled
+		 * image and the target width.
+		 */
+		public final int density;
+		public final int targetDensity;
+		/** True if the image is decoded with 2 bytes per pixel. */
+		public final boolean rgb565;
+		/** Size of the decoded image. */
+		public final int width;
+		public final int height;
+		/** Size of the decoded image in bytes. */
+		public final long bytes;
+		/** Size of the image decoded by the width only with 4 bytes per pixel. */
+		public final long baselineBytes;
+
+		Plan(int sampleSize, int density, int targetDensity, boolean rgb565, int width, int height,
+				long baselineBytes) {
+			this.sampleSize = sampleSize;
+			this.density = density;
+			this.targetDensity = targetDensity;
+			this.rgb565 = rgb565;
+			this.width = width;
+			this.height = height;
+			this.bytes = (long) width * height * (rgb565 ? 2 : 4);
+			this.baselineBytes = baselineBytes;
+		}
+
+		/**
+		 * @return true if the sampled image is scaled.
+		 */
+		public boolean isScaled() {
+			return density > 0;
+		}
+
+		/**
+		 * @return bytes saved compared with the baseline, negative if the plan
+		 *         takes more.
+		 */
+		public long getSavedBytes() {
+			return baselineBytes - bytes;
+		}
+
+		@Override
+		public String toString() {
+			return width + "x" + height + (rgb565 ? " RGB_565" : " ARGB_8888") + ", inSampleSize=" + sampleSize
+					+ (isScaled() ? ", scaled " + density + "->" + targetDensity : "") + ", " + bytes / 1024
+					+ " KB, saved " + getSavedBytes() / 1024 + " KB";
+		}
+	}
+
+	private final long mMemoryBudget;
+	private volatile boolean mRgb565Allowed = true;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param memoryBudget
+	 *            - maximal size of a decoded image in bytes.
+	 */
+	public SamplingPlanner(long memoryBudget) {
+		mMemoryBudget = Math.max(1, memoryBudget);
+	}
+
+	/**
+	 * Allows decoding opaque images with 2 bytes per pixel. It's allowed by
+	 * default. RGB_565 halves the memory, but smooth gradients may show bands.
+	 *
+	 * @param allowed
+	 *            - true to allow.
+	 */
+	public void setRgb565Allowed(boolean allowed) {
+		mRgb565Allowed = allowed;
+	}
+
+	/**
+	 * Plans decoding of an image.
+	 *
+	 * @param imageWidth
+	 *            - width of the image.
+	 * @param imageHeight
+	 *            - height of the image.
+	 * @param opaque
+	 *            - true if the image surely has no transparent pixels.
+	 * @param reqWidth
+	 *            - width of the view, not positive if it doesn't limit the
+	 *            image.
+	 * @param reqHeight
+	 *            - height of the view, not positive if it doesn't limit the
+	 *            image, e.g. when the view scrolls.
+	 * @return plan.
+	 */
+	public Plan plan(int imageWidth, int imageHeight, boolean opaque, int reqWidth, int reqHeight) {
+		imageWidth = Math.max(1, imageWidth);
+		imageHeight = Math.max(1, imageHeight);
+		boolean rgb565 = opaque && mRgb565Allowed;
+		int bytesPerPixel = rgb565 ? 2 : 4;
+
+		double scale = 1;
+		if (reqWidth > 0 && imageWidth > reqWidth) {
+			scale = Math.min(scale, (double) reqWidth / imageWidth);
+		}
+		if (reqHeight > 0 && imageHeight > reqHeight) {
+			scale = Math.min(scale, (double) reqHeight / imageHeight);
+		}
+		double maxPixels = (double) mMemoryBudget / bytesPerPixel;
+		if (imageWidth * scale * imageHeight * scale > maxPixels) {
+			scale = Math.sqrt(maxPixels / imageWidth / imageHeight);
+		}
+		int targetWidth = Math.max(1, (int) (imageWidth * scale));
+
+		/* The largest sample size that doesn't go below the target. */
+		int sampleSize = 1;
+		while (ceilDiv(imageWidth, sampleSize * 2) >= targetWidth && ceilDiv(imageHeight, sampleSize * 2) > 1) {
+			sampleSize *= 2;
+		}
+		int sampledWidth = ceilDiv(imageWidth, sampleSize);
+		int sampledHeight = ceilDiv(imageHeight, sampleSize);
+
+		int baselineSample = ImageKernels.calculateInSampleSize(imageWidth, reqWidth);
+		long baselineBytes = 4L * ceilDiv(imageWidth, baselineSample) * ceilDiv(imageHeight, baselineSample);
+
+		if (targetWidth >= sampledWidth) {
+			return new Plan(sampleSize, 0, 0, rgb565, sampledWidth, sampledHeight, baselineBytes);
+		}
+		/* Scaled the way the decoder does it: by the ratio of densities, rounded. */
+		double ratio = (double) targetWidth / sampledWidth;
+		int height = Math.max(1, (int) (sampledHeight * ratio + 0.5));
+		return new Plan(sampleSize, sampledWidth, targetWidth, rgb565, targetWidth, height, baselineBytes);
+	}
+
+	private static int ceilDiv(int value, int divisor) {
+		return (value + divisor - 1) / divisor;
+	}
+}
@@ -0,0 +1,470 @@
+package com.deakishin.idtmessagingtestapp;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import android.util.Log;
+
+/**
+ * Downloader that fetches a large resource as several byte ranges at once.
+ * Every range is written directly to its place in one preallocated file, so no
+ * reassembling is needed. It's used only when the server supports ranges and
+ * the resource is large enough, the number of segments depends on its size.
+ * <p>
+ * The caller holds one connection slot of the host in the
+ * {@link HostLimiter}, it's used by the first segment. Every other segment
+ * takes a free slot of the host, so segments never exceed the per-host limit
+ * shared with the download engine. If there's no free slot, the resource isn't
+ * even probed. Hosts whose resources turn out unsuitable are not probed again
+ * for a while, so they don't pay the extra round trip on every download.
+ */
+public class SegmentedDownloader {
+	private static final String TAG = "SegmentedDownloader";
+
+	/* Resources smaller than this are downloaded by one stream. */
+	private static final long MIN_SIZE = 1024 * 1024;
+
+	/* Desired size of one segment. */
+	private static final long SEGMENT_SIZE = 1024 * 1024;
+
+	/* Limits of the number of segments. */
+	private static final int MIN_SEGMENTS = 2;
+	private static final int MAX_SEGMENTS = 6;
+
+	/* Number of attempts to download one segment. */
+	private static final int MAX_SEGMENT_ATTEMPTS = 2;
+
+	/* Size of the buffer of one segment. */
+	private static final int BUFFER_SIZE = 32 * 1024;
+
+	/* Time a host with unsuitable resources is not probed, in ms. */
+	private static final long UNSUITABLE_HOST_TIMEOUT = 10 * 60 * 1000;
+
+	/* Executor shared by all downloads. */
+	private static ExecutorService sExecutor;
+
+	/* Time until which hosts are not probed, by host. */
+	private static final Map<String, Long> sUnsuitableHosts = new HashMap<String, Long>();
+
+	/* Transport of requests, segments reuse kept alive connections. */
+	private final HttpTransport mTransport = HttpTransport.getInstance();
+
+	private final HostLimiter mHostLimiter;
+
+	/**
+	 * Constructor with the limiter shared by the process.
+	 */
+	public SegmentedDownloader() {
+		this(HostLimiter.getInstance());
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param hostLimiter
+	 *            - limiter of connections to one host, the caller holds a slot
+	 *            of the host of every download.
+	 */
+	public SegmentedDownloader(HostLimiter hostLimiter) {
+		mHostLimiter = hostLimiter;
+	}
+
+	/**
+	 * Listener of the download progress. Called in the threads of segments.
+	 */
+	public interface ProgressListener {
+		/**
+		 * Called after a portion of data is written.
+		 *
+		 * @param downloadedBytes
+		 *            - number of bytes written by all segments.
+		 * @param contiguousBytes
+		 *            - number of bytes written from the beginning of the file
+		 *            without gaps.
+		 */
+		void onProgress(long downloadedBytes, long contiguousBytes);
+	}
+
+	/**
+	 * Result of probing a resource. It holds the HEAD connection and the host
+	 * slots of the additional segments until it's released by
+	 * {@link SegmentedDownloader#release(Probe)}.
+	 */
+	public static class Probe {
+		/** Length of the resource in bytes. */
+		public final long contentLength;
+		/** Strong validator of the resource or null. */
+		public final String validator;
+		/** HEAD connection, its headers describe the resource. */
+		public final HttpURLConnection connection;
+		/** Number of segments, one more than the slots taken. */
+		public final int segmentCount;
+
+		private final String mHost;
+		private boolean mReleased;
+
+		Probe(long contentLength, String validator, HttpURLConnection connection, int segmentCount, String host) {
+			this.contentLength = contentLength;
+			this.validator = validator;
+			this.connection = connection;
+			this.segmentCount = segmentCount;
+			mHost = host;
+		}
+	}
+
+	/**
+	 * Probes the resource with a HEAD request to find out its length and
+	 * whether the server supports ranges. The resource isn't probed if its
+	 * host has no free slots for additional segments or recently had
+	 * unsuitable resources.
+	 *
+	 * @param urlString
+	 *            - url of the resource.
+	 * @return result of probing or null if segmented downloading is not
+	 *         possible or not worth it. The caller must release the result by
+	 *         {@link #release(Probe)}.
+	 * @throws IOException
+	 *             if an error occurred.
+	 */
+	public Probe probe(String urlString) throws IOException {
+		String host = HostLimiter.getHost(urlString);
+		if (isUnsuitable(host)) {
+			return null;
+		}
+		int slots = acquireSlots(host, MAX_SEGMENTS - 1);
+		if (slots == 0) {
+			Log.d(TAG, "No free connections to " + host + ", not probing");
+			return null;
+		}
+
+		HttpURLConnection connection = null;
+		boolean suitable = false;
+		try {
+			connection = mTransport.open(urlString, new HttpTransport.RequestConfigurator() {
+				@Override
+				public void configure(HttpURLConnection connection) throws IOException {
+					connection.setRequestMethod("HEAD");
+				}
+			});
+			if (connection.getResponseCode() != HttpURLConnection.HTTP_OK
+					|| !"bytes".equalsIgnoreCase(connection.getHeaderField("Accept-Ranges"))) {
+				markUnsuitable(host);
+				return null;
+			}
+			long contentLength = parseLong(connection.getHeaderField("Content-Length"));
+			if (contentLength < MIN_SIZE) {
+				markUnsuitable(host);
+				return null;
+			}
+			int segmentCount = Math.min(getSegmentCount(contentLength), slots + 1);
+			releaseSlots(host, slots - (segmentCount - 1));
+			slots = segmentCount - 1;
+			suitable = true;
+			return new Probe(contentLength, DownloadHelper.getStrongValidator(connection), connection, segmentCount,
+					host);
+		} finally {
+			if (!suitable) {
+				releaseSlots(host, slots);
+				if (connection != null) {
+					/* A HEAD response has no body, the connection can be reused. */
+					mTransport.release(connection, null);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Releases the connection and the host slots held by a probe. Releasing a
+	 * probe again does nothing.
+	 *
+	 * @param probe
+	 *            - result of probing.
+	 */
+	public void release(Probe probe) {
+		synchronized (probe) {
+			if (probe.mReleased) {
+				return;
+			}
+			probe.mReleased = true;
+		}
+		mTransport.release(probe.connection, null);
+		releaseSlots(probe.mHost, probe.segmentCount - 1);
+	}
+
+	/**
+	 * Calculates the number of segments for the resource when there are
+	 * enough connection slots.
+	 *
+	 * @param contentLength
+	 *            - length of the resource.
+	 * @return number of segments.
+	 */
+	public static int getSegmentCount(long contentLength) {
+		long count = contentLength / SEGMENT_SIZE;
+		return (int) Math.max(MIN_SEGMENTS, Math.min(MAX_SEGMENTS, count));
+	}
+
+	/* Takes up to the given number of free slots of the host, returns the number taken. */
+	private int acquireSlots(String host, int count) {
+		int acquired = 0;
+		while (acquired < count && mHostLimiter.tryAcquire(host)) {
+			acquired++;
+		}
+		return acquired;
+	}
+
+	private void releaseSlots(String host, int count) {
+		for (int i = 0; i < count; i++) {
+			mHostLimiter.release(host);
+		}
+	}
+
+	private static boolean isUnsuitable(String host) {
+		synchronized (sUnsuitableHosts) {
+			Long until = sUnsuitableHosts.get(host);
+			if (until == null) {
+				return false;
+			}
+			if (until > System.currentTimeMillis()) {
+				return true;
+			}
+			sUnsuitableHosts.remove(host);
+			return false;
+		}
+	}
+
+	private static void markUnsuitable(String host) {
+		synchronized (sUnsuitableHosts) {
+			sUnsuitableHosts.put(host, System.currentTimeMillis() + UNSUITABLE_HOST_TIMEOUT);
+		}
+	}
+
+	/**
+	 * Downloads the resource into the file by segments. The number of
+	 * segments is decided by probing, the probe is not released.
+	 *
+	 * @param urlString
+	 *            - url of the resource.
+	 * @param probe
+	 *            - result of probing the resource.
+	 * @param file
+	 *            - file to write data to, it's created or overwritten.
+	 * @param listener
+	 *            - listener of the progress or null.
+	 * @throws IOException
+	 *             if any segment can't be downloaded.
+	 */
+	public void download(String urlString, Probe probe, File file, ProgressListener listener) throws IOException {
+		long startTime = System.currentTimeMillis();
+		int segmentCount = probe.segmentCount;
+		long segmentSize = (probe.contentLength + segmentCount - 1) / segmentCount;
+		Log.d(TAG, "Downloading " + probe.contentLength + " bytes in " + segmentCount + " segments");
+
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(probe.contentLength);
+			FileChannel channel = raf.getChannel();
+
+			List<SegmentTask> tasks = new ArrayList<SegmentTask>(segmentCount);
+			Progress progress = new Progress(tasks, listener);
+			for (long start = 0; start < probe.contentLength; start += segmentSize) {
+				long end = Math.min(start + segmentSize, probe.contentLength) - 1;
+				tasks.add(new SegmentTask(urlString, probe.validator, start, end, channel, progress));
+			}
+
+			List<Future<Void>> futures = getExecutor().invokeAll(tasks);
+			for (Future<Void> future : futures) {
+				future.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			throw cause instanceof IOException ? (IOException) cause : new IOException(String.valueOf(cause));
+		} finally {
+			raf.close();
+		}
+		Log.d(TAG, "Downloaded " + probe.contentLength + " bytes in " + (System.currentTimeMillis() - startTime)
+				+ " ms");
+	}
+
+	private static long parseLong(String s) {
+		if (s == null) {
+			return -1;
+		}
+		try {
+			return Long.parseLong(s);
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	private static synchronized ExecutorService getExecutor() {
+		if (sExecutor == null) {
+			sExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+				private int mCount = 0;
+
+				@Override
+				public synchronized Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, TAG + " #" + (++mCount));
+					thread.setPriority(Thread.MIN_PRIORITY);
+					return thread;
+				}
+			});
+		}
+		return sExecutor;
+	}
+
+	/*
+	 * Progress of all segments of a download. Positions of segments are
+	 * volatile, so the progress is summed and reported without a lock.
+	 */
+	private static class Progress {
+		private final List<SegmentTask> mTasks;
+		private final ProgressListener mListener;
+
+		Progress(List<SegmentTask> tasks, ProgressListener listener) {
+			mTasks = tasks;
+			mListener = listener;
+		}
+
+		/* Reports the progress after a segment has written some data. */
+		void update() {
+			if (mListener == null) {
+				return;
+			}
+			long downloadedBytes = 0;
+			long contiguousBytes = 0;
+			boolean contiguous = true;
+			for (SegmentTask task : mTasks) {
+				long written = task.getBytesWritten();
+				downloadedBytes += written;
+				if (contiguous) {
+					contiguousBytes += written;
+					contiguous = task.isComplete();
+				}
+			}
+			mListener.onProgress(downloadedBytes, contiguousBytes);
+		}
+	}
+
+	/*
+	 * Downloads bytes [start, end] of the resource and writes them to the same
+	 * positions of the file.
+	 */
+	private class SegmentTask implements Callable<Void> {
+		private final String mUrl;
+		private final String mValidator;
+		private final long mStart;
+		private final long mEnd;
+		private final FileChannel mChannel;
+		private final Progress mProgress;
+
+		/* Position of the next byte to write, a retry continues from it. */
+		private volatile long mPosition;
+
+		SegmentTask(String url, String validator, long start, long end, FileChannel channel, Progress progress) {
+			mUrl = url;
+			mValidator = validator;
+			mStart = start;
+			mEnd = end;
+			mChannel = channel;
+			mProgress = progress;
+			mPosition = start;
+		}
+
+		long getBytesWritten() {
+			return mPosition - mStart;
+		}
+
+		boolean isComplete() {
+			return mPosition > mEnd;
+		}
+
+		@Override
+		public Void call() throws IOException {
+			for (int attempt = 1;; attempt++) {
+				try {
+					if (attempt > 1) {
+						mTransport.sleepBeforeRetry(attempt);
+					}
+					fetch();
+					return null;
+				} catch (IOException e) {
+					Log.e(TAG, "Segment " + mStart + "-" + mEnd + " failed at " + mPosition + ": " + e);
+					if (HttpTransport.isInterruption(e) || attempt >= MAX_SEGMENT_ATTEMPTS) {
+						throw e;
+					}
+				}
+			}
+		}
+
+		/*
+		 * Fetches the rest of the segment starting from the current position.
+		 */
+		private void fetch() throws IOException {
+			HttpURLConnection connection = mTransport.open(mUrl, new HttpTransport.RequestConfigurator() {
+				@Override
+				public void configure(HttpURLConnection connection) {
+					connection.setRequestProperty("Range", "bytes=" + mPosition + "-" + mEnd);
+					if (mValidator != null) {
+						connection.setRequestProperty("If-Range", mValidator);
+					}
+				}
+			});
+			InputStream is = null;
+			boolean released = false;
+			try {
+				if (connection.getResponseCode() != HttpURLConnection.HTTP_PARTIAL
+						|| DownloadHelper.getRangeStart(connection) != mPosition) {
+					throw new IOException("Range is not supported, response code: " + connection.getResponseCode());
+				}
+
+				is = connection.getInputStream();
+				byte[] buffer = new byte[BUFFER_SIZE];
+				ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
+				int bytesRead;
+				while (mPosition <= mEnd
+						&& (bytesRead = is.read(buffer, 0, (int) Math.min(buffer.length, mEnd - mPosition + 1))) != -1) {
+					byteBuffer.clear();
+					byteBuffer.limit(bytesRead);
+					while (byteBuffer.hasRemaining()) {
+						mPosition += mChannel.write(byteBuffer, mPosition);
+					}
+					mProgress.update();
+				}
+				if (mPosition <= mEnd) {
+					throw new IOException("Segment ended at " + mPosition + " instead of " + (mEnd + 1));
+				}
+				released = true;
+				mTransport.release(connection, is);
+			} finally {
+				if (!released) {
+					if (is != null) {
+						try {
+							is.close();
+						} catch (IOException e) {
+						}
+					}
+					mTransport.abort(connection);
+				}
+			}
+		}
+	}
+}
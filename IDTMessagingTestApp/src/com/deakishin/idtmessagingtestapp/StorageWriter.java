@@ -0,0 +1,459 @@
+package com.deakishin.idtmessagingtestapp;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Writer of streams to files. Data is read into one large buffer and written
+ * to a {@link FileChannel} in big chunks, so a megabyte takes a few system
+ * calls instead of a thousand. Whole files are written to a temporary file and
+ * renamed, so a file under the final name is never half-written. A checksum of
+ * the data can be computed while it goes through. Data that is expected to
+ * equal an existing file can be compared with it instead of being written.
+ * <p>
+ * The class doesn't depend on Android, so it can be used by benchmarks and
+ * tools running on a desktop JVM.
+ */
+public class StorageWriter {
+
+	/** Default size of the buffer. */
+	public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+	/** Default number of bytes written between syncs for {@link SyncPolicy#PERIODIC}. */
+	public static final long DEFAULT_SYNC_INTERVAL = 1024 * 1024;
+
+	/* Extension of temporary files. */
+	private static final String TMP_EXTENSION = ".tmp";
+
+	/** Policies of flushing written data to the storage device. */
+	public enum SyncPolicy {
+		/** Data is left to the OS. Fastest, but it may be lost on power loss. */
+		NONE,
+		/** Data is synced once after it's all written. */
+		ON_CLOSE,
+		/** Data is synced every sync interval and after it's all written. */
+		PERIODIC
+	}
+
+	/**
+	 * Listener of the writing progress.
+	 */
+	public interface Listener {
+		/**
+		 * Called after a portion of data is written.
+		 *
+		 * @param totalBytes
+		 *            - number of bytes in the file.
+		 */
+		void onBytesWritten(long totalBytes);
+	}
+
+	/**
+	 * Result of writing.
+	 */
+	public static class Result {
+		/** Length of the file. */
+		public final long length;
+		/** Number of bytes written by this call. */
+		public final long bytesWritten;
+		/** Time of writing in ns. */
+		public final long elapsedNanos;
+		/** Hex checksum of the whole file or null if it's not computed. */
+		public final String digest;
+		/** True if data equals the existing file and nothing is written. */
+		public final boolean identical;
+
+		Result(long length, long bytesWritten, long elapsedNanos, String digest, boolean identical) {
+			this.length = length;
+			this.bytesWritten = bytesWritten;
+			this.elapsedNanos = elapsedNanos;
+			this.digest = digest;
+			this.identical = identical;
+		}
+
+		/**
+		 * @return speed of writing in MB/s.
+		 */
+		public double getMegabytesPerSecond() {
+			return elapsedNanos > 0 ? bytesWritten * 1000.0 / elapsedNanos : 0;
+		}
+	}
+
+	private final SyncPolicy mSyncPolicy;
+	private final int mBufferSize;
+	private long mSyncInterval = DEFAULT_SYNC_INTERVAL;
+
+	/* Algorithm of the checksum, null if it's not computed. */
+	private String mDigestAlgorithm;
+
+	/**
+	 * Constructor with the default buffer size.
+	 *
+	 * @param syncPolicy
+	 *            - policy of syncing written data.
+	 */
+	public StorageWriter(SyncPolicy syncPolicy) {
+		this(syncPolicy, DEFAULT_BUFFER_SIZE);
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param syncPolicy
+	 *            - policy of syncing written data.
+	 * @param bufferSize
+	 *            - size of the buffer.
+	 */
+	public StorageWriter(SyncPolicy syncPolicy, int bufferSize) {
+		mSyncPolicy = syncPolicy;
+		mBufferSize = Math.max(1024, bufferSize);
+	}
+
+	/**
+	 * Sets the number of bytes written between syncs for
+	 * {@link SyncPolicy#PERIODIC}.
+	 *
+	 * @param syncInterval
+	 *            - number of bytes.
+	 */
+	public void setSyncInterval(long syncInterval) {
+		mSyncInterval = Math.max(mBufferSize, syncInterval);
+	}
+
+	/**
+	 * Enables computing a checksum of written files.
+	 *
+	 * @param algorithm
+	 *            - name of a {@link MessageDigest} algorithm, e.g. "SHA-1", or
+	 *            null to disable the checksum.
+	 * @throws IllegalArgumentException
+	 *             if the algorithm is not supported.
+	 */
+	public void setDigestAlgorithm(String algorithm) {
+		if (algorithm != null) {
+			getDigestInstance(algorithm);
+		}
+		mDigestAlgorithm = algorithm;
+	}
+
+	/**
+	 * Writes the whole file. Data is written to a temporary file that is
+	 * renamed to the target after all data is written and synced according to
+	 * the policy. On error the temporary file is deleted and the target is
+	 * left untouched.
+	 *
+	 * @param input
+	 *            - stream that provides data.
+	 * @param target
+	 *            - file to write.
+	 * @param listener
+	 *            - listener of the progress or null.
+	 * @return result of writing.
+	 * @throws IOException
+	 *             if an error occurred.
+	 */
+	public Result writeAtomically(InputStream input, File target, Listener listener) throws IOException {
+		File tmp = new File(target.getPath() + TMP_EXTENSION);
+		boolean renamed = false;
+		try {
+			Result result = write(input, tmp, 0, listener);
+			/* Rename doesn't replace an existing file on every file system. */
+			if (!tmp.renameTo(target) && !(target.delete() && tmp.renameTo(target))) {
+				throw new IOException("Unable to rename " + tmp.getName() + " to " + target.getName());
+			}
+			renamed = true;
+			return result;
+		} finally {
+			if (!renamed) {
+				tmp.delete();
+			}
+		}
+	}
+
+	/**
+	 * Writes data to the file starting from the given offset. Data after the
+	 * offset is replaced, data before it is kept, so an interrupted writing
+	 * can be continued. The caller is responsible for renaming the file when
+	 * it's complete.
+	 *
+	 * @param input
+	 *            - stream that provides data.
+	 * @param file
+	 *            - file to write.
+	 * @param offset
+	 *            - position in the file to start writing from, it must not be
+	 *            larger than the file length.
+	 * @param listener
+	 *            - listener of the progress or null.
+	 * @return result of writing.
+	 * @throws IOException
+	 *             if an error occurred.
+	 */
+	public Result write(InputStream input, File file, long offset, Listener listener) throws IOException {
+		long startTime = System.nanoTime();
+		MessageDigest digest = mDigestAlgorithm != null ? getDigestInstance(mDigestAlgorithm) : null;
+
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			FileChannel channel = raf.getChannel();
+			if (channel.size() < offset) {
+				throw new IOException("File " + file.getName() + " is shorter than " + offset + " bytes");
+			}
+			channel.truncate(offset);
+			if (digest != null && offset > 0) {
+				updateDigest(digest, file, offset);
+			}
+
+			long position = transfer(input, channel, offset, new byte[mBufferSize], digest, listener);
+			return new Result(position, position - offset, System.nanoTime() - startTime,
+					digest != null ? toHex(digest.digest()) : null, false);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Writes the whole file unless data equals the existing file. Data is
+	 * compared with the existing file while it arrives and nothing is written
+	 * as long as they match. At the first difference the matching part is
+	 * copied from the existing file and the rest of data is written as usual.
+	 * 
+	 * @param input
+	 *            - stream that provides data.
+	 * @param existing
+	 *            - file that data is expected to equal.
+	 * @param file
+	 *            - file to write if data differs, it's created or overwritten.
+	 * @param listener
+	 *            - listener of the progress or null. While data matches, it
+	 *            gets the number of compared bytes.
+	 * @return result of writing, {@link Result#identical} tells if the file
+	 *         is written.
+	 * @throws IOException
+	 *             if an error occurred.
+	 */
+	public Result writeUnlessEqual(InputStream input, File existing, File file, Listener listener) throws IOException {
+		long startTime = System.nanoTime();
+		MessageDigest digest = mDigestAlgorithm != null ? getDigestInstance(mDigestAlgorithm) : null;
+
+		RandomAccessFile existingRaf = new RandomAccessFile(existing, "r");
+		try {
+			FileChannel existingChannel = existingRaf.getChannel();
+			long existingLength = existingChannel.size();
+			byte[] buffer = new byte[mBufferSize];
+			ByteBuffer existingBuffer = ByteBuffer.allocate(mBufferSize);
+			long matched = 0;
+			int count;
+			while ((count = fill(input, buffer)) > 0) {
+				if (digest != null) {
+					digest.update(buffer, 0, count);
+				}
+				existingBuffer.clear();
+				existingBuffer.limit(count);
+				int existingCount = 0;
+				int bytesRead;
+				while (existingCount < count
+						&& (bytesRead = existingChannel.read(existingBuffer, matched + existingCount)) != -1) {
+					existingCount += bytesRead;
+				}
+				int equal = 0;
+				while (equal < existingCount && existingBuffer.get(equal) == buffer[equal]) {
+					equal++;
+				}
+				if (equal < count) {
+					long position = copyPrefix(existingChannel, matched + equal, buffer, equal, count, input, file,
+							digest, listener);
+					return new Result(position, position, System.nanoTime() - startTime,
+							digest != null ? toHex(digest.digest()) : null, false);
+				}
+				matched += count;
+				if (listener != null) {
+					listener.onBytesWritten(matched);
+				}
+			}
+			if (matched < existingLength) {
+				/* Data is a prefix of the existing file. */
+				long position = copyPrefix(existingChannel, matched, buffer, 0, 0, input, file, digest, listener);
+				return new Result(position, position, System.nanoTime() - startTime,
+						digest != null ? toHex(digest.digest()) : null, false);
+			}
+			return new Result(matched, 0, System.nanoTime() - startTime, digest != null ? toHex(digest.digest())
+					: null, true);
+		} finally {
+			existingRaf.close();
+		}
+	}
+
+	/*
+	 * Writes the file when data has turned out to differ from the existing
+	 * file: the matching prefix is transferred from the existing file, then
+	 * the rest of the current buffer and of the stream are written. Returns
+	 * the length of the file.
+	 */
+	private long copyPrefix(FileChannel existingChannel, long prefixLength, byte[] buffer, int from, int to,
+			InputStream input, File file, MessageDigest digest, Listener listener) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			FileChannel channel = raf.getChannel();
+			channel.truncate(0);
+			long position = 0;
+			while (position < prefixLength) {
+				position += existingChannel.transferTo(position, prefixLength - position, channel);
+			}
+			position = writeFully(channel, buffer, from, to - from, position);
+			return transfer(input, channel, position, buffer, digest, listener);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/*
+	 * Writes the rest of the stream to the channel from the given position,
+	 * syncing it according to the policy. Returns the end position.
+	 */
+	private long transfer(InputStream input, FileChannel channel, long position, byte[] buffer,
+			MessageDigest digest, Listener listener) throws IOException {
+		long lastSync = position;
+		/* Time of writing and syncing only, without waiting for the input. */
+		long writeNanos = 0;
+		int count;
+		while ((count = fill(input, buffer)) > 0) {
+			if (digest != null) {
+				digest.update(buffer, 0, count);
+			}
+			long writeStart = System.nanoTime();
+			position = writeFully(channel, buffer, 0, count, position);
+			if (mSyncPolicy == SyncPolicy.PERIODIC && position - lastSync >= mSyncInterval) {
+				channel.force(false);
+				lastSync = position;
+			}
+			writeNanos += System.nanoTime() - writeStart;
+			if (listener != null) {
+				listener.onBytesWritten(position);
+			}
+		}
+		long syncStart = System.nanoTime();
+		if (mSyncPolicy != SyncPolicy.NONE) {
+			channel.force(true);
+		}
+		writeNanos += System.nanoTime() - syncStart;
+		Metrics.getInstance().record(Metrics.FILE_WRITE, writeNanos / 1000);
+		return position;
+	}
+
+	/* Writes bytes of the buffer at the position, returns the end position. */
+	private static long writeFully(FileChannel channel, byte[] buffer, int offset, int length, long position)
+			throws IOException {
+		ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, offset, length);
+		while (byteBuffer.hasRemaining()) {
+			position += channel.write(byteBuffer, position);
+		}
+		return position;
+	}
+
+	/**
+	 * Creates a digest for the configured checksum algorithm.
+	 *
+	 * @return new digest or null if the checksum is disabled.
+	 */
+	public MessageDigest newDigest() {
+		return mDigestAlgorithm != null ? getDigestInstance(mDigestAlgorithm) : null;
+	}
+
+	/**
+	 * Computes the checksum of a file, e.g. of one written by other means.
+	 *
+	 * @param file
+	 *            - file to read.
+	 * @return hex checksum or null if the checksum is disabled.
+	 * @throws IOException
+	 *             if an error occurred.
+	 */
+	public String computeDigest(File file) throws IOException {
+		MessageDigest digest = newDigest();
+		if (digest == null) {
+			return null;
+		}
+		updateDigest(digest, file, file.length());
+		return toHex(digest.digest());
+	}
+
+	/**
+	 * Converts bytes to a lowercase hex string.
+	 *
+	 * @param bytes
+	 *            - bytes to convert.
+	 * @return hex string.
+	 */
+	public static String toHex(byte[] bytes) {
+		StringBuilder sb = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes) {
+			sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		}
+		return sb.toString();
+	}
+
+	/*
+	 * Reads from the stream into the buffer. Bytes that are already available
+	 * are merged into one write, but after the first read it doesn't wait for
+	 * more, so data of a slow stream is written as it arrives. An error after
+	 * some bytes are read is left to the next call, so those bytes are written
+	 * first. Returns the number of bytes read, 0 at the end of the stream.
+	 */
+	private static int fill(InputStream input, byte[] buffer) throws IOException {
+		int count = 0;
+		while (count < buffer.length) {
+			int bytesRead;
+			try {
+				if (count > 0 && input.available() <= 0) {
+					break;
+				}
+				bytesRead = input.read(buffer, count, buffer.length - count);
+			} catch (IOException e) {
+				if (count == 0) {
+					throw e;
+				}
+				break;
+			}
+			if (bytesRead == -1) {
+				break;
+			}
+			count += bytesRead;
+		}
+		return count;
+	}
+
+	/*
+	 * Feeds the first bytes of the file to the digest, so the checksum of a
+	 * continued file covers all of it.
+	 */
+	private void updateDigest(MessageDigest digest, File file, long length) throws IOException {
+		InputStream is = new FileInputStream(file);
+		try {
+			byte[] buffer = new byte[mBufferSize];
+			long remaining = length;
+			int bytesRead;
+			while (remaining > 0 && (bytesRead = is.read(buffer, 0, (int) Math.min(buffer.length, remaining))) != -1) {
+				digest.update(buffer, 0, bytesRead);
+				remaining -= bytesRead;
+			}
+		} finally {
+			is.close();
+		}
+	}
+
+	private static MessageDigest getDigestInstance(String algorithm) {
+		try {
+			return MessageDigest.getInstance(algorithm);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalArgumentException("Unsupported digest algorithm: " + algorithm);
+		}
+	}
+}
@@ -0,0 +1,188 @@
+package com.deakishin.idtmessagingtestapp;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Writer of PNG images row by row. Rows are compressed and written as they
+ * come, so only one row is kept in memory regardless of the image height.
+ * Pixels are given as ARGB ints, like the ones returned by
+ * {@link android.graphics.Bitmap#getPixels}.
+ * <p>
+ * The class doesn't depend on Android, so it can be used by benchmarks and
+ * tools running on a desktop JVM.
+ */
+public class StreamingPngWriter {
+
+	private static final byte[] SIGNATURE = { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n' };
+
+	/* Color types of the IHDR chunk. */
+	private static final int COLOR_TYPE_RGB = 2;
+	private static final int COLOR_TYPE_RGBA = 6;
+
+	/* Row filter that stores differences with the pixel to the left. */
+	private static final int FILTER_SUB = 1;
+
+	/* Maximal size of an IDAT chunk. */
+	private static final int CHUNK_SIZE = 64 * 1024;
+
+	private final OutputStream mOut;
+	private final int mWidth;
+	private final int mHeight;
+	private final boolean mAlpha;
+	private final int mBytesPerPixel;
+
+	private final Deflater mDeflater;
+	private final DeflaterOutputStream mDeflaterStream;
+
+	/* Raw bytes of the current row and the same row filtered. */
+	private final byte[] mRow;
+	private final byte[] mFilteredRow;
+
+	private int mRowsWritten;
+
+	/**
+	 * Constructor. Writes the PNG header.
+	 *
+	 * @param out
+	 *            - stream to write the image to. It's not closed by the writer.
+	 * @param width
+	 *            - width of the image.
+	 * @param height
+	 *            - height of the image.
+	 * @param alpha
+	 *            - true to store the alpha channel.
+	 * @param compressionLevel
+	 *            - level of compression from 0 to 9.
+	 * @throws IOException
+	 *             if an error occurred.
+	 */
+	public StreamingPngWriter(OutputStream out, int width, int height, boolean alpha, int compressionLevel)
+			throws IOException {
+		if (width <= 0 || height <= 0) {
+			throw new IllegalArgumentException("Illegal size " + width + "x" + height);
+		}
+		mOut = out;
+		mWidth = width;
+		mHeight = height;
+		mAlpha = alpha;
+		mBytesPerPixel = alpha ? 4 : 3;
+		mRow = new byte[width * mBytesPerPixel];
+		mFilteredRow = new byte[1 + width * mBytesPerPixel];
+
+		mOut.write(SIGNATURE);
+		byte[] header = new byte[13];
+		putInt(header, 0, width);
+		putInt(header, 4, height);
+		header[8] = 8;
+		header[9] = (byte) (alpha ? COLOR_TYPE_RGBA : COLOR_TYPE_RGB);
+		writeChunk("IHDR", header, 0, header.length);
+
+		mDeflater = new Deflater(compressionLevel);
+		mDeflaterStream = new DeflaterOutputStream(new ChunkOutputStream(), mDeflater, CHUNK_SIZE);
+	}
+
+	/**
+	 * Writes the next row of the image.
+	 *
+	 * @param pixels
+	 *            - ARGB pixels, not premultiplied.
+	 * @param offset
+	 *            - index of the first pixel of the row.
+	 * @throws IOException
+	 *             if an error occurred.
+	 */
+	public void writeRow(int[] pixels, int offset) throws IOException {
+		if (mRowsWritten >= mHeight) {
+			throw new IllegalStateException("All " + mHeight + " rows are written");
+		}
+		int i = 0;
+		for (int x = 0; x < mWidth; x++) {
+			int color = pixels[offset + x];
+			mRow[i++] = (byte) (color >> 16);
+			mRow[i++] = (byte) (color >> 8);
+			mRow[i++] = (byte) color;
+			if (mAlpha) {
+				mRow[i++] = (byte) (color >>> 24);
+			}
+		}
+
+		mFilteredRow[0] = FILTER_SUB;
+		for (i = 0; i < mBytesPerPixel; i++) {
+			mFilteredRow[1 + i] = mRow[i];
+		}
+		for (i = mBytesPerPixel; i < mRow.length; i++) {
+			mFilteredRow[1 + i] = (byte) (mRow[i] - mRow[i - mBytesPerPixel]);
+		}
+		mDeflaterStream.write(mFilteredRow);
+		mRowsWritten++;
+	}
+
+	/**
+	 * Finishes the image after all rows are written.
+	 *
+	 * @throws IOException
+	 *             if an error occurred or not all rows are written.
+	 */
+	public void finish() throws IOException {
+		if (mRowsWritten != mHeight) {
+			throw new IOException("Only " + mRowsWritten + " of " + mHeight + " rows are written");
+		}
+		mDeflaterStream.finish();
+		mDeflater.end();
+		writeChunk("IEND", new byte[0], 0, 0);
+		mOut.flush();
+	}
+
+	/**
+	 * Releases the compressor if the image is abandoned.
+	 */
+	public void abort() {
+		mDeflater.end();
+	}
+
+	private void writeChunk(String type, byte[] data, int offset, int length) throws IOException {
+		byte[] typeBytes = type.getBytes("US-ASCII");
+		byte[] buffer = new byte[4];
+		putInt(buffer, 0, length);
+		mOut.write(buffer);
+		mOut.write(typeBytes);
+		mOut.write(data, offset, length);
+
+		CRC32 crc = new CRC32();
+		crc.update(typeBytes);
+		crc.update(data, offset, length);
+		putInt(buffer, 0, (int) crc.getValue());
+		mOut.write(buffer);
+	}
+
+	private static void putInt(byte[] buffer, int offset, int value) {
+		buffer[offset] = (byte) (value >>> 24);
+		buffer[offset + 1] = (byte) (value >>> 16);
+		buffer[offset + 2] = (byte) (value >>> 8);
+		buffer[offset + 3] = (byte) value;
+	}
+
+	/*
+	 * Stream that writes compressed data as IDAT chunks.
+	 */
+	private class ChunkOutputStream extends OutputStream {
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			while (len > 0) {
+				int length = Math.min(len, CHUNK_SIZE);
+				writeChunk("IDAT", b, off, length);
+				off += length;
+				len -= length;
+			}
+		}
+	}
+}
@@ -0,0 +1,192 @@
+package com.deakishin.idtmessagingtestapp;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+import android.os.Build;
+import android.util.Log;
+
+/**
+ * Transformer of stored images that works by horizontal bands. A band of the
+ * source is decoded by a region decoder, flipped in place and written to a PNG
+ * file row by row, so peak memory is a few bands regardless of the image
+ * height. Supported transforms are cropping, horizontal and vertical flips and
+ * rotation by 180 degrees, which is both flips at once.
+ * <p>
+ * Region decoding is available since Gingerbread MR1, see
+ * {@link #isSupported()}.
+ */
+@TargetApi(10)
+public class StripeTransformer {
+	private static final String TAG = "StripeTransformer";
+
+	/* Number of pixels in one band. */
+	private static final int BAND_PIXELS = 512 * 1024;
+
+	/* Compression level of the output, the default of zlib. */
+	private static final int COMPRESSION_LEVEL = 6;
+
+	/* Size of the output buffer. */
+	private static final int OUTPUT_BUFFER_SIZE = 64 * 1024;
+
+	private boolean mFlipHorizontal;
+	private boolean mFlipVertical;
+	private Rect mCrop;
+
+	/**
+	 * @return true if transforming is supported on this device.
+	 */
+	public static boolean isSupported() {
+		return Build.VERSION.SDK_INT >= Build.VERSION_CODES.GINGERBREAD_MR1;
+	}
+
+	/**
+	 * Enables rotation by 180 degrees. It's the same as both flips, so it
+	 * toggles them.
+	 */
+	public void rotate180() {
+		mFlipHorizontal = !mFlipHorizontal;
+		mFlipVertical = !mFlipVertical;
+	}
+
+	/**
+	 * Sets mirroring of the image left to right.
+	 *
+	 * @param flip
+	 *            - true to mirror the image.
+	 */
+	public void setFlipHorizontal(boolean flip) {
+		mFlipHorizontal = flip;
+	}
+
+	/**
+	 * Sets mirroring of the image top to bottom.
+	 *
+	 * @param flip
+	 *            - true to mirror the image.
+	 */
+	public void setFlipVertical(boolean flip) {
+		mFlipVertical = flip;
+	}
+
+	/**
+	 * Sets the part of the source to keep. It's applied before flipping.
+	 *
+	 * @param crop
+	 *            - rectangle in source pixels or null to keep the whole image.
+	 */
+	public void setCrop(Rect crop) {
+		mCrop = crop;
+	}
+
+	/**
+	 * Transforms the image and writes the result as PNG.
+	 *
+	 * @param source
+	 *            - image file, JPEG or PNG.
+	 * @param target
+	 *            - file to write, it's created or overwritten.
+	 * @throws IOException
+	 *             if the source can't be read or the target can't be written.
+	 */
+	public void transform(File source, File target) throws IOException {
+		long startTime = System.nanoTime();
+		BitmapRegionDecoder decoder = BitmapRegionDecoder.newInstance(source.getAbsolutePath(), false);
+		OutputStream out = null;
+		StreamingPngWriter writer = null;
+		boolean finished = false;
+		try {
+			Rect crop = new Rect(0, 0, decoder.getWidth(), decoder.getHeight());
+			if (mCrop != null && !crop.intersect(mCrop)) {
+				throw new IOException("Crop " + mCrop + " is outside of the image");
+			}
+			int width = crop.width();
+			int height = crop.height();
+			int bandHeight = Math.max(1, Math.min(height, BAND_PIXELS / width));
+			int[] pixels = new int[width * bandHeight];
+
+			BitmapFactory.Options opts = new BitmapFactory.Options();
+			opts.inPreferredConfig = Bitmap.Config.ARGB_8888;
+
+			out = new BufferedOutputStream(new FileOutputStream(target), OUTPUT_BUFFER_SIZE);
+			boolean alpha = true;
+			Bitmap band = null;
+
+			/* Output rows are produced top to bottom, bands are taken from the flipped side. */
+			for (int outTop = 0; outTop < height; outTop += bandHeight) {
+				int rows = Math.min(bandHeight, height - outTop);
+				int srcTop = mFlipVertical ? crop.bottom - outTop - rows : crop.top + outTop;
+				Rect region = new Rect(crop.left, srcTop, crop.right, srcTop + rows);
+
+				if (band != null) {
+					setReusableBitmap(opts, band);
+				}
+				band = decoder.decodeRegion(region, opts);
+				if (band == null) {
+					throw new IOException("Unable to decode rows " + srcTop + "-" + (srcTop + rows));
+				}
+				if (writer == null) {
+					/* Opaque images are stored without the alpha channel. */
+					alpha = band.hasAlpha();
+					writer = new StreamingPngWriter(out, width, height, alpha, COMPRESSION_LEVEL);
+				}
+				band.getPixels(pixels, 0, width, 0, 0, width, rows);
+				if (mFlipHorizontal) {
+					for (int row = 0; row < rows; row++) {
+						ImageKernels.reverse(pixels, row * width, (row + 1) * width);
+					}
+				}
+				for (int i = 0; i < rows; i++) {
+					int row = mFlipVertical ? rows - 1 - i : i;
+					writer.writeRow(pixels, row * width);
+				}
+			}
+			if (band != null) {
+				BitmapPool.getInstance().put(band);
+			}
+			writer.finish();
+			finished = true;
+			Log.d(TAG, "Transformed " + width + "x" + height + " image by " + bandHeight + " rows, alpha: " + alpha
+					+ ", " + String.format("%.1f", BitmapRotator.megapixelsPerSecond((long) width * height,
+							System.nanoTime() - startTime)) + " MP/s");
+		} finally {
+			decoder.recycle();
+			if (writer != null && !finished) {
+				writer.abort();
+			}
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {
+				}
+			}
+			if (!finished) {
+				target.delete();
+			}
+		}
+	}
+
+	/*
+	 * Lets the decoder write the next band into the previous one. A region
+	 * decoder keeps the size of inBitmap and writes the region to its top
+	 * rows, so the shorter last band fills only the rows that are read.
+	 * Otherwise the previous band is returned to the pool.
+	 */
+	@TargetApi(11)
+	private static void setReusableBitmap(BitmapFactory.Options opts, Bitmap previous) {
+		if (BitmapPool.canReconfigure() && previous.isMutable()) {
+			opts.inBitmap = previous;
+		} else {
+			BitmapPool.getInstance().put(previous);
+			opts.inBitmap = null;
+		}
+	}
+}
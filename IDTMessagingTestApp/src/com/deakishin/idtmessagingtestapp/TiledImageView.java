@@ -0,0 +1,498 @@
+package com.deakishin.idtmessagingtestapp;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.os.Build;
+import android.support.v4.util.LruCache;
+import android.util.AttributeSet;
+import android.util.Log;
+import android.view.GestureDetector;
+import android.view.MotionEvent;
+import android.view.ScaleGestureDetector;
+import android.view.View;
+import android.view.ViewParent;
+
+/**
+ * View for images far larger than the screen. Only the tiles visible at the
+ * current zoom level are decoded by a region decoder, with a sample size that
+ * matches the zoom, so memory use doesn't depend on the image size. A
+ * low-resolution copy of the whole image is drawn under the tiles while they
+ * are being decoded. The image can be zoomed with a pinch or a double tap and
+ * panned by dragging. Rotation by 180 degrees is applied to every tile, so
+ * a copy that's already rotated should be shown instead when there's one.
+ * <p>
+ * Region decoding is available since Gingerbread MR1, see
+ * {@link #isSupported()}.
+ */
+@TargetApi(10)
+public class TiledImageView extends View {
+	private static final String TAG = "TiledImageView";
+
+	/** Images at least this many times wider than the view are shown by tiles. */
+	public static final int MIN_IMAGE_SCALE = 2;
+
+	/* Size of a tile in screen pixels. */
+	private static final int TILE_SIZE = 256;
+
+	/* Maximal zoom, in screen pixels per image pixel. */
+	private static final float MAX_SCALE = 2f;
+
+	/* Part of the heap used for caching tiles. */
+	private static final int HEAP_FRACTION = 16;
+
+	/* Thread that decodes tiles. */
+	private final ExecutorService mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, TAG);
+			thread.setPriority(Thread.MIN_PRIORITY);
+			return thread;
+		}
+	});
+
+	private final Paint mPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+	private final ScaleGestureDetector mScaleDetector;
+	private final GestureDetector mGestureDetector;
+
+	/* Decoder of the image, it's accessed by the tile thread only. */
+	private BitmapRegionDecoder mDecoder;
+	private volatile String mPath;
+	private boolean mRotate;
+	private int mImageWidth;
+	private int mImageHeight;
+
+	/* Low-resolution copy of the whole image, already rotated. */
+	private Bitmap mBaseBitmap;
+
+	/* Decoded tiles by their keys, they are already rotated. */
+	private volatile LruCache<String, Bitmap> mTileCache;
+
+	/* Keys of tiles being decoded and of the tiles visible now. */
+	private final Set<String> mPendingTiles = new HashSet<String>();
+	private volatile Set<String> mVisibleTiles = new HashSet<String>();
+
+	/* Screen pixels per image pixel and screen position of the image origin. */
+	private float mScale;
+	private float mTranslateX;
+	private float mTranslateY;
+
+	/* Reused in onDraw. */
+	private final RectF mDstRect = new RectF();
+
+	/**
+	 * @return true if tiled display is supported on this device.
+	 */
+	public static boolean isSupported() {
+		return Build.VERSION.SDK_INT >= Build.VERSION_CODES.GINGERBREAD_MR1;
+	}
+
+	public TiledImageView(Context context) {
+		this(context, null);
+	}
+
+	public TiledImageView(Context context, AttributeSet attrs) {
+		super(context, attrs);
+		mScaleDetector = new ScaleGestureDetector(context, new ScaleGestureDetector.SimpleOnScaleGestureListener() {
+			@Override
+			public boolean onScale(ScaleGestureDetector detector) {
+				zoomTo(mScale * detector.getScaleFactor(), detector.getFocusX(), detector.getFocusY());
+				return true;
+			}
+		});
+		mGestureDetector = new GestureDetector(context, new GestureDetector.SimpleOnGestureListener() {
+			@Override
+			public boolean onDown(MotionEvent e) {
+				return true;
+			}
+
+			@Override
+			public boolean onScroll(MotionEvent e1, MotionEvent e2, float distanceX, float distanceY) {
+				mTranslateX -= distanceX;
+				mTranslateY -= distanceY;
+				clampTranslation();
+				invalidate();
+				return true;
+			}
+
+			@Override
+			public boolean onDoubleTap(MotionEvent e) {
+				/* Switching between the whole image and its full detail. */
+				float fitScale = getFitScale();
+				zoomTo(mScale > fitScale ? fitScale : 1f, e.getX(), e.getY());
+				return true;
+			}
+		});
+	}
+
+	/**
+	 * Sets the image to display. The image is opened in a background thread.
+	 *
+	 * @param path
+	 *            - path to the image file, JPEG or PNG.
+	 * @param rotate
+	 *            - should be image rotated 180 degrees.
+	 */
+	public void setImage(final String path, final boolean rotate) {
+		if (mExecutor.isShutdown() || path.equals(mPath) && rotate == mRotate) {
+			return;
+		}
+		clear();
+		mPath = path;
+		mRotate = rotate;
+		mExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				openDecoder(path);
+			}
+		});
+	}
+
+	/**
+	 * Releases the decoder and decoded tiles. The view can't be used after
+	 * that.
+	 */
+	public void recycle() {
+		clear();
+		mExecutor.shutdown();
+	}
+
+	/* Forgets the current image. */
+	private void clear() {
+		final BitmapRegionDecoder decoder = mDecoder;
+		mDecoder = null;
+		mPath = null;
+		mImageWidth = 0;
+		mImageHeight = 0;
+		mBaseBitmap = null;
+		mVisibleTiles = new HashSet<String>();
+		synchronized (mPendingTiles) {
+			mPendingTiles.clear();
+		}
+		if (mTileCache != null) {
+			mTileCache.evictAll();
+		}
+		if (decoder != null && !mExecutor.isShutdown()) {
+			/* The decoder may be in use by the tile thread. */
+			mExecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					decoder.recycle();
+				}
+			});
+		}
+	}
+
+	/*
+	 * Opens the decoder in the tile thread and shows the base image.
+	 */
+	private void openDecoder(final String path) {
+		long startTime = System.currentTimeMillis();
+		final BitmapRegionDecoder decoder;
+		try {
+			decoder = BitmapRegionDecoder.newInstance(path, false);
+		} catch (IOException e) {
+			Log.e(TAG, "Unable to open " + path + ": " + e);
+			return;
+		}
+		Log.d(TAG, "Decoder for " + decoder.getWidth() + "x" + decoder.getHeight() + " image is opened in "
+				+ (System.currentTimeMillis() - startTime) + " ms");
+		post(new Runnable() {
+			@Override
+			public void run() {
+				if (!path.equals(mPath)) {
+					decoder.recycle();
+					return;
+				}
+				mDecoder = decoder;
+				mImageWidth = decoder.getWidth();
+				mImageHeight = decoder.getHeight();
+				requestLayout();
+				resetZoom();
+				loadBaseBitmap();
+			}
+		});
+	}
+
+	/*
+	 * Decodes the low-resolution copy of the whole image that fits the view.
+	 */
+	private void loadBaseBitmap() {
+		final BitmapRegionDecoder decoder = mDecoder;
+		final String path = mPath;
+		final boolean rotate = mRotate;
+		final int sampleSize = getBaseSampleSize();
+		final Rect region = new Rect(0, 0, mImageWidth, mImageHeight);
+		mExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				final Bitmap bitmap = decodeRegion(decoder, region, sampleSize, rotate);
+				post(new Runnable() {
+					@Override
+					public void run() {
+						if (bitmap != null && path.equals(mPath)) {
+							mBaseBitmap = bitmap;
+							invalidate();
+						}
+					}
+				});
+			}
+		});
+	}
+
+	@Override
+	protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
+		int width = MeasureSpec.getSize(widthMeasureSpec);
+		int height = MeasureSpec.getSize(heightMeasureSpec);
+		if (MeasureSpec.getMode(heightMeasureSpec) != MeasureSpec.EXACTLY) {
+			/* The whole image fits the width, but the view is not taller than the screen. */
+			int fittedHeight = mImageWidth > 0 ? (int) ((long) width * mImageHeight / mImageWidth) : 0;
+			int screenHeight = getResources().getDisplayMetrics().heightPixels;
+			height = Math.min(fittedHeight, screenHeight);
+			if (MeasureSpec.getMode(heightMeasureSpec) == MeasureSpec.AT_MOST) {
+				height = Math.min(height, MeasureSpec.getSize(heightMeasureSpec));
+			}
+		}
+		setMeasuredDimension(width, height);
+	}
+
+	@Override
+	protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+		super.onSizeChanged(w, h, oldw, oldh);
+		if (mTileCache == null && w > 0 && h > 0) {
+			/* At least two screens of tiles, so panning doesn't decode them again. */
+			int maxBytes = (int) Math.max(Runtime.getRuntime().maxMemory() / HEAP_FRACTION, 2L * 4 * w * h);
+			mTileCache = new LruCache<String, Bitmap>(maxBytes) {
+				@Override
+				protected int sizeOf(String key, Bitmap value) {
+					return value.getRowBytes() * value.getHeight();
+				}
+
+				@Override
+				protected void entryRemoved(boolean evicted, String key, final Bitmap oldValue, Bitmap newValue) {
+					/* The tile may be drawn right now, it's released after the frame. */
+					post(new Runnable() {
+						@Override
+						public void run() {
+							BitmapPool.getInstance().put(oldValue);
+						}
+					});
+				}
+			};
+		}
+		resetZoom();
+	}
+
+	@Override
+	public boolean onTouchEvent(MotionEvent event) {
+		if (mImageWidth == 0) {
+			return false;
+		}
+		mScaleDetector.onTouchEvent(event);
+		if (!mScaleDetector.isInProgress()) {
+			mGestureDetector.onTouchEvent(event);
+		}
+
+		/* The scroll view must not steal drags of the zoomed image. */
+		ViewParent parent = getParent();
+		if (parent != null) {
+			parent.requestDisallowInterceptTouchEvent(mScale > getFitScale());
+		}
+		return true;
+	}
+
+	@Override
+	protected void onDraw(Canvas canvas) {
+		if (mImageWidth == 0 || getWidth() == 0) {
+			return;
+		}
+
+		if (mBaseBitmap != null) {
+			mDstRect.set(mTranslateX, mTranslateY, mTranslateX + mImageWidth * mScale, mTranslateY + mImageHeight
+					* mScale);
+			canvas.drawBitmap(mBaseBitmap, null, mDstRect, mPaint);
+		}
+
+		/* Tiles are not needed while the base image has enough detail. */
+		int sampleSize = getSampleSize(mScale);
+		if (mTileCache == null || (sampleSize >= getBaseSampleSize() && mBaseBitmap != null)) {
+			mVisibleTiles = new HashSet<String>();
+			return;
+		}
+
+		/* Visible part of the image in image pixels. */
+		int left = Math.max(0, (int) (-mTranslateX / mScale));
+		int top = Math.max(0, (int) (-mTranslateY / mScale));
+		int right = Math.min(mImageWidth, (int) Math.ceil((getWidth() - mTranslateX) / mScale));
+		int bottom = Math.min(mImageHeight, (int) Math.ceil((getHeight() - mTranslateY) / mScale));
+
+		int tileSize = TILE_SIZE * sampleSize;
+		Set<String> visibleTiles = new HashSet<String>();
+		for (int row = top / tileSize; row * tileSize < bottom; row++) {
+			for (int col = left / tileSize; col * tileSize < right; col++) {
+				String key = sampleSize + ":" + col + ":" + row;
+				visibleTiles.add(key);
+				int tileLeft = col * tileSize;
+				int tileTop = row * tileSize;
+				int tileRight = Math.min(tileLeft + tileSize, mImageWidth);
+				int tileBottom = Math.min(tileTop + tileSize, mImageHeight);
+
+				Bitmap tile = mTileCache.get(key);
+				if (tile == null) {
+					requestTile(key, tileLeft, tileTop, tileRight, tileBottom, sampleSize);
+					continue;
+				}
+				mDstRect.set(mTranslateX + tileLeft * mScale, mTranslateY + tileTop * mScale, mTranslateX
+						+ tileRight * mScale, mTranslateY + tileBottom * mScale);
+				canvas.drawBitmap(tile, null, mDstRect, mPaint);
+			}
+		}
+		mVisibleTiles = visibleTiles;
+	}
+
+	/*
+	 * Queues decoding of a tile. Bounds are in the coordinates of the
+	 * displayed, possibly rotated, image.
+	 */
+	private void requestTile(final String key, int left, int top, int right, int bottom, final int sampleSize) {
+		synchronized (mPendingTiles) {
+			if (!mPendingTiles.add(key)) {
+				return;
+			}
+		}
+
+		/* The displayed tile comes from the opposite corner of the rotated image. */
+		final Rect region = mRotate ? new Rect(mImageWidth - right, mImageHeight - bottom, mImageWidth - left,
+				mImageHeight - top) : new Rect(left, top, right, bottom);
+		final BitmapRegionDecoder decoder = mDecoder;
+		final String path = mPath;
+		final boolean rotate = mRotate;
+		mExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				/* Tiles scrolled out of the view while waiting are skipped. */
+				Bitmap tile = mVisibleTiles.contains(key) ? decodeRegion(decoder, region, sampleSize, rotate) : null;
+				synchronized (mPendingTiles) {
+					mPendingTiles.remove(key);
+				}
+				if (tile != null && path.equals(mPath) && mTileCache != null) {
+					mTileCache.put(key, tile);
+					postInvalidate();
+				}
+			}
+		});
+	}
+
+	/*
+	 * Decodes a region of the image and rotates it if necessary. Called in the
+	 * tile thread.
+	 */
+	private static Bitmap decodeRegion(BitmapRegionDecoder decoder, Rect region, int sampleSize, boolean rotate) {
+		if (decoder == null || decoder.isRecycled()) {
+			return null;
+		}
+		BitmapFactory.Options opts = new BitmapFactory.Options();
+		opts.inSampleSize = sampleSize;
+		Bitmap bitmap;
+		try {
+			bitmap = decoder.decodeRegion(region, opts);
+		} catch (IllegalArgumentException e) {
+			/* The decoder was recycled meanwhile. */
+			return null;
+		}
+		if (bitmap == null || !rotate) {
+			return bitmap;
+		}
+		Bitmap rotated = BitmapRotator.rotate180(bitmap);
+		if (rotated != bitmap) {
+			BitmapPool.getInstance().put(bitmap);
+		}
+		return rotated;
+	}
+
+	/*
+	 * Returns the largest power of 2 sample size that keeps at least one
+	 * decoded pixel per screen pixel.
+	 */
+	private static int getSampleSize(float scale) {
+		int sampleSize = 1;
+		while (sampleSize * 2 * scale <= 1f) {
+			sampleSize *= 2;
+		}
+		return sampleSize;
+	}
+
+	/*
+	 * Returns the sample size of the base image. It fits the screen, so it
+	 * can be decoded before the view is laid out.
+	 */
+	private int getBaseSampleSize() {
+		int width = getWidth();
+		int height = getHeight();
+		if (width == 0 || height == 0) {
+			width = getResources().getDisplayMetrics().widthPixels;
+			height = getResources().getDisplayMetrics().heightPixels;
+		}
+		return getSampleSize(Math.min((float) width / mImageWidth, (float) height / mImageHeight));
+	}
+
+	/* Returns the scale that fits the whole image into the view. */
+	private float getFitScale() {
+		if (mImageWidth == 0 || getWidth() == 0 || getHeight() == 0) {
+			return 1f;
+		}
+		return Math.min((float) getWidth() / mImageWidth, (float) getHeight() / mImageHeight);
+	}
+
+	/* Shows the whole image. */
+	private void resetZoom() {
+		mScale = getFitScale();
+		clampTranslation();
+		invalidate();
+	}
+
+	/* Zooms keeping the focus point at the same place of the screen. */
+	private void zoomTo(float scale, float focusX, float focusY) {
+		float newScale = Math.max(getFitScale(), Math.min(scale, MAX_SCALE));
+		mTranslateX = focusX - (focusX - mTranslateX) * newScale / mScale;
+		mTranslateY = focusY - (focusY - mTranslateY) * newScale / mScale;
+		mScale = newScale;
+		clampTranslation();
+		invalidate();
+	}
+
+	/* Keeps the image on the screen, centering it if it's smaller. */
+	private void clampTranslation() {
+		float scaledWidth = mImageWidth * mScale;
+		float scaledHeight = mImageHeight * mScale;
+		if (scaledWidth <= getWidth()) {
+			mTranslateX = (getWidth() - scaledWidth) / 2;
+		} else {
+			mTranslateX = Math.max(getWidth() - scaledWidth, Math.min(0, mTranslateX));
+		}
+		if (scaledHeight <= getHeight()) {
+			mTranslateY = (getHeight() - scaledHeight) / 2;
+		} else {
+			mTranslateY = Math.max(getHeight() - scaledHeight, Math.min(0, mTranslateY));
+		}
+	}
+
+	@Override
+	protected void onDetachedFromWindow() {
+		super.onDetachedFromWindow();
+		recycle();
+	}
+}
@@ -0,0 +1,44 @@
+package com.deakishin.idtmessagingtestapp.bench;
+
+import java.io.File;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks of the image and I/O kernels of the app on a desktop
+ * JVM and writes a JSON report to results/jmh-&lt;label&gt;.json, so reports of
+ * releases can be compared with each other.
+ * <p>
+ * The jars of JMH 1.37 (jmh-core, jmh-generator-annprocess and their
+ * dependencies jopt-simple and commons-math3) are expected in the libs
+ * folder of the project. Forks, warmup and measurement are fixed by the
+ * benchmark classes and inputs are generated with fixed seeds, so runs on the
+ * same machine are comparable.
+ * <p>
+ * Arguments: [label [benchmark regexp]]. The label defaults to "dev", all
+ * benchmarks are run by default.
+ */
+public class Benchmarks {
+
+	/* Folder of the reports. */
+	private static final String RESULTS_DIR = "results";
+
+	public static void main(String[] args) throws RunnerException {
+		String label = args.length > 0 ? args[0] : "dev";
+		String include = args.length > 1 ? args[1] : Benchmarks.class.getPackage().getName() + ".*";
+
+		File dir = new File(RESULTS_DIR);
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new RunnerException("Cannot create " + dir.getAbsolutePath());
+		}
+
+		Options options = new OptionsBuilder().include(include).shouldFailOnError(true)
+				.resultFormat(ResultFormatType.JSON).result(new File(dir, "jmh-" + label + ".json").getPath())
+				.build();
+		new Runner(options).run();
+	}
+}
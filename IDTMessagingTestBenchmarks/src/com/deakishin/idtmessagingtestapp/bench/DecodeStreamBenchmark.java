@@ -0,0 +1,126 @@
+package com.deakishin.idtmessagingtestapp.bench;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Reading of a stored image for the two passes of readExtBitmap: the header
+ * for the bounds and then the whole file for the pixels. BitmapFactory needs
+ * a device, so only the I/O of the passes is measured: reopening the file
+ * for the second pass, as it was done before, against rewinding a buffered
+ * stream to a mark, as it's done now, and a single pass as the lower bound.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class DecodeStreamBenchmark {
+
+	/* Sizes of the buffer of the decode stream and of the header read for bounds. */
+	private static final int DECODE_BUFFER_SIZE = 64 * 1024;
+	private static final int HEADER_SIZE = 16 * 1024;
+
+	@Param({ "65536", "1048576", "8388608" })
+	public int fileSize;
+
+	private File mFile;
+	private final byte[] mHeader = new byte[HEADER_SIZE];
+	private final byte[] mChunk = new byte[DECODE_BUFFER_SIZE];
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		byte[] data = new byte[fileSize];
+		new Random(42).nextBytes(data);
+		mFile = File.createTempFile("bench", ".img");
+		OutputStream out = new FileOutputStream(mFile);
+		try {
+			out.write(data);
+		} finally {
+			out.close();
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		mFile.delete();
+	}
+
+	@Benchmark
+	public long reopen() throws IOException {
+		InputStream is = new BufferedInputStream(new FileInputStream(mFile), DECODE_BUFFER_SIZE);
+		try {
+			readFully(is, mHeader);
+		} finally {
+			is.close();
+		}
+		is = new BufferedInputStream(new FileInputStream(mFile), DECODE_BUFFER_SIZE);
+		try {
+			return drain(is);
+		} finally {
+			is.close();
+		}
+	}
+
+	@Benchmark
+	public long markAndReset() throws IOException {
+		InputStream is = new BufferedInputStream(new FileInputStream(mFile), DECODE_BUFFER_SIZE);
+		try {
+			is.mark(DECODE_BUFFER_SIZE);
+			readFully(is, mHeader);
+			is.reset();
+			return drain(is);
+		} finally {
+			is.close();
+		}
+	}
+
+	@Benchmark
+	public long singlePass() throws IOException {
+		InputStream is = new BufferedInputStream(new FileInputStream(mFile), DECODE_BUFFER_SIZE);
+		try {
+			return drain(is);
+		} finally {
+			is.close();
+		}
+	}
+
+	private static void readFully(InputStream is, byte[] buffer) throws IOException {
+		int offset = 0;
+		int bytesRead;
+		while (offset < buffer.length && (bytesRead = is.read(buffer, offset, buffer.length - offset)) != -1) {
+			offset += bytesRead;
+		}
+	}
+
+	private long drain(InputStream is) throws IOException {
+		long total = 0;
+		int bytesRead;
+		while ((bytesRead = is.read(mChunk)) != -1) {
+			total += bytesRead;
+		}
+		return total;
+	}
+}
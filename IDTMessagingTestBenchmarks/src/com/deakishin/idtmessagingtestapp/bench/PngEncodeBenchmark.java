@@ -0,0 +1,89 @@
+package com.deakishin.idtmessagingtestapp.bench;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.deakishin.idtmessagingtestapp.StreamingPngWriter;
+
+/**
+ * Row by row PNG encoding of transformed images. The image is a smooth
+ * gradient with noise, closer to photos than random pixels, and the output
+ * is discarded, so only filtering and compression are measured.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+public class PngEncodeBenchmark {
+
+	@Param({ "640x480", "1920x1080" })
+	public String size;
+
+	@Param({ "1", "6" })
+	public int compressionLevel;
+
+	private int mWidth;
+	private int mHeight;
+	private int[] mPixels;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		String[] dimensions = size.split("x");
+		mWidth = Integer.parseInt(dimensions[0]);
+		mHeight = Integer.parseInt(dimensions[1]);
+		mPixels = new int[mWidth * mHeight];
+		Random random = new Random(42);
+		for (int y = 0; y < mHeight; y++) {
+			for (int x = 0; x < mWidth; x++) {
+				int noise = random.nextInt(8);
+				int r = (x * 255 / mWidth + noise) & 0xff;
+				int g = (y * 255 / mHeight + noise) & 0xff;
+				int b = ((x + y) * 127 / (mWidth + mHeight) + noise) & 0xff;
+				mPixels[y * mWidth + x] = 0xff000000 | (r << 16) | (g << 8) | b;
+			}
+		}
+	}
+
+	@Benchmark
+	public long encode() throws IOException {
+		CountingSink sink = new CountingSink();
+		StreamingPngWriter writer = new StreamingPngWriter(sink, mWidth, mHeight, false, compressionLevel);
+		for (int y = 0; y < mHeight; y++) {
+			writer.writeRow(mPixels, y * mWidth);
+		}
+		writer.finish();
+		return sink.mCount;
+	}
+
+	/* Output that only counts bytes. */
+	private static class CountingSink extends OutputStream {
+		long mCount;
+
+		@Override
+		public void write(int b) {
+			mCount++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			mCount += len;
+		}
+	}
+}
@@ -0,0 +1,103 @@
+package com.deakishin.idtmessagingtestapp.bench;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.deakishin.idtmessagingtestapp.ImageKernels;
+
+/**
+ * Rotation of int[] pixels 180 degrees. The per-pixel variant computes the
+ * source index of every pixel the way the old FileIOHelper.rotateManual did,
+ * but mirrors the column as well, since that method only flipped the rows.
+ * The others are the kernels of BitmapRotator: reversing the whole image at
+ * once and by bands of rows the way they are copied out of a bitmap. All of
+ * them produce the same result.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = { "-Xms1g", "-Xmx1g" })
+public class RotationBenchmark {
+
+	/* Pixels in a band, the same as in BitmapRotator. */
+	private static final int BAND_PIXELS = 64 * 1024;
+
+	@Param({ "640x480", "1920x1080", "4000x3000" })
+	public String size;
+
+	private int mWidth;
+	private int mHeight;
+	private int[] mSrc;
+	private int[] mDst;
+	private int[] mBand;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		String[] dimensions = size.split("x");
+		mWidth = Integer.parseInt(dimensions[0]);
+		mHeight = Integer.parseInt(dimensions[1]);
+		mSrc = new int[mWidth * mHeight];
+		Random random = new Random(42);
+		for (int i = 0; i < mSrc.length; i++) {
+			mSrc[i] = random.nextInt();
+		}
+		mDst = new int[mSrc.length];
+		mBand = new int[Math.max(mWidth, BAND_PIXELS / mWidth * mWidth)];
+	}
+
+	@Benchmark
+	public int[] perPixelIndex() {
+		int w = mWidth;
+		int h = mHeight;
+		int s = w * h;
+		for (int i = 0; i < s; i++) {
+			int ih = i / w;
+			int iw = i - ih * w;
+			mDst[i] = mSrc[(h - ih - 1) * w + (w - iw - 1)];
+		}
+		return mDst;
+	}
+
+	@Benchmark
+	public int[] copyReversed() {
+		int last = mSrc.length - 1;
+		for (int i = 0; i <= last; i++) {
+			mDst[i] = mSrc[last - i];
+		}
+		return mDst;
+	}
+
+	@Benchmark
+	public int[] reverseInPlace() {
+		ImageKernels.reverse(mSrc, 0, mSrc.length);
+		return mSrc;
+	}
+
+	@Benchmark
+	public int[] reverseByBands() {
+		int rowsPerBand = mBand.length / mWidth;
+		for (int top = 0; top < mHeight; top += rowsPerBand) {
+			int rows = Math.min(rowsPerBand, mHeight - top);
+			int size = rows * mWidth;
+			System.arraycopy(mSrc, (mHeight - top - rows) * mWidth, mBand, 0, size);
+			ImageKernels.reverse(mBand, 0, size);
+			System.arraycopy(mBand, 0, mDst, top * mWidth, size);
+		}
+		return mDst;
+	}
+}
@@ -0,0 +1,63 @@
+package com.deakishin.idtmessagingtestapp.bench;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.deakishin.idtmessagingtestapp.ImageKernels;
+import com.deakishin.idtmessagingtestapp.SamplingPlanner;
+
+/**
+ * Sampling math of decoding over a fixed set of image sizes and view widths:
+ * the power of 2 sampling by the width and the plans of SamplingPlanner.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class SamplingBenchmark {
+
+	/* Number of width pairs, a power of 2. */
+	private static final int COUNT = 1024;
+
+	private final int[] mWidths = new int[COUNT];
+	private final int[] mHeights = new int[COUNT];
+	private final int[] mReqWidths = new int[COUNT];
+	private final SamplingPlanner mPlanner = new SamplingPlanner(64 * 1024 * 1024);
+	private int mIndex;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		Random random = new Random(42);
+		for (int i = 0; i < COUNT; i++) {
+			mWidths[i] = 1 + random.nextInt(8000);
+			mHeights[i] = 1 + random.nextInt(8000);
+			mReqWidths[i] = 240 + random.nextInt(1200);
+		}
+	}
+
+	@Benchmark
+	public int calculateInSampleSize() {
+		int i = mIndex++ & (COUNT - 1);
+		return ImageKernels.calculateInSampleSize(mWidths[i], mReqWidths[i]);
+	}
+
+	@Benchmark
+	public SamplingPlanner.Plan plan() {
+		int i = mIndex++ & (COUNT - 1);
+		return mPlanner.plan(mWidths[i], mHeights[i], (i & 1) == 0, mReqWidths[i], 0);
+	}
+}
@@ -0,0 +1,86 @@
+package com.deakishin.idtmessagingtestapp.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.deakishin.idtmessagingtestapp.StorageWriter;
+
+/**
+ * Copying of a downloaded stream to a file. The stream loop is the copy loop
+ * writeExtFile had before StorageWriter (1 KB buffer by default), the other
+ * variant is StorageWriter without syncing, so the numbers measure the copy
+ * and not the device. Data comes from memory to leave the network out.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class StreamCopyBenchmark {
+
+	@Param({ "65536", "1048576", "8388608" })
+	public int fileSize;
+
+	@Param({ "1024", "8192", "65536", "262144" })
+	public int bufferSize;
+
+	private byte[] mData;
+	private File mFile;
+	private StorageWriter mWriter;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		mData = new byte[fileSize];
+		new Random(42).nextBytes(mData);
+		mFile = File.createTempFile("bench", ".bin");
+		mWriter = new StorageWriter(StorageWriter.SyncPolicy.NONE, bufferSize);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		mFile.delete();
+	}
+
+	@Benchmark
+	public long streamLoop() throws IOException {
+		ByteArrayInputStream input = new ByteArrayInputStream(mData);
+		OutputStream stream = new FileOutputStream(mFile);
+		long total = 0;
+		try {
+			byte[] buffer = new byte[bufferSize];
+			int bytesRead;
+			while ((bytesRead = input.read(buffer)) != -1) {
+				stream.write(buffer, 0, bytesRead);
+				total += bytesRead;
+			}
+		} finally {
+			stream.close();
+		}
+		return total;
+	}
+
+	@Benchmark
+	public long storageWriter() throws IOException {
+		return mWriter.write(new ByteArrayInputStream(mData), mFile, 0, null).bytesWritten;
+	}
+}
@@ -0,0 +1,330 @@
+package com.deakishin.idtmessagingtestapp.loadtest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.deakishin.idtmessagingtestapp.StreamingPngWriter;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Local HTTP server that stands in for image hosts. It serves PNG images of
+ * any size requested by the path, e.g. /image/1920x1080.png, and injects
+ * faults of real networks: latency before the response, limited bandwidth,
+ * server errors, connections reset in the middle of the body and slow drips
+ * of small chunks.
+ * <p>
+ * Faults are chosen per request by a random generator with a fixed seed, so
+ * a run with the same settings and concurrency of 1 is repeatable.
+ */
+public class ImageServer {
+
+	/* Path of images: /image/<width>x<height>.png. */
+	private static final Pattern IMAGE_PATH = Pattern.compile("/image/(\\d+)x(\\d+)\\.png");
+
+	/* Images larger than this are refused to protect the heap. */
+	private static final long MAX_PIXELS = 50L * 1000 * 1000;
+
+	/* Size of the chunks the body is sent by. */
+	private static final int CHUNK_SIZE = 16 * 1024;
+
+	private final HttpServer mServer;
+	private final ExecutorService mExecutor;
+
+	/* Encoded images by path. */
+	private final ConcurrentMap<String, byte[]> mImages = new ConcurrentHashMap<String, byte[]>();
+
+	/* Settings of faults. */
+	private volatile long mLatency;
+	private volatile long mLatencyJitter;
+	private volatile int mBytesPerSecond;
+	private volatile double mFailureRate;
+	private volatile double mResetRate;
+	private volatile double mDripRate;
+	private volatile int mDripChunkSize = 1024;
+	private volatile long mDripDelay = 100;
+	private final Random mRandom;
+
+	/* Statistics. */
+	private final AtomicInteger mRequestCount = new AtomicInteger();
+	private final AtomicInteger mFailureCount = new AtomicInteger();
+	private final AtomicInteger mResetCount = new AtomicInteger();
+	private final AtomicInteger mDripCount = new AtomicInteger();
+
+	/**
+	 * Constructor. The server listens on a free port of the loopback
+	 * interface.
+	 *
+	 * @param seed
+	 *            - seed of the faults.
+	 * @throws IOException
+	 *             if the server can't be created.
+	 */
+	public ImageServer(long seed) throws IOException {
+		mRandom = new Random(seed);
+		mServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+		mExecutor = Executors.newCachedThreadPool();
+		mServer.setExecutor(mExecutor);
+		mServer.createContext("/image/", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				try {
+					serve(exchange);
+				} finally {
+					exchange.close();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Sets the latency before the response headers.
+	 *
+	 * @param latency
+	 *            - minimal latency in ms.
+	 * @param jitter
+	 *            - maximal random addition to the latency in ms.
+	 */
+	public void setLatency(long latency, long jitter) {
+		mLatency = latency;
+		mLatencyJitter = jitter;
+	}
+
+	/**
+	 * Limits the bandwidth of every response.
+	 *
+	 * @param bytesPerSecond
+	 *            - bytes per second, 0 for no limit.
+	 */
+	public void setBandwidth(int bytesPerSecond) {
+		mBytesPerSecond = bytesPerSecond;
+	}
+
+	/**
+	 * Sets the part of requests answered by 503 Service Unavailable.
+	 *
+	 * @param rate
+	 *            - rate from 0 to 1.
+	 */
+	public void setFailureRate(double rate) {
+		mFailureRate = rate;
+	}
+
+	/**
+	 * Sets the part of responses whose connection is closed after half of
+	 * the body.
+	 *
+	 * @param rate
+	 *            - rate from 0 to 1.
+	 */
+	public void setResetRate(double rate) {
+		mResetRate = rate;
+	}
+
+	/**
+	 * Sets the part of responses whose body drips slowly.
+	 *
+	 * @param rate
+	 *            - rate from 0 to 1.
+	 * @param chunkSize
+	 *            - bytes sent at once.
+	 * @param delay
+	 *            - delay between chunks in ms.
+	 */
+	public void setDrip(double rate, int chunkSize, long delay) {
+		mDripRate = rate;
+		mDripChunkSize = Math.max(1, chunkSize);
+		mDripDelay = delay;
+	}
+
+	/**
+	 * Starts the server.
+	 */
+	public void start() {
+		mServer.start();
+	}
+
+	/**
+	 * Stops the server, closing open connections.
+	 */
+	public void stop() {
+		mServer.stop(0);
+		mExecutor.shutdownNow();
+	}
+
+	/**
+	 * Returns the url of an image.
+	 *
+	 * @param width
+	 *            - width of the image.
+	 * @param height
+	 *            - height of the image.
+	 * @return url of the image.
+	 */
+	public String getImageUrl(int width, int height) {
+		InetSocketAddress address = mServer.getAddress();
+		return "http://" + address.getAddress().getHostAddress() + ":" + address.getPort() + "/image/" + width + "x"
+				+ height + ".png";
+	}
+
+	/**
+	 * Returns the encoded image, encoding it when it's requested for the first
+	 * time. It can be used to prepare images before measuring.
+	 *
+	 * @param width
+	 *            - width of the image.
+	 * @param height
+	 *            - height of the image.
+	 * @return PNG data.
+	 * @throws IOException
+	 *             if an error occurred.
+	 */
+	public byte[] getImage(int width, int height) throws IOException {
+		String key = width + "x" + height;
+		byte[] image = mImages.get(key);
+		if (image == null) {
+			image = encode(width, height);
+			byte[] existing = mImages.putIfAbsent(key, image);
+			if (existing != null) {
+				image = existing;
+			}
+		}
+		return image;
+	}
+
+	@Override
+	public String toString() {
+		return "ImageServer[requests=" + mRequestCount + ", failures=" + mFailureCount + ", resets=" + mResetCount
+				+ ", drips=" + mDripCount + "]";
+	}
+
+	private void serve(HttpExchange exchange) throws IOException {
+		mRequestCount.incrementAndGet();
+		Matcher matcher = IMAGE_PATH.matcher(exchange.getRequestURI().getPath());
+		if (!matcher.matches()) {
+			exchange.sendResponseHeaders(404, -1);
+			return;
+		}
+		int width = Integer.parseInt(matcher.group(1));
+		int height = Integer.parseInt(matcher.group(2));
+		if (width <= 0 || height <= 0 || (long) width * height > MAX_PIXELS) {
+			exchange.sendResponseHeaders(400, -1);
+			return;
+		}
+
+		/* Faults are drawn at once, so their sequence doesn't depend on timing. */
+		double failure;
+		double reset;
+		double drip;
+		long latency;
+		synchronized (mRandom) {
+			failure = mRandom.nextDouble();
+			reset = mRandom.nextDouble();
+			drip = mRandom.nextDouble();
+			latency = mLatency + (mLatencyJitter > 0 ? (long) (mRandom.nextDouble() * mLatencyJitter) : 0);
+		}
+
+		sleep(latency);
+		if (failure < mFailureRate) {
+			mFailureCount.incrementAndGet();
+			exchange.sendResponseHeaders(503, -1);
+			return;
+		}
+
+		byte[] image = getImage(width, height);
+		exchange.getResponseHeaders().set("Content-Type", "image/png");
+		exchange.getResponseHeaders().set("ETag", "\"" + width + "x" + height + "\"");
+		if ("HEAD".equals(exchange.getRequestMethod())) {
+			exchange.getResponseHeaders().set("Content-Length", String.valueOf(image.length));
+			exchange.sendResponseHeaders(200, -1);
+			return;
+		}
+		exchange.sendResponseHeaders(200, image.length);
+
+		int length = image.length;
+		if (reset < mResetRate) {
+			/* Closing the exchange with the body incomplete closes the connection. */
+			mResetCount.incrementAndGet();
+			length = image.length / 2;
+		}
+		int chunkSize = CHUNK_SIZE;
+		long chunkDelay = 0;
+		if (drip < mDripRate) {
+			mDripCount.incrementAndGet();
+			chunkSize = mDripChunkSize;
+			chunkDelay = mDripDelay;
+		}
+		send(exchange.getResponseBody(), image, length, chunkSize, chunkDelay);
+	}
+
+	/*
+	 * Sends the first length bytes of the data by chunks, keeping within the
+	 * bandwidth.
+	 */
+	private void send(OutputStream out, byte[] data, int length, int chunkSize, long chunkDelay) throws IOException {
+		int bytesPerSecond = mBytesPerSecond;
+		long startTime = System.nanoTime();
+		int sent = 0;
+		while (sent < length) {
+			int count = Math.min(chunkSize, length - sent);
+			out.write(data, sent, count);
+			out.flush();
+			sent += count;
+			if (chunkDelay > 0) {
+				sleep(chunkDelay);
+			}
+			if (bytesPerSecond > 0) {
+				long dueMillis = sent * 1000L / bytesPerSecond;
+				long elapsedMillis = (System.nanoTime() - startTime) / 1000000;
+				sleep(dueMillis - elapsedMillis);
+			}
+		}
+	}
+
+	private static void sleep(long millis) throws IOException {
+		if (millis <= 0) {
+			return;
+		}
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted");
+		}
+	}
+
+	/*
+	 * Encodes an image with a gradient and noise, so it compresses like a
+	 * photo rather than a flat color.
+	 */
+	private static byte[] encode(int width, int height) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		StreamingPngWriter writer = new StreamingPngWriter(out, width, height, false, 6);
+		int[] row = new int[width];
+		Random random = new Random((long) width * 31 + height);
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				int noise = random.nextInt(16);
+				int r = (x * 255 / width + noise) & 0xff;
+				int g = (y * 255 / height + noise) & 0xff;
+				int b = (255 - r + noise) & 0xff;
+				row[x] = 0xff000000 | (r << 16) | (g << 8) | b;
+			}
+			writer.writeRow(row, 0);
+		}
+		writer.finish();
+		return out.toByteArray();
+	}
+}
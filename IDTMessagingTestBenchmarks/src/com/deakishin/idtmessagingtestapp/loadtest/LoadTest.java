@@ -0,0 +1,298 @@
+package com.deakishin.idtmessagingtestapp.loadtest;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.deakishin.idtmessagingtestapp.HttpFetcher;
+import com.deakishin.idtmessagingtestapp.HttpTransport;
+import com.deakishin.idtmessagingtestapp.Metrics;
+import com.deakishin.idtmessagingtestapp.StorageWriter;
+
+/**
+ * Headless load test of downloading and storing images. Requests go through
+ * the HttpFetcher of the app, the same transport, retries, writing and
+ * commit as in DownloadHelper, to a local ImageServer, and the run reports
+ * throughput, latency percentiles and error rates.
+ * <p>
+ * Arguments are --name=value pairs, all optional:
+ * <ul>
+ * <li>concurrency - number of parallel downloads, 8 by default;</li>
+ * <li>requests - number of measured requests, 200 by default;</li>
+ * <li>warmup - number of requests made before measuring, 20 by default;</li>
+ * <li>sizes - comma separated image sizes, 640x480,1920x1080 by default;</li>
+ * <li>latency, jitter - server latency and its random addition in ms;</li>
+ * <li>bandwidth - bandwidth of every response in KB/s, 0 for no limit;</li>
+ * <li>failures - rate of 503 responses from 0 to 1;</li>
+ * <li>resets - rate of connections reset in the middle of the body;</li>
+ * <li>drips - rate of bodies that drip slowly;</li>
+ * <li>drip-chunk, drip-delay - bytes a dripping body is sent by and the delay
+ * between them in ms, 1024 and 10 by default;</li>
+ * <li>hedge - hedging percentile of the transport, 0 disables it;</li>
+ * <li>timeout - read timeout in ms, 5000 by default;</li>
+ * <li>sync - sync policy of the storage: none, on_close or periodic;</li>
+ * <li>seed - seed of the server faults, 42 by default;</li>
+ * <li>export - file the histograms are exported to.</li>
+ * </ul>
+ */
+public class LoadTest {
+
+	/* Files are named by their hash, the same way as images of the app. */
+	private static final String DIGEST_ALGORITHM = "SHA-1";
+
+	/* Errors are counted in the report instead of being logged. */
+	private static final HttpFetcher.Logger QUIET_LOGGER = new HttpFetcher.Logger() {
+		@Override
+		public void d(String tag, String message) {
+		}
+
+		@Override
+		public void e(String tag, String message) {
+		}
+	};
+
+	/* Names of the histograms of the test. */
+	private static final String REQUEST_LATENCY = "request_ms";
+	private static final String ATTEMPTS = "attempts";
+
+	/* Percentiles of the report. */
+	private static final double[] PERCENTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+	private final ImageServer mServer;
+	private final HttpFetcher mFetcher;
+	private final List<String> mUrls = new ArrayList<String>();
+	private final int mConcurrency;
+
+	/* Statistics of the measured requests. */
+	private final AtomicInteger mSucceededCount = new AtomicInteger();
+	private final AtomicInteger mFailedCount = new AtomicInteger();
+	private final AtomicLong mBytes = new AtomicLong();
+	private final Map<String, Integer> mErrors = new TreeMap<String, Integer>();
+
+	public static void main(String[] args) throws Exception {
+		Map<String, String> options = parseOptions(args);
+		ImageServer server = new ImageServer(Long.parseLong(get(options, "seed", "42")));
+		server.setLatency(Long.parseLong(get(options, "latency", "0")), Long.parseLong(get(options, "jitter", "0")));
+		server.setBandwidth(Integer.parseInt(get(options, "bandwidth", "0")) * 1024);
+		server.setFailureRate(Double.parseDouble(get(options, "failures", "0")));
+		server.setResetRate(Double.parseDouble(get(options, "resets", "0")));
+		server.setDrip(Double.parseDouble(get(options, "drips", "0")), Integer.parseInt(get(options, "drip-chunk",
+				"1024")), Long.parseLong(get(options, "drip-delay", "10")));
+
+		int concurrency = Integer.parseInt(get(options, "concurrency", "8"));
+		HttpTransport.setMaxIdleConnections(concurrency);
+		HttpTransport transport = HttpTransport.getInstance();
+		int timeout = Integer.parseInt(get(options, "timeout", "5000"));
+		transport.setTimeouts(timeout, timeout);
+		transport.setRetryDelays(50, 1000);
+		transport.setHedgePercentile(Double.parseDouble(get(options, "hedge", "0")));
+
+		StorageWriter writer = new StorageWriter(StorageWriter.SyncPolicy.valueOf(get(options, "sync", "none")
+				.toUpperCase(Locale.US)));
+		writer.setDigestAlgorithm(DIGEST_ALGORITHM);
+
+		File dir = File.createTempFile("loadtest", "");
+		if (!dir.delete() || !dir.mkdir()) {
+			throw new IOException("Cannot create " + dir);
+		}
+		server.start();
+		try {
+			LoadTest test = new LoadTest(server, transport, writer, dir, concurrency);
+			for (String size : get(options, "sizes", "640x480,1920x1080").split(",")) {
+				String[] dimensions = size.trim().split("x");
+				int width = Integer.parseInt(dimensions[0]);
+				int height = Integer.parseInt(dimensions[1]);
+				/* Encoding is left out of the measurement. */
+				server.getImage(width, height);
+				test.mUrls.add(server.getImageUrl(width, height));
+			}
+
+			test.run(Integer.parseInt(get(options, "warmup", "20")), false);
+			Metrics.getInstance().reset();
+			long elapsedNanos = test.run(Integer.parseInt(get(options, "requests", "200")), true);
+
+			System.out.println(test.getReport(elapsedNanos));
+			System.out.println(server);
+			System.out.println(transport);
+			String export = options.get("export");
+			if (export != null) {
+				Metrics.getInstance().exportTo(new File(export));
+			}
+		} finally {
+			server.stop();
+			File[] files = dir.listFiles();
+			if (files != null) {
+				for (File file : files) {
+					file.delete();
+				}
+			}
+			dir.delete();
+		}
+	}
+
+	private LoadTest(ImageServer server, HttpTransport transport, final StorageWriter writer, final File dir,
+			int concurrency) {
+		mServer = server;
+		mFetcher = new HttpFetcher(transport, new HttpFetcher.Storage() {
+			@Override
+			public StorageWriter getWriter() {
+				return writer;
+			}
+
+			@Override
+			public File getFile(String filename) {
+				return new File(dir, filename);
+			}
+
+			@Override
+			public String commit(String filename, String hash) {
+				String committed = hash + ".png";
+				return getFile(filename).renameTo(getFile(committed)) ? committed : null;
+			}
+		}, QUIET_LOGGER);
+		mConcurrency = concurrency;
+	}
+
+	/*
+	 * Makes the given number of requests and waits for them. Returns the time
+	 * spent in ns.
+	 */
+	private long run(int requests, final boolean measured) throws InterruptedException {
+		ExecutorService executor = Executors.newFixedThreadPool(mConcurrency);
+		long startTime = System.nanoTime();
+		for (int i = 0; i < requests; i++) {
+			final String url = mUrls.get(i % mUrls.size());
+			final String partFilename = "request-" + i + ".part";
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					request(url, partFilename, measured);
+				}
+			});
+		}
+		executor.shutdown();
+		executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+		return System.nanoTime() - startTime;
+	}
+
+	/*
+	 * Downloads and stores an image, retrying errors that may pass.
+	 */
+	private void request(String url, String partFilename, boolean measured) {
+		long startTime = System.nanoTime();
+		ImageHandler handler = new ImageHandler(partFilename, measured);
+		String filename = mFetcher.fetch(url, handler);
+		if (!measured) {
+			return;
+		}
+
+		Metrics.getInstance().record(REQUEST_LATENCY, (System.nanoTime() - startTime) / 1000000);
+		Metrics.getInstance().record(ATTEMPTS, handler.mAttempts);
+		if (filename != null) {
+			mSucceededCount.incrementAndGet();
+			mBytes.addAndGet(handler.mBytes);
+		} else {
+			mFailedCount.incrementAndGet();
+			addError("failed " + handler.mError);
+		}
+	}
+
+	/*
+	 * Handler that stores the image of a successful response and counts
+	 * attempts and errors of the request.
+	 */
+	private class ImageHandler extends HttpFetcher.Handler<String> {
+		private final String mPartFilename;
+		private final boolean mMeasured;
+
+		int mAttempts;
+		long mBytes;
+		String mError;
+
+		ImageHandler(String partFilename, boolean measured) {
+			mPartFilename = partFilename;
+			mMeasured = measured;
+		}
+
+		@Override
+		public String onResponse(HttpFetcher.Response response) throws IOException {
+			mAttempts = response.getAttempt();
+			if (response.getResponseCode() != HttpURLConnection.HTTP_OK) {
+				mError = "HTTP " + response.getResponseCode();
+				return null;
+			}
+			StorageWriter.Result result = response.write(mPartFilename, 0, null);
+			mBytes = result.length;
+			return response.commit(mPartFilename, result.digest);
+		}
+
+		@Override
+		public void onAttemptFailed(int attempt, IOException e) {
+			mAttempts = attempt;
+			mError = e instanceof HttpFetcher.ServerErrorException ? "HTTP "
+					+ ((HttpFetcher.ServerErrorException) e).responseCode : e.getClass().getSimpleName();
+			if (mMeasured && attempt < mFetcher.getMaxAttempts()) {
+				addError("retried " + mError);
+			}
+		}
+	}
+
+	private synchronized void addError(String error) {
+		Integer count = mErrors.get(error);
+		mErrors.put(error, count == null ? 1 : count + 1);
+	}
+
+	private synchronized String getReport(long elapsedNanos) {
+		int requests = mSucceededCount.get() + mFailedCount.get();
+		double seconds = elapsedNanos / 1e9;
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format(Locale.US, "%d requests, concurrency %d, %.2f s, %.1f requests/s, %.2f MB/s%n",
+				requests, mConcurrency, seconds, requests / seconds, mBytes.get() / seconds / 1024 / 1024));
+		sb.append(String.format(Locale.US, "succeeded %d, failed %d, error rate %.2f%%%n", mSucceededCount.get(),
+				mFailedCount.get(), requests > 0 ? mFailedCount.get() * 100.0 / requests : 0));
+		for (Map.Entry<String, Integer> entry : mErrors.entrySet()) {
+			sb.append("  ").append(entry.getKey()).append(": ").append(entry.getValue()).append('\n');
+		}
+		appendPercentiles(sb, "request latency, ms", Metrics.getInstance().get(REQUEST_LATENCY));
+		appendPercentiles(sb, "time to first byte, ms", Metrics.getInstance().get(Metrics.TIME_TO_FIRST_BYTE));
+		appendPercentiles(sb, "file write, us", Metrics.getInstance().get(Metrics.FILE_WRITE));
+		sb.append("attempts: ").append(Metrics.getInstance().get(ATTEMPTS));
+		return sb.toString();
+	}
+
+	private static void appendPercentiles(StringBuilder sb, String name, Metrics.Histogram histogram) {
+		sb.append(name).append(':');
+		for (double percentile : PERCENTILES) {
+			sb.append(" p").append(String.valueOf(percentile * 100).replaceAll("\\.0$", "")).append('=')
+					.append(histogram.getPercentile(percentile));
+		}
+		sb.append(" max=").append(histogram.getMax()).append('\n');
+	}
+
+	private static Map<String, String> parseOptions(String[] args) {
+		Map<String, String> options = new HashMap<String, String>();
+		for (String arg : args) {
+			if (!arg.startsWith("--") || arg.indexOf('=') < 0) {
+				throw new IllegalArgumentException("Expected --name=value: " + arg);
+			}
+			options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+		}
+		return options;
+	}
+
+	private static String get(Map<String, String> options, String name, String defaultValue) {
+		String value = options.get(name);
+		return value != null ? value : defaultValue;
+	}
+}